@@ -1,13 +1,36 @@
 package uk.ac.ntu.cloudfs.ui;
 
+import uk.ac.ntu.cloudfs.common.chunking.ContentChunker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public final class ApiClient {
+    /** New files larger than this go up as a multipart upload. */
+    private static final long MULTIPART_THRESHOLD = 64L * 1024 * 1024;
+    private static final int PART_SIZE = 16 * 1024 * 1024;
+    private static final int PART_CONNECTIONS = 4;
+    private static final int PART_ATTEMPTS = 3;
+
     private final HttpClient http = HttpClient.newBuilder()
             .connectTimeout(Duration.ofSeconds(5))
             .build();
@@ -76,6 +99,138 @@ public final class ApiClient {
         throwIfError(r);
     }
 
+    /**
+     * Uploads {@code file} as {@code fileId} with content-defined chunks. If the file already
+     * exists, only chunks the server does not have are sent (a delta against the current version);
+     * when nothing matches or the file changed meanwhile, the whole file is sent instead.
+     */
+    public String uploadFile(String fileId, Path file, int chunkSize) throws Exception {
+        String q = "/api/file?fileId=" + enc(fileId) + "&chunkSize=" + chunkSize + "&chunking=cdc";
+
+        HttpResponse<String> idx = http.send(req("/api/file/chunks?fileId=" + enc(fileId)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (idx.statusCode() == 200) {
+            String r = putDelta(q, file, idx.body(), chunkSize);
+            if (r != null) return r;
+        }
+
+        if (Files.size(file) > MULTIPART_THRESHOLD) return uploadMultipart(fileId, file, chunkSize, null);
+
+        HttpResponse<String> r = http.send(req(q).PUT(HttpRequest.BodyPublishers.ofFile(file)).build(),
+                HttpResponse.BodyHandlers.ofString());
+        throwIfError(r);
+        return r.body();
+    }
+
+    /**
+     * Uploads {@code file} in parts over several connections, retrying a failed part on its own
+     * rather than the whole file. Pass the id of an earlier, unfinished upload of the same file as
+     * {@code resumeUploadId} to send only the parts the server has not acknowledged.
+     */
+    public String uploadMultipart(String fileId, Path file, int chunkSize, String resumeUploadId) throws Exception {
+        String uploadId = resumeUploadId;
+        if (uploadId == null) {
+            String started = post("/api/upload?fileId=" + enc(fileId) + "&chunkSize=" + chunkSize);
+            uploadId = started.trim().split(" ")[1];
+        }
+        String u = "/api/upload?uploadId=" + enc(uploadId);
+
+        Set<Integer> done = new HashSet<>();
+        for (String line : getText(u).split("\\R")) {
+            if (line.startsWith("part=")) done.add(Integer.parseInt(line.substring(5, line.indexOf(' '))));
+        }
+
+        long size = Files.size(file);
+        int parts = (int) Math.max(1, (size + PART_SIZE - 1) / PART_SIZE);
+        var pool = Executors.newFixedThreadPool(PART_CONNECTIONS);
+        try {
+            var sent = new ArrayList<Future<?>>();
+            for (int part = 1; part <= parts; part++) {
+                if (done.contains(part)) continue;
+                int n = part;
+                sent.add(pool.submit(() -> { putPart(u, file, n, size); return null; }));
+            }
+            for (var f : sent) f.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("upload " + uploadId + " incomplete (resumable): " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return post(u);
+    }
+
+    private void putPart(String u, Path file, int part, long size) throws Exception {
+        long offset = (long) (part - 1) * PART_SIZE;
+        byte[] data = new byte[(int) Math.min(PART_SIZE, size - offset)];
+        try (var ch = FileChannel.open(file)) {
+            var buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining() && ch.read(buf, offset + buf.position()) >= 0) {}
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                HttpResponse<String> r = http.send(
+                        req(u + "&part=" + part).PUT(HttpRequest.BodyPublishers.ofByteArray(data)).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                if (r.statusCode() < 500 || attempt == PART_ATTEMPTS) {
+                    throwIfError(r);
+                    return;
+                }
+            } catch (IOException e) {
+                if (attempt == PART_ATTEMPTS) throw e;
+            }
+            Thread.sleep(500L * attempt);
+        }
+    }
+
+    /** Returns the server's reply, or null if a full upload should be done instead. */
+    private String putDelta(String q, Path file, String index, int chunkSize) throws Exception {
+        String[] lines = index.split("\\R");
+        long version = -1;
+        for (String kv : lines[0].split(" ")) {
+            if (kv.startsWith("version=")) version = Long.parseLong(kv.substring(8));
+        }
+        Set<String> known = new HashSet<>();
+        for (int i = 1; i < lines.length; i++) {
+            String h = lines[i].split(" ")[0];
+            if (h.length() == 64) known.add(h);
+        }
+        if (version < 0 || known.isEmpty()) return null;
+
+        // the delta body goes to a temp file first: it holds only the changed chunks
+        Path body = Files.createTempFile("cloudfs-delta", ".bin");
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            int reused = 0;
+            try (InputStream in = Files.newInputStream(file);
+                 var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(body)))) {
+                var chunks = ContentChunker.forAverage(chunkSize).reader(in);
+                byte[] chunk;
+                while ((chunk = chunks.nextChunk()) != null) {
+                    byte[] hash = md.digest(chunk);
+                    if (known.contains(HexFormat.of().formatHex(hash))) {
+                        out.writeByte('R');
+                        out.write(hash);
+                        reused++;
+                    } else {
+                        out.writeByte('D');
+                        out.writeInt(chunk.length);
+                        out.write(chunk);
+                    }
+                }
+            }
+            if (reused == 0) return null;
+
+            HttpResponse<String> r = http.send(
+                    req(q + "&delta=1&ifVersion=" + version).PUT(HttpRequest.BodyPublishers.ofFile(body)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (r.statusCode() == 409) return null;
+            throwIfError(r);
+            return r.body();
+        } finally {
+            Files.deleteIfExists(body);
+        }
+    }
+
     public void downloadTo(String pathAndQuery, Path out) throws Exception {
         HttpResponse<Path> r = http.send(
                 req(pathAndQuery).GET().build(),
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
@@ -244,7 +245,7 @@ public final class MainController {
 
         setStatus(filesStatusLabel, "Working...");
         runBg(() -> {
-                    api.putFile("/api/file?fileId=" + ApiClient.enc(id) + "&chunkSize=32768", chosen.toPath());
+                    api.uploadFile(id, chosen.toPath(), 32768);
                     return "Uploaded " + id;
                 },
                 ok -> {
@@ -504,7 +505,7 @@ public final class MainController {
 
     private interface Work<T> { T run() throws Exception; }
 
-    private <T> void runBg(Work<T> work, java.util.function.Consumer<T> ok, java.util.function.Consumer<String> err) {
+    private <T> void runBg(Work<T> work, Consumer<T> ok, Consumer<String> err) {
         busyOn();
         bg.submit(() -> {
             try {
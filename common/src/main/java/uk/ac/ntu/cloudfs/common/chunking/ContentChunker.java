@@ -0,0 +1,138 @@
+package uk.ac.ntu.cloudfs.common.chunking;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content-defined chunking (FastCDC style): a Gear rolling hash picks cut points from the data
+ * itself, so inserting or deleting bytes only changes the chunks around the edit instead of
+ * shifting every boundary after it.
+ *
+ * Cut points are never before {@code minSize} or after {@code maxSize}. Between min and the
+ * average a stricter mask is used, after it a looser one ("normalized chunking"), which keeps
+ * sizes close to the average. The gear table is derived from a fixed seed, so the LB and the
+ * client always agree on boundaries.
+ */
+public final class ContentChunker {
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // splitmix64 with a fixed seed: must never change, or chunk boundaries (and dedup) break
+        long x = 0x636c6f75646673L;
+        for (int i = 0; i < GEAR.length; i++) {
+            x += 0x9E3779B97F4A7C15L;
+            long z = x;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskStrict;
+    private final long maskLoose;
+
+    public ContentChunker(int minSize, int avgSize, int maxSize) {
+        if (minSize < 64 || avgSize <= minSize || maxSize <= avgSize) {
+            throw new IllegalArgumentException("need 64 <= min < avg < max");
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+        // high bits of a gear hash are the well-mixed ones, so the masks select from the top
+        this.maskStrict = topBits(bits + 2);
+        this.maskLoose = topBits(Math.max(1, bits - 2));
+    }
+
+    /** min = avg / 4, max = avg * 4, the usual FastCDC spread. */
+    public static ContentChunker forAverage(int avgSize) {
+        return new ContentChunker(Math.max(64, avgSize / 4), avgSize, avgSize * 4);
+    }
+
+    public int minSize() { return minSize; }
+    public int avgSize() { return avgSize; }
+    public int maxSize() { return maxSize; }
+
+    /**
+     * Length of the first chunk in {@code data[off, off+len)}. Only final when {@code len >= maxSize}
+     * or the data ends there.
+     */
+    public int cutPoint(byte[] data, int off, int len) {
+        if (len <= minSize) return len;
+        int n = Math.min(len, maxSize);
+        int normal = Math.min(avgSize, n);
+        long h = 0;
+        int i = minSize; // cut-point skipping: nothing before min can be a boundary
+        for (; i < normal; i++) {
+            h = (h << 1) + GEAR[data[off + i] & 0xff];
+            if ((h & maskStrict) == 0) return i + 1;
+        }
+        for (; i < n; i++) {
+            h = (h << 1) + GEAR[data[off + i] & 0xff];
+            if ((h & maskLoose) == 0) return i + 1;
+        }
+        return n;
+    }
+
+    public Reader reader(InputStream in) {
+        return new Reader(in);
+    }
+
+    private static long topBits(int n) {
+        return n >= 64 ? -1L : ((1L << n) - 1) << (64 - n);
+    }
+
+    /** Splits a stream into content-defined chunks, holding at most {@code 2 * maxSize} bytes. */
+    public final class Reader {
+        private final InputStream in;
+        private final byte[] buf = new byte[maxSize * 2];
+        private int start;
+        private int end;
+        private boolean eof;
+
+        private Reader(InputStream in) {
+            this.in = in;
+        }
+
+        /** Copies the next chunk into {@code out} (at least maxSize long); returns its length, 0 at end. */
+        public int next(byte[] out) throws IOException {
+            fill();
+            int len = end - start;
+            if (len == 0) return 0;
+            int cut = cutPoint(buf, start, len);
+            System.arraycopy(buf, start, out, 0, cut);
+            start += cut;
+            return cut;
+        }
+
+        /** Next chunk as an exactly sized array, or null at end. */
+        public byte[] nextChunk() throws IOException {
+            fill();
+            int len = end - start;
+            if (len == 0) return null;
+            int cut = cutPoint(buf, start, len);
+            byte[] out = new byte[cut];
+            System.arraycopy(buf, start, out, 0, cut);
+            start += cut;
+            return out;
+        }
+
+        private void fill() throws IOException {
+            if (end - start >= maxSize || eof) return;
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            while (end < buf.length) {
+                int r = in.read(buf, end, buf.length - end);
+                if (r == -1) { eof = true; break; }
+                end += r;
+                if (end >= maxSize) break;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package uk.ac.ntu.cloudfs.common.http;
+
+/**
+ * A single {@code Range: bytes=} request resolved against a resource of {@code total} bytes;
+ * {@code from} and {@code to} are inclusive.
+ */
+public record ByteRange(long from, long to, long total) {
+
+    /** Returned by {@link #parse} when the range cannot be served (answer 416). */
+    public static final ByteRange UNSATISFIABLE = new ByteRange(0, -1, 0);
+
+    public long length() {
+        return to - from + 1;
+    }
+
+    public String contentRange() {
+        return "bytes " + from + "-" + to + "/" + total;
+    }
+
+    public static String unsatisfiedContentRange(long total) {
+        return "bytes */" + total;
+    }
+
+    /**
+     * Parses {@code bytes=a-b}, {@code bytes=a-} and {@code bytes=-n}. Returns null when the
+     * whole resource should be sent instead: no header, or one that is ignored (malformed, other
+     * units, or several ranges).
+     */
+    public static ByteRange parse(String header, long total) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0 || total == 0) return UNSATISFIABLE;
+                return new ByteRange(Math.max(0, total - suffix), total - 1, total);
+            }
+            boolean open = dash == spec.length() - 1;
+            long from = Long.parseLong(spec.substring(0, dash));
+            long to = open ? total - 1 : Long.parseLong(spec.substring(dash + 1));
+            if (from < 0 || !open && to < from) return null;
+            if (from >= total) return UNSATISFIABLE;
+            return new ByteRange(from, Math.min(to, total - 1), total);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package uk.ac.ntu.cloudfs.common.scheduler;
+
+/**
+ * Per-node circuit breaker driven by data-path outcomes.
+ *
+ * CLOSED: traffic flows; the last {@code WINDOW} outcomes are tracked and the breaker trips
+ * on a high failure/slow rate or a run of consecutive failures. OPEN: no new traffic until the
+ * cool-down expires (doubling on every re-open). HALF_OPEN: a few trial calls are let through;
+ * enough successes close the breaker, any failure re-opens it.
+ *
+ * A CLOSED breaker never trips by itself: an outcome that calls for it returns true, and the
+ * caller decides whether to {@link #trip} (e.g. not when too much of the cluster is already ejected).
+ */
+public final class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int WINDOW = 20;
+    private static final int MIN_CALLS = 10;
+    private static final double FAILURE_RATE = 0.5;
+    private static final double SLOW_RATE = 0.8;
+    private static final int CONSECUTIVE_FAILURES = 5;
+    private static final int HALF_OPEN_TRIALS = 3;
+    private static final long BASE_OPEN_MS = 10_000;
+    private static final long MAX_OPEN_MS = 300_000;
+
+    private final byte[] outcomes = new byte[WINDOW]; // 0 ok, 1 failure, 2 slow
+    private int size;
+    private int next;
+    private int failures;
+    private int slow;
+    private int consecutiveFailures;
+
+    private State state = State.CLOSED;
+    private long openUntilMs;
+    private long openMs = BASE_OPEN_MS;
+    private int trialsInFlight;
+    private int trialSuccesses;
+
+    public synchronized State state() {
+        return stateAt(System.currentTimeMillis());
+    }
+
+    /**
+     * Whether a scheduler may route new traffic to this node right now. Only a hint for ordering
+     * candidates: the call itself must still pass {@link #tryAcquire}.
+     */
+    public synchronized boolean allowsTraffic() {
+        return switch (stateAt(System.currentTimeMillis())) {
+            case CLOSED -> true;
+            case OPEN -> false;
+            case HALF_OPEN -> trialsInFlight < HALF_OPEN_TRIALS;
+        };
+    }
+
+    /**
+     * Admits one call, taking a trial slot when half-open; check and reservation happen under one
+     * lock so concurrent callers cannot exceed the trial budget. Only an admitted call's outcome
+     * should be reported back.
+     */
+    public synchronized boolean tryAcquire() {
+        return switch (stateAt(System.currentTimeMillis())) {
+            case CLOSED -> true;
+            case OPEN -> false;
+            case HALF_OPEN -> {
+                if (trialsInFlight >= HALF_OPEN_TRIALS) yield false;
+                trialsInFlight++;
+                yield true;
+            }
+        };
+    }
+
+    /** Returns true if the breaker is CLOSED and should now {@link #trip}. */
+    public synchronized boolean onSuccess(boolean slowCall) {
+        State s = stateAt(System.currentTimeMillis());
+        if (s == State.HALF_OPEN) {
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+            if (++trialSuccesses >= HALF_OPEN_TRIALS) close();
+            return false;
+        }
+        // a late reply to a call started before the trip must not restart the cool-down
+        if (s == State.OPEN) return false;
+        consecutiveFailures = 0;
+        add(slowCall ? (byte) 2 : (byte) 0);
+        return tripDue();
+    }
+
+    /** Returns true if the breaker is CLOSED and should now {@link #trip}; a failed trial re-opens it. */
+    public synchronized boolean onFailure() {
+        State s = stateAt(System.currentTimeMillis());
+        if (s == State.HALF_OPEN) {
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+            open(Math.min(openMs * 2, MAX_OPEN_MS));
+            return false;
+        }
+        if (s == State.OPEN) return false;
+        consecutiveFailures++;
+        add((byte) 1);
+        return tripDue();
+    }
+
+    /** Opens a CLOSED breaker whose recent outcomes still call for it; true if it did. */
+    public synchronized boolean trip() {
+        if (stateAt(System.currentTimeMillis()) != State.CLOSED || !tripDue()) return false;
+        open(BASE_OPEN_MS);
+        return true;
+    }
+
+    /** Call ended without telling us anything about the node (e.g. our own deadline ran out). */
+    public synchronized void onAbandoned() {
+        if (stateAt(System.currentTimeMillis()) == State.HALF_OPEN) trialsInFlight = Math.max(0, trialsInFlight - 1);
+    }
+
+    private boolean tripDue() {
+        return consecutiveFailures >= CONSECUTIVE_FAILURES
+                || (size >= MIN_CALLS && (failures >= size * FAILURE_RATE || slow >= size * SLOW_RATE));
+    }
+
+    private State stateAt(long nowMs) {
+        if (state == State.OPEN && nowMs >= openUntilMs) {
+            state = State.HALF_OPEN;
+            trialsInFlight = 0;
+            trialSuccesses = 0;
+        }
+        return state;
+    }
+
+    private void open(long durationMs) {
+        state = State.OPEN;
+        openMs = durationMs;
+        openUntilMs = System.currentTimeMillis() + durationMs;
+        size = next = failures = slow = consecutiveFailures = 0;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        openMs = BASE_OPEN_MS;
+        size = next = failures = slow = consecutiveFailures = 0;
+    }
+
+    private void add(byte outcome) {
+        if (size == WINDOW) {
+            byte old = outcomes[next];
+            if (old == 1) failures--;
+            if (old == 2) slow--;
+        } else {
+            size++;
+        }
+        outcomes[next] = outcome;
+        next = (next + 1) % WINDOW;
+        if (outcome == 1) failures++;
+        if (outcome == 2) slow++;
+    }
+}
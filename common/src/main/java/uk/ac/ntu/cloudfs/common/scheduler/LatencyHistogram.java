@@ -0,0 +1,117 @@
+package uk.ac.ntu.cloudfs.common.scheduler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory, lock-free latency histogram (milliseconds).
+ *
+ * Buckets are log-linear like HdrHistogram: values below 8 are exact, every power of two
+ * above that is split into 8 sub-buckets (~12.5% precision). Samples land in one of two
+ * time windows; a snapshot merges the current and previous window, so percentiles always
+ * describe the last one to two window lengths.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 32;
+    private static final long MAX_VALUE = (1L << MAX_EXP) - 1;
+    private static final int BUCKETS = (MAX_EXP - SUB_BITS) * SUB_COUNT + SUB_COUNT;
+
+    private final long windowMs;
+    private final Window[] windows = { new Window(), new Window() };
+
+    public LatencyHistogram(long windowMs) {
+        if (windowMs <= 0) throw new IllegalArgumentException("windowMs must be > 0");
+        this.windowMs = windowMs;
+    }
+
+    public void record(long valueMs) {
+        if (valueMs < 0) return;
+        long v = Math.min(valueMs, MAX_VALUE);
+        Window w = current(System.currentTimeMillis() / windowMs);
+        w.counts.incrementAndGet(index(v));
+        w.count.incrementAndGet();
+        w.sum.addAndGet(v);
+        w.max.accumulateAndGet(v, Math::max);
+    }
+
+    public Snapshot snapshot() {
+        long epoch = System.currentTimeMillis() / windowMs;
+        long[] counts = new long[BUCKETS];
+        long count = 0, sum = 0, max = 0;
+        for (Window w : windows) {
+            long e = w.epoch.get();
+            if (e != epoch && e != epoch - 1) continue;
+            for (int i = 0; i < BUCKETS; i++) counts[i] += w.counts.get(i);
+            count += w.count.get();
+            sum += w.sum.get();
+            max = Math.max(max, w.max.get());
+        }
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    public long percentile(double p) {
+        return snapshot().percentile(p);
+    }
+
+    public long count() {
+        return snapshot().count();
+    }
+
+    private Window current(long epoch) {
+        Window w = windows[(int) (epoch & 1)];
+        long seen = w.epoch.get();
+        if (seen < epoch && w.epoch.compareAndSet(seen, epoch)) {
+            // we won the rotation; samples racing with the reset are dropped, which is fine for stats
+            for (int i = 0; i < BUCKETS; i++) w.counts.set(i, 0);
+            w.count.set(0);
+            w.sum.set(0);
+            w.max.set(0);
+        }
+        return w;
+    }
+
+    static int index(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) ((v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /** Highest value that maps into the given bucket. */
+    static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        long lower = ((long) (SUB_COUNT + sub)) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    private static final class Window {
+        final AtomicLong epoch = new AtomicLong(-1);
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+    }
+
+    public record Snapshot(long[] counts, long count, long sum, long max) {
+        /** Value at or below which {@code p} percent of samples fall; 0 when empty. */
+        public long percentile(double p) {
+            if (count == 0) return 0;
+            long target = (long) Math.ceil(Math.max(0.0, Math.min(100.0, p)) / 100.0 * count);
+            if (target == 0) target = 1;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+
+        public long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+    }
+}
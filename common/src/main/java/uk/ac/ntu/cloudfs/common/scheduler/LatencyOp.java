@@ -0,0 +1,8 @@
+package uk.ac.ntu.cloudfs.common.scheduler;
+
+/** Kinds of node calls we keep separate latency histograms for. */
+public enum LatencyOp {
+    PING,
+    CHUNK_GET,
+    CHUNK_PUT
+}
@@ -1,20 +1,29 @@
 package uk.ac.ntu.cloudfs.common.scheduler;
 
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public final class NodeInfo {
+    private static final long LATENCY_WINDOW_MS = 60_000;
+
     private final String nodeId;
     private final String baseUrl;
 
     private final int priority; // NEW
 
     private volatile boolean healthy = true;
+    private volatile boolean draining = false;
+    private volatile NodeLoad load = NodeLoad.UNKNOWN;
+    private final CircuitBreaker breaker = new CircuitBreaker();
 
     // simple live metrics
     private final AtomicInteger inFlight = new AtomicInteger(0);
     private final AtomicLong emaLatencyMs = new AtomicLong(0);
+    private final LatencyHistogram latency = new LatencyHistogram(LATENCY_WINDOW_MS);
+    private final Map<LatencyOp, LatencyHistogram> latencyByOp = new EnumMap<>(LatencyOp.class);
 
     public NodeInfo(String nodeId, String baseUrl) {
         this(nodeId, baseUrl, 0); // default priority
@@ -24,6 +33,7 @@ public final class NodeInfo {
         this.nodeId = Objects.requireNonNull(nodeId);
         this.baseUrl = Objects.requireNonNull(baseUrl);
         this.priority = priority;
+        for (LatencyOp op : LatencyOp.values()) latencyByOp.put(op, new LatencyHistogram(LATENCY_WINDOW_MS));
     }
 
     public int priority() { return priority; } // NEW
@@ -34,21 +44,37 @@ public final class NodeInfo {
     public boolean healthy() { return healthy; }
     public void setHealthy(boolean healthy) { this.healthy = healthy; }
 
+    public CircuitBreaker breaker() { return breaker; }
+
+    /** Draining nodes keep serving reads of what they hold but get no new writes. */
+    public boolean draining() { return draining; }
+    public void setDraining(boolean draining) { this.draining = draining; }
+
+    public NodeLoad load() { return load; }
+    public void setLoad(NodeLoad load) { this.load = Objects.requireNonNull(load); }
+
     public int inFlight() { return inFlight.get(); }
     public void incInFlight() { inFlight.incrementAndGet(); }
     public void decInFlight() { inFlight.decrementAndGet(); }
 
     public long emaLatencyMs() { return emaLatencyMs.get(); }
 
-    
+    /** All-operations histogram (last 1-2 minutes). */
+    public LatencyHistogram latency() { return latency; }
+    public LatencyHistogram latency(LatencyOp op) { return latencyByOp.get(op); }
+
+    /** Latency percentile across all operations, 0 when no samples yet. */
+    public long latencyPercentileMs(double p) { return latency.percentile(p); }
+
     public void recordLatencyMs(long sampleMs) {
         if (sampleMs < 0) return;
-        long prev = emaLatencyMs.get();
-        if (prev == 0) {
-            emaLatencyMs.set(sampleMs);
-            return;
-        }
-        long updated = (long) (prev * 0.8 + sampleMs * 0.2);
-        emaLatencyMs.set(updated);
+        emaLatencyMs.updateAndGet(prev -> prev == 0 ? sampleMs : (long) (prev * 0.8 + sampleMs * 0.2));
+        latency.record(sampleMs);
+    }
+
+    public void recordLatencyMs(LatencyOp op, long sampleMs) {
+        if (sampleMs < 0) return;
+        recordLatencyMs(sampleMs);
+        latencyByOp.get(op).record(sampleMs);
     }
 }
\ No newline at end of file
@@ -0,0 +1,6 @@
+package uk.ac.ntu.cloudfs.common.scheduler;
+
+/** Load figures a storage node reports in its heartbeat. */
+public record NodeLoad(int inFlight, long storedBytes, long freeBytes, long reportedAtMs) {
+    public static final NodeLoad UNKNOWN = new NodeLoad(0, -1, -1, 0);
+}
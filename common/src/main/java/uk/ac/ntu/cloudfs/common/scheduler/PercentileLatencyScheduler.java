@@ -0,0 +1,36 @@
+package uk.ac.ntu.cloudfs.common.scheduler;
+
+import java.util.List;
+import java.util.Optional;
+
+/** Routes to the node with the lowest tail latency (e.g. p90/p99) instead of a mean. */
+public final class PercentileLatencyScheduler implements Scheduler {
+    private final double percentile;
+    private final String name;
+
+    public PercentileLatencyScheduler(double percentile) {
+        if (percentile <= 0 || percentile > 100) throw new IllegalArgumentException("percentile must be in (0,100]");
+        this.percentile = percentile;
+        this.name = "p" + (int) percentile + "_latency";
+    }
+
+    @Override
+    public String name() { return name; }
+
+    @Override
+    public Optional<NodeInfo> pick(List<NodeInfo> nodes) {
+        if (nodes == null || nodes.isEmpty()) return Optional.empty();
+
+        NodeInfo best = null;
+        long bestMs = Long.MAX_VALUE;
+        for (NodeInfo n : nodes) {
+            // nodes without samples score 0 so they get traffic and start producing measurements
+            long ms = n.latencyPercentileMs(percentile);
+            if (best == null || ms < bestMs || (ms == bestMs && n.inFlight() < best.inFlight())) {
+                best = n;
+                bestMs = ms;
+            }
+        }
+        return Optional.of(best);
+    }
+}
@@ -0,0 +1,80 @@
+package uk.ac.ntu.cloudfs.common.wire;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Framing for the storage node's batch endpoints, which move many chunks in one request. All
+ * integers are big-endian; a request and its response are each a record count followed by that
+ * many records.
+ * <pre>
+ *   key           u16 fileId length, fileId, u16 chunkId length, chunkId (UTF-8)
+ *   get request   key
+ *   put request   key, u32 crc32, u32 length, bytes
+ *   response      u8 status, u32 crc32, u32 length, bytes   (one per request record, same order;
+ *                                                             bytes only for a successful get)
+ * </pre>
+ * The CRC always covers the bytes as stored, so either side can verify a record on its own.
+ */
+public final class ChunkBatch {
+    public static final String GET_PATH = "/chunks/get";
+    public static final String PUT_PATH = "/chunks/put";
+
+    public static final int OK = 0;
+    public static final int NOT_FOUND = 1;
+    public static final int BAD_CRC = 2;
+    public static final int ERROR = 3;
+
+    /** Most records one request may carry. */
+    public static final int MAX_RECORDS = 4096;
+    /** Largest chunk a put record may carry. */
+    public static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private ChunkBatch() {}
+
+    public record Key(String fileId, String chunkId) {}
+
+    public static void writeKey(DataOutputStream out, String fileId, String chunkId) throws IOException {
+        writeString(out, fileId);
+        writeString(out, chunkId);
+    }
+
+    public static Key readKey(DataInputStream in) throws IOException {
+        return new Key(readString(in), readString(in));
+    }
+
+    public static void writeStatus(DataOutputStream out, int status, long crc32, byte[] data, int length) throws IOException {
+        out.writeByte(status);
+        out.writeInt((int) crc32);
+        out.writeInt(length);
+        if (length > 0) out.write(data, 0, length);
+    }
+
+    /** Reads a record count, rejecting anything outside 0..{@link #MAX_RECORDS}. */
+    public static int readCount(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > MAX_RECORDS) throw new IOException("bad record count " + n);
+        return n;
+    }
+
+    public static long crc32(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readUnsignedShort()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,58 @@
+package uk.ac.ntu.cloudfs.common.wire;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol between the load balancer and a storage node's {@code NODE_BIN_PORT}. A
+ * connection opens with {@link #MAGIC}; after that either side sends frames, and requests may be
+ * answered in any order, matched by id. All integers are big-endian.
+ * <pre>
+ *   request    u32 id, u8 op, u16 fileId length, fileId, u16 chunkId length, chunkId,
+ *              u32 length, bytes (PUT only)
+ *   response   u32 id, u8 status, u32 crc32 (PUT: of the bytes as stored), u32 length, bytes
+ *              (GET only)
+ * </pre>
+ * A node advertises the port at {@code GET /wire} ({@code BIN port=N}).
+ */
+public final class NodeWire {
+    public static final byte[] MAGIC = {'C', 'F', 'S', '1'};
+    public static final String PROBE_PATH = "/wire";
+
+    public static final int GET = 1;
+    public static final int PUT = 2;
+    public static final int DELETE = 3;
+
+    public static final int OK = 0;
+    public static final int NOT_FOUND = 1;
+    public static final int ERROR = 3;
+    /** DELETE of a chunk that was not there. */
+    public static final int ABSENT = 4;
+
+    public static final int RESPONSE_HEADER = 13;
+    public static final int MAX_BODY = ChunkBatch.MAX_RECORD_BYTES;
+
+    private NodeWire() {}
+
+    /** Request header; the PUT body follows separately so it can be written without copying. */
+    public static ByteBuffer request(int id, int op, String fileId, String chunkId, int length) {
+        byte[] f = fileId.getBytes(StandardCharsets.UTF_8);
+        byte[] c = chunkId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + 2 + f.length + 2 + c.length + 4);
+        b.putInt(id).put((byte) op);
+        b.putShort((short) f.length).put(f);
+        b.putShort((short) c.length).put(c);
+        b.putInt(length);
+        return b.flip();
+    }
+
+    public static ByteBuffer response(int id, int status, long crc32, int length) {
+        return ByteBuffer.allocate(RESPONSE_HEADER).putInt(id).put((byte) status).putInt((int) crc32).putInt(length).flip();
+    }
+
+    public static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_BODY) throw new IOException("bad frame length " + length);
+        return length;
+    }
+}
@@ -0,0 +1,132 @@
+package uk.ac.ntu.cloudfs.common.chunking;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentChunkerTest {
+    private static final int AVG = 8 * 1024;
+    private static final ContentChunker CDC = ContentChunker.forAverage(AVG);
+
+    @Test
+    void chunksReassembleWithinSizeBounds() throws IOException {
+        byte[] data = random(1, 2 * 1024 * 1024);
+        List<byte[]> chunks = cdc(data);
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            int len = chunks.get(i).length;
+            assertTrue(len <= CDC.maxSize(), "chunk over max: " + len);
+            if (i < chunks.size() - 1) assertTrue(len >= CDC.minSize(), "chunk under min: " + len);
+            joined.write(chunks.get(i));
+        }
+        assertArrayEquals(data, joined.toByteArray());
+
+        double mean = (double) data.length / chunks.size();
+        assertTrue(mean > AVG / 2.0 && mean < AVG * 2.0, "mean chunk size " + mean);
+    }
+
+    @Test
+    void boundariesDoNotDependOnReadSizes() throws IOException {
+        byte[] data = random(2, 512 * 1024);
+        List<byte[]> whole = cdc(data);
+        List<byte[]> trickled = new ArrayList<>();
+        ContentChunker.Reader r = CDC.reader(new TrickleStream(data, 1000));
+        for (byte[] c; (c = r.nextChunk()) != null; ) trickled.add(c);
+
+        assertTrue(whole.size() == trickled.size(), "chunk count differs");
+        for (int i = 0; i < whole.size(); i++) assertArrayEquals(whole.get(i), trickled.get(i));
+    }
+
+    /** The point of CDC over fixed chunking: an insert only disturbs the chunks around it. */
+    @Test
+    void insertKeepsMostChunksUnlikeFixedChunking() throws IOException {
+        byte[] data = random(3, 8 * 1024 * 1024);
+        byte[] edited = insert(data, data.length / 2, random(4, 100));
+
+        double cdcShared = shared(cdc(data), cdc(edited));
+        double fixedShared = shared(fixed(data), fixed(edited));
+
+        assertTrue(cdcShared > 0.95, "cdc kept only " + cdcShared);
+        assertTrue(fixedShared < 0.55, "fixed kept " + fixedShared);
+    }
+
+    @Test
+    void prependOnlyDisturbsTheFirstChunks() throws IOException {
+        byte[] data = random(5, 4 * 1024 * 1024);
+        List<byte[]> before = cdc(data);
+        List<byte[]> after = cdc(insert(data, 0, random(6, 37)));
+
+        Set<ByteBuffer> old = new HashSet<>();
+        for (byte[] c : before) old.add(ByteBuffer.wrap(c));
+        int changed = 0;
+        for (byte[] c : after) if (!old.contains(ByteBuffer.wrap(c))) changed++;
+        assertTrue(changed <= 2, changed + " chunks changed");
+    }
+
+    /** Fraction of {@code after}'s chunks that were already among {@code before}'s. */
+    private static double shared(List<byte[]> before, List<byte[]> after) {
+        Set<ByteBuffer> old = new HashSet<>();
+        for (byte[] c : before) old.add(ByteBuffer.wrap(c));
+        int hits = 0;
+        for (byte[] c : after) if (old.contains(ByteBuffer.wrap(c))) hits++;
+        return (double) hits / after.size();
+    }
+
+    private static List<byte[]> cdc(byte[] data) throws IOException {
+        List<byte[]> out = new ArrayList<>();
+        ContentChunker.Reader r = CDC.reader(new ByteArrayInputStream(data));
+        for (byte[] c; (c = r.nextChunk()) != null; ) out.add(c);
+        return out;
+    }
+
+    private static List<byte[]> fixed(byte[] data) {
+        List<byte[]> out = new ArrayList<>();
+        for (int off = 0; off < data.length; off += AVG) {
+            byte[] c = new byte[Math.min(AVG, data.length - off)];
+            System.arraycopy(data, off, c, 0, c.length);
+            out.add(c);
+        }
+        return out;
+    }
+
+    private static byte[] insert(byte[] data, int at, byte[] extra) {
+        byte[] out = new byte[data.length + extra.length];
+        System.arraycopy(data, 0, out, 0, at);
+        System.arraycopy(extra, 0, out, at, extra.length);
+        System.arraycopy(data, at, out, at + extra.length, data.length - at);
+        return out;
+    }
+
+    private static byte[] random(long seed, int size) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    /** Hands out at most {@code step} bytes per read, like a slow socket. */
+    private static final class TrickleStream extends ByteArrayInputStream {
+        private final int step;
+
+        TrickleStream(byte[] data, int step) {
+            super(data);
+            this.step = step;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, step));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package uk.ac.ntu.cloudfs.common.http;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ByteRangeTest {
+
+    @Test
+    void closedRange() {
+        ByteRange r = ByteRange.parse("bytes=10-19", 100);
+        assertEquals(new ByteRange(10, 19, 100), r);
+        assertEquals(10, r.length());
+        assertEquals("bytes 10-19/100", r.contentRange());
+    }
+
+    @Test
+    void endIsClampedToTheResource() {
+        assertEquals(new ByteRange(90, 99, 100), ByteRange.parse("bytes=90-500", 100));
+    }
+
+    @Test
+    void openRange() {
+        assertEquals(new ByteRange(40, 99, 100), ByteRange.parse("bytes=40-", 100));
+        assertEquals(new ByteRange(99, 99, 100), ByteRange.parse("bytes=99-", 100));
+    }
+
+    @Test
+    void suffixRange() {
+        assertEquals(new ByteRange(90, 99, 100), ByteRange.parse("bytes=-10", 100));
+        assertEquals(new ByteRange(0, 99, 100), ByteRange.parse("bytes=-500", 100));
+    }
+
+    @Test
+    void unsatisfiable() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=100-", 100));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=100-200", 100));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 100));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-5", 0));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=0-", 0));
+        assertEquals("bytes */100", ByteRange.unsatisfiedContentRange(100));
+    }
+
+    @Test
+    void ignoredHeadersMeanTheWholeResource() {
+        assertNull(ByteRange.parse(null, 100));
+        assertNull(ByteRange.parse("items=0-5", 100));
+        assertNull(ByteRange.parse("bytes=0-5,10-15", 100));
+        assertNull(ByteRange.parse("bytes=5", 100));
+        assertNull(ByteRange.parse("bytes=9-3", 100));
+        assertNull(ByteRange.parse("bytes=a-b", 100));
+    }
+}
@@ -1,14 +1,33 @@
 package uk.ac.ntu.cloudfs.lb;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.Connection;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.zip.CRC32;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,30 +36,45 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 
 import uk.ac.ntu.cloudfs.common.Version;
+import uk.ac.ntu.cloudfs.common.chunking.ContentChunker;
+import uk.ac.ntu.cloudfs.common.http.ByteRange;
+import uk.ac.ntu.cloudfs.common.scheduler.LatencyHistogram;
+import uk.ac.ntu.cloudfs.common.scheduler.LatencyOp;
 import uk.ac.ntu.cloudfs.common.scheduler.NodeInfo;
+import uk.ac.ntu.cloudfs.common.scheduler.NodeLoad;
 import uk.ac.ntu.cloudfs.common.scheduler.Scheduler;
 import uk.ac.ntu.cloudfs.lb.audit.AuditDao;
 import uk.ac.ntu.cloudfs.lb.auth.AclDao;
 import uk.ac.ntu.cloudfs.lb.auth.PasswordHasher;
 import uk.ac.ntu.cloudfs.lb.auth.SessionDao;
 import uk.ac.ntu.cloudfs.lb.auth.UserDao;
+import uk.ac.ntu.cloudfs.lb.core.ChunkCache;
+import uk.ac.ntu.cloudfs.lb.core.ChunkGc;
+import uk.ac.ntu.cloudfs.lb.core.ChunkIo;
 import uk.ac.ntu.cloudfs.lb.core.ChunkPlacement;
-import uk.ac.ntu.cloudfs.lb.core.Chunker;
+import uk.ac.ntu.cloudfs.lb.core.ContentIndex;
 import uk.ac.ntu.cloudfs.lb.core.Crypto;
+import uk.ac.ntu.cloudfs.lb.core.Deadline;
 import uk.ac.ntu.cloudfs.lb.core.FileLocks;
 import uk.ac.ntu.cloudfs.lb.core.FileManifestStore;
 import uk.ac.ntu.cloudfs.lb.core.HealthChecker;
 import uk.ac.ntu.cloudfs.lb.core.JobQueue;
+import uk.ac.ntu.cloudfs.lb.core.NodeBatcher;
 import uk.ac.ntu.cloudfs.lb.core.NodeConfig;
 import uk.ac.ntu.cloudfs.lb.core.NodeRegistry;
+import uk.ac.ntu.cloudfs.lb.core.OutlierEjector;
 import uk.ac.ntu.cloudfs.lb.core.ProxyClient;
-import uk.ac.ntu.cloudfs.lb.core.ReplicaPicker;
+import uk.ac.ntu.cloudfs.lb.core.RateLimiter;
+import uk.ac.ntu.cloudfs.lb.core.ReedSolomon;
 import uk.ac.ntu.cloudfs.lb.core.SchedulerFactory;
+import uk.ac.ntu.cloudfs.lb.core.UploadSource;
 import uk.ac.ntu.cloudfs.lb.db.Db;
 import uk.ac.ntu.cloudfs.lb.db.DbBootstrap;
 import uk.ac.ntu.cloudfs.lb.db.FileDao;
 import uk.ac.ntu.cloudfs.lb.db.MySqlReadDao;
 import uk.ac.ntu.cloudfs.lb.db.SqliteCacheDao;
+import uk.ac.ntu.cloudfs.lb.db.TombstoneDao;
+import uk.ac.ntu.cloudfs.lb.db.UploadDao;
 import uk.ac.ntu.cloudfs.lb.term.CwdDao;
 import uk.ac.ntu.cloudfs.lb.term.NanoDao;
 import uk.ac.ntu.cloudfs.lb.term.VfsIndex;
@@ -48,35 +82,106 @@ import uk.ac.ntu.cloudfs.lb.term.VfsIndex;
 public final class LoadBalancerMain {
     private static final Logger log = LoggerFactory.getLogger(LoadBalancerMain.class);
     private static final String BUILD_TAG = "test";
+    private static final ContentChunker NANO_CHUNKER = ContentChunker.forAverage(16 * 1024);
+    private static final int MAX_UPLOAD_PARTS = 10_000;
 
     public static void main(String[] args) throws IOException {
+        // read once by the JDK when the first HttpClient is built, so set before anything makes one
+        if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+            System.setProperty("jdk.httpclient.keepalive.timeout", String.valueOf(readIntEnv("LB_NODE_KEEPALIVE_S", 30)));
+        }
         int port = readIntEnv("LB_PORT", 8080);
         int workers = readIntEnv("LB_WORKERS", 4);
         int qcap = readIntEnv("LB_QUEUE_CAP", 50);
         int replicas = readIntEnv("LB_REPLICAS", 2);
 
         String schedulerName = System.getenv().getOrDefault("LB_SCHEDULER", "round_robin");
+        String nodeToken = System.getenv("LB_NODE_TOKEN");
+        if (nodeToken == null || nodeToken.isBlank()) log.warn("LB_NODE_TOKEN not set: node self-registration and heartbeats are refused");
         Scheduler scheduler = SchedulerFactory.create(schedulerName);
 
         NodeRegistry registry = new NodeRegistry();
         for (NodeInfo n : NodeConfig.fromEnv()) registry.addNode(n);
 
-        Thread hc = new Thread(new HealthChecker(registry, 2000));
+        HealthChecker healthChecker = new HealthChecker(registry,
+                readIntEnv("LB_HEALTH_INTERVAL_MS", 2000),
+                readIntEnv("LB_PHI_THRESHOLD", 8));
+        Thread hc = new Thread(healthChecker, "health-checker");
         hc.setDaemon(true);
         hc.start();
 
-        JobQueue jobQueue = new JobQueue(workers, qcap);
-        ProxyClient proxy = new ProxyClient();
-
-        FileLocks fileLocks = new FileLocks();
+        var laneDefaults = JobQueue.defaults(workers, qcap);
+        var lanes = new EnumMap<JobQueue.Lane, JobQueue.LaneConfig>(JobQueue.Lane.class);
+        for (JobQueue.Lane lane : JobQueue.Lane.values()) {
+            lanes.put(lane, JobQueue.LaneConfig.parse(System.getenv("LB_LANE_" + lane.name()), laneDefaults.get(lane)));
+        }
+        JobQueue jobQueue = new JobQueue(workers, lanes, readIntEnv("LB_USER_QUEUE_CAP", 0));
+
+        int userRps = readIntEnv("LB_USER_RPS", 0);
+        int userBps = readIntEnv("LB_USER_BPS", 0);
+        RateLimiter userRequests = new RateLimiter(userRps, readIntEnv("LB_USER_RPS_BURST", userRps * 2));
+        RateLimiter userBytes = new RateLimiter(userBps, readIntEnv("LB_USER_BPS_BURST", userBps));
+
+        int pingDeadlineMs = readIntEnv("LB_DEADLINE_PING_MS", 30_000);
+        int chunkDeadlineMs = readIntEnv("LB_DEADLINE_CHUNK_MS", 180_000);
+        // whole-file transfers have no total cap unless one is set: a large file may take any time
+        int fileDeadlineMs = readIntEnv("LB_DEADLINE_FILE_MS", 0);
+        // LB_NODE_BINARY=1: chunk calls use the binary protocol on nodes that run NODE_BIN_PORT
+        ProxyClient proxy = new ProxyClient(new ProxyClient.Settings(
+                readIntEnv("LB_NODE_MAX_CONNS", 32),
+                readIntEnv("LB_NODE_H2C", 0) == 1,
+                readIntEnv("LB_NODE_BINARY", 0) == 1,
+                readIntEnv("LB_NODE_BIN_CONNS", 2)));
+
+        FileLocks fileLocks = new FileLocks(readIntEnv("LB_LOCK_STRIPES", 256));
         Crypto crypto = Crypto.fromEnv();
 
+        OutlierEjector ejector = new OutlierEjector(registry,
+                readIntEnv("LB_SLOW_CALL_MS", 0),
+                readIntEnv("LB_MAX_EJECT_PERCENT", 50));
+        int cryptoThreads = readIntEnv("LB_CRYPTO_THREADS", Runtime.getRuntime().availableProcessors());
+        var cryptoPool = Executors.newFixedThreadPool(Math.max(1, cryptoThreads), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "crypto-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ContentIndex contentIndex = new ContentIndex(readIntEnv("LB_DEDUP", 0) == 1);
+        // LB_BATCH=1: chunks up to LB_BATCH_MAX_CHUNK bytes share requests to the same node
+        NodeBatcher.Settings batching = readIntEnv("LB_BATCH", 0) != 1 ? null : new NodeBatcher.Settings(
+                readIntEnv("LB_BATCH_MAX_CHUNK", 256 * 1024),
+                readIntEnv("LB_BATCH_MAX_RECORDS", 64),
+                readIntEnv("LB_BATCH_MAX_BYTES", 4 * 1024 * 1024),
+                readIntEnv("LB_BATCH_LINGER_US", 500));
+        // LB_CHUNK_CACHE_MB > 0: keep that much hot chunk plaintext (off the Java heap with LB_CHUNK_CACHE_OFFHEAP=1)
+        int chunkCacheMb = readIntEnv("LB_CHUNK_CACHE_MB", 0);
+        ChunkCache chunkCache = chunkCacheMb <= 0 ? null : new ChunkCache(chunkCacheMb * 1024L * 1024L,
+                readIntEnv("LB_CHUNK_CACHE_MAX_CHUNK", 8 * 1024 * 1024), readIntEnv("LB_CHUNK_CACHE_OFFHEAP", 0) == 1);
+        ChunkIo chunkIo = new ChunkIo(registry, scheduler, replicas, proxy, crypto, ejector,
+                cryptoPool, readIntEnv("LB_PIPELINE_WINDOW", Math.max(2, cryptoThreads)), contentIndex,
+                readIntEnv("LB_COMPRESS", 0) == 1,
+                ReedSolomon.parse(System.getenv("LB_EC")), readIntEnv("LB_EC_HEDGE_MS", 150), batching, chunkCache);
+
         ChunkPlacement placement = new ChunkPlacement();
         FileManifestStore manifests = new FileManifestStore();
 
         DbBootstrap.DbHandles dbh = DbBootstrap.init();
         FileDao fileDao = new FileDao();
+        ChunkGc.Tombstones tombstones = dbh.mysqlAvailable() ? mysqlTombstones(new TombstoneDao()) : ChunkGc.NO_TOMBSTONES;
+        ChunkGc chunkGc = new ChunkGc(placement, contentIndex, proxy, readIntEnv("LB_GC_GRACE_MS", fileDeadlineMs > 0 ? fileDeadlineMs : 300_000), (fileId, chunkIds) -> {
+            if (chunkCache != null) chunkCache.invalidate(fileId, chunkIds);
+            if (!dbh.mysqlAvailable()) return;
+            try (var mysql = Db.mysql()) {
+                fileDao.deletePlacements(mysql, fileId, chunkIds);
+            } catch (Exception ignored) {}
+        }, tombstones, readIntEnv("LB_GC_THREADS", 16), readIntEnv("LB_GC_RETRY_MS", 30_000));
+        // LB_DELETE_ASYNC=1: a file delete is acknowledged once its object deletes are recorded,
+        // without waiting for the nodes; failures are retried from the tombstones either way
+        boolean deleteAsync = readIntEnv("LB_DELETE_ASYNC", 0) == 1;
         SqliteCacheDao cacheDao = new SqliteCacheDao();
+        UploadDao uploadDao = new UploadDao();
 
         UserDao userDao = new UserDao();
         SessionDao sessionDao = new SessionDao();
@@ -94,12 +199,15 @@ public final class LoadBalancerMain {
 
                 for (var m : reader.loadAllManifests(mysql)) {
                     manifests.put(m.fileId(), m);
+                    manifests.observe(m.version());
                     try { cacheDao.upsertCachedFile(sqlite, m); } catch (Exception ignored) {}
                 }
 
                 for (var row : reader.loadAllPlacements(mysql)) {
-                    placement.put(row.fileId(), row.chunkId(),
-                            new ChunkPlacement.Entry(row.urls(), row.crc32(), row.bytes()));
+                    placement.put(row.fileId(), row.chunkId(), row.entry());
+                    contentIndex.restore(row.entry());
+                    // covers versions only a multipart part or a superseded manifest used
+                    manifests.observe(FileManifestStore.versionOf(row.chunkId()));
                 }
 
                 try {
@@ -113,6 +221,17 @@ public final class LoadBalancerMain {
             }
         }
 
+        if (dbh.mysqlAvailable()) {
+            long uploadIdleSeconds = readIntEnv("LB_UPLOAD_TTL_S", 24 * 3600);
+            var uploadGc = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "upload-gc");
+                t.setDaemon(true);
+                return t;
+            });
+            uploadGc.scheduleWithFixedDelay(() -> expireUploads(uploadIdleSeconds, uploadDao, fileLocks, chunkGc),
+                    1, Math.max(1, readIntEnv("LB_UPLOAD_GC_INTERVAL_S", 600)), TimeUnit.SECONDS);
+        }
+
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
         server.createContext("/health", ex -> reply(ex, 200, "OK"));
@@ -122,12 +241,14 @@ public final class LoadBalancerMain {
             if (!"GET".equalsIgnoreCase(ex.getRequestMethod())) { reply(ex, 405, "METHOD_NOT_ALLOWED"); return; }
             reply(ex, 200,
                     "BUILD=" + BUILD_TAG + "\n" +
-                            "/health\n/version\n/route\n/metrics\n" +
+                            "/health\n/version\n/route\n/metrics\n/metrics/nodes\n/metrics/queue\n/metrics/dedup\n/metrics/cache\n" +
                             "/api/auth/register\n/api/auth/login\n" +
                             "/api/files\n/api/ping\n" +
                             "/api/acl/grant\n/api/acl/revoke\n" +
                             "/api/admin/users\n/api/admin/create\n/api/admin/role\n/api/admin/audit\n" +
-                            "/api/chunk\n/api/file\n" +
+                            "/api/admin/nodes\n/api/admin/nodes/drain\n" +
+                            "/api/nodes/register\n/api/nodes/heartbeat\n" +
+                            "/api/chunk\n/api/file\n/api/file/chunks\n/api/upload\n" +
                             "/api/term\n"
             );
         });
@@ -145,11 +266,39 @@ public final class LoadBalancerMain {
             reply(ex, 200,
                     "scheduler=" + scheduler.name()
                             + " nodesHealthy=" + healthy + "/" + total
+                            + " ejected=" + ejector.ejectedCount()
                             + " workers=" + workers
                             + " queued=" + jobQueue.queued() + "/" + jobQueue.capacity()
                             + " mysql=" + (dbh.mysqlAvailable() ? "up" : "down"));
         });
 
+        server.createContext("/metrics/queue", ex -> reply(ex, 200, jobQueue.metrics()));
+        server.createContext("/metrics/dedup", ex -> reply(ex, 200, contentIndex.metrics()));
+        server.createContext("/metrics/cache", ex -> reply(ex, 200,
+                chunkCache == null ? "enabled=false\n" : "enabled=true " + chunkCache.metrics()));
+
+        server.createContext("/metrics/nodes", ex -> {
+            StringBuilder sb = new StringBuilder();
+            for (NodeInfo n : registry.all()) {
+                sb.append(n.nodeId())
+                        .append(" healthy=").append(n.healthy())
+                        .append(" draining=").append(n.draining())
+                        .append(" phi=").append(String.format("%.2f", healthChecker.phi(n.nodeId())))
+                        .append(" circuit=").append(n.breaker().state())
+                        .append(" inFlight=").append(n.inFlight())
+                        .append(" emaMs=").append(n.emaLatencyMs())
+                        .append(" reportedInFlight=").append(n.load().inFlight())
+                        .append(" storedBytes=").append(n.load().storedBytes())
+                        .append(" freeBytes=").append(n.load().freeBytes())
+                        .append(latencyStats("all", n.latency().snapshot()));
+                for (LatencyOp op : LatencyOp.values()) {
+                    sb.append(latencyStats(op.name().toLowerCase(), n.latency(op).snapshot()));
+                }
+                sb.append("\n");
+            }
+            reply(ex, 200, sb.toString().stripTrailing());
+        });
+
         // --- AUTH ---
 
         server.createContext("/api/auth/register", ex -> {
@@ -255,7 +404,7 @@ public final class LoadBalancerMain {
                         username, cwd, cmd,
                         cwdDao, vfs, aclDao, nanoDao,
                         manifests, placement,
-                        jobQueue, fileLocks, registry, scheduler, replicas, proxy, crypto,
+                        jobQueue, chunkGc, deleteAsync, chunkIo,
                         fileDao, cacheDao, dbh, auditDao,
                         sqlite,
                         remote(ex)
@@ -269,31 +418,31 @@ public final class LoadBalancerMain {
 
         server.createContext("/api/ping", ex -> {
             try {
-                var fut = jobQueue.submit(() -> {
+                Deadline deadline = deadlineFor(ex, pingDeadlineMs);
+                var fut = jobQueue.submit(JobQueue.Lane.INTERACTIVE, JobQueue.ANONYMOUS, 0, deadline, () -> {
                     var pick = scheduler.pick(registry.healthy());
                     if (pick.isEmpty()) return new Result(503, "NO_HEALTHY_NODES", null);
 
                     var node = pick.get();
                     long start = System.nanoTime();
-                    node.incInFlight();
                     try {
-                        String body = proxy.get(node.baseUrl() + "/ping", 120);
+                        String body = chunkIo.call(node, LatencyOp.PING, () -> proxy.get(node.baseUrl() + "/ping", 120));
                         long tookMs = (System.nanoTime() - start) / 1_000_000L;
-                        node.recordLatencyMs(tookMs);
                         return new Result(200, "LB(" + scheduler.name() + ") -> " + node.nodeId()
                                 + " in " + tookMs + "ms | " + body, null);
+                    } catch (Deadline.ExceededException de) {
+                        throw de;
                     } catch (Exception e) {
-                        node.setHealthy(false);
                         return new Result(502, "UPSTREAM_FAIL " + node.nodeId() + " " + e.getMessage(), null);
-                    } finally {
-                        node.decInFlight();
                     }
                 });
 
-                Result r = fut.get();
+                Result r = await(fut, deadline);
                 reply(ex, r.code, r.body);
-            } catch (java.util.concurrent.RejectedExecutionException rej) {
-                reply(ex, 429, "TOO_BUSY queue=" + jobQueue.queued() + "/" + jobQueue.capacity());
+            } catch (RejectedExecutionException rej) {
+                tooBusy(ex, jobQueue, JobQueue.Lane.INTERACTIVE, JobQueue.ANONYMOUS);
+            } catch (Deadline.ExceededException de) {
+                reply(ex, 504, "DEADLINE_EXCEEDED");
             } catch (Exception e) {
                 reply(ex, 500, "LB_ERROR " + e.getMessage());
             }
@@ -459,6 +608,123 @@ public final class LoadBalancerMain {
             }
         });
 
+        // --- NODE MEMBERSHIP ---
+
+        server.createContext("/api/nodes/register", ex -> {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) { reply(ex, 405, "METHOD_NOT_ALLOWED"); return; }
+            if (!nodeAuthorized(ex, nodeToken)) { reply(ex, 401, "INVALID_NODE_TOKEN"); return; }
+
+            String q = ex.getRequestURI().getQuery();
+            String nodeId = queryParam(q, "nodeId");
+            String url = queryParam(q, "url");
+            if (nodeId == null || url == null || nodeId.isBlank() || url.isBlank()) { reply(ex, 400, "MISSING nodeId/url"); return; }
+
+            int prio = 0;
+            try {
+                String pr = queryParam(q, "priority");
+                if (pr != null) prio = Integer.parseInt(pr.trim());
+            } catch (NumberFormatException ignored) {}
+
+            NodeInfo n = registry.register(new NodeInfo(nodeId.trim(), url.trim(), prio));
+            if (n == null && registry.removed(nodeId.trim())) {
+                reply(ex, 410, "NODE_REMOVED");
+                return;
+            }
+            if (n == null) {
+                log.warn("Refused registration of {} at {}: registered elsewhere", nodeId.trim(), url.trim());
+                reply(ex, 409, "NODE_URL_CONFLICT");
+                return;
+            }
+            log.info("Node registered: {} {}", n.nodeId(), n.baseUrl());
+            reply(ex, 200, "REGISTERED " + n.nodeId());
+        });
+
+        server.createContext("/api/nodes/heartbeat", ex -> {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) { reply(ex, 405, "METHOD_NOT_ALLOWED"); return; }
+            if (!nodeAuthorized(ex, nodeToken)) { reply(ex, 401, "INVALID_NODE_TOKEN"); return; }
+
+            String q = ex.getRequestURI().getQuery();
+            String nodeId = queryParam(q, "nodeId");
+            if (nodeId == null || nodeId.isBlank()) { reply(ex, 400, "MISSING nodeId"); return; }
+
+            NodeInfo n = registry.byId(nodeId.trim());
+            if (n == null && registry.removed(nodeId.trim())) { reply(ex, 410, "NODE_REMOVED"); return; } // node stays out
+            if (n == null) { reply(ex, 404, "UNKNOWN_NODE"); return; } // node re-registers on this
+
+            n.setLoad(new NodeLoad(
+                    (int) parseLong(queryParam(q, "inFlight"), 0),
+                    parseLong(queryParam(q, "storedBytes"), -1),
+                    parseLong(queryParam(q, "freeBytes"), -1),
+                    System.currentTimeMillis()));
+            reply(ex, 200, n.draining() ? "OK DRAINING" : "OK");
+        });
+
+        server.createContext("/api/admin/nodes", ex -> {
+            String admin = requireAdmin(ex, sessionDao, userDao);
+            if (admin == null) return;
+
+            String method = ex.getRequestMethod().toUpperCase();
+            String q = ex.getRequestURI().getQuery();
+
+            if ("GET".equals(method)) {
+                StringBuilder sb = new StringBuilder();
+                for (NodeInfo n : registry.all()) {
+                    sb.append(n.nodeId()).append(" ").append(n.baseUrl())
+                            .append(" prio=").append(n.priority())
+                            .append(" healthy=").append(n.healthy())
+                            .append(" draining=").append(n.draining())
+                            .append(" circuit=").append(n.breaker().state())
+                            .append("\n");
+                }
+                reply(ex, 200, sb.toString().stripTrailing());
+                return;
+            }
+
+            String nodeId = queryParam(q, "nodeId");
+            if (nodeId == null || nodeId.isBlank()) { reply(ex, 400, "MISSING nodeId"); return; }
+
+            if ("POST".equals(method)) {
+                String url = queryParam(q, "url");
+                if (url == null || url.isBlank()) { reply(ex, 400, "MISSING url"); return; }
+                int prio = 0;
+                try {
+                    String pr = queryParam(q, "priority");
+                    if (pr != null) prio = Integer.parseInt(pr.trim());
+                } catch (NumberFormatException ignored) {}
+
+                NodeInfo n = registry.upsert(new NodeInfo(nodeId.trim(), url.trim(), prio));
+                auditNodeChange(dbh, auditDao, admin, "NODE_ADD", n.nodeId() + " " + n.baseUrl(), remote(ex));
+                reply(ex, 200, "ADDED " + n.nodeId());
+                return;
+            }
+
+            if ("DELETE".equals(method)) {
+                NodeInfo removed = registry.remove(nodeId.trim());
+                auditNodeChange(dbh, auditDao, admin, "NODE_REMOVE", nodeId, remote(ex));
+                reply(ex, removed == null ? 404 : 200, removed == null ? "NOT_FOUND" : "REMOVED " + removed.nodeId());
+                return;
+            }
+
+            reply(ex, 405, "METHOD_NOT_ALLOWED");
+        });
+
+        server.createContext("/api/admin/nodes/drain", ex -> {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) { reply(ex, 405, "METHOD_NOT_ALLOWED"); return; }
+            String admin = requireAdmin(ex, sessionDao, userDao);
+            if (admin == null) return;
+
+            String q = ex.getRequestURI().getQuery();
+            String nodeId = queryParam(q, "nodeId");
+            if (nodeId == null || nodeId.isBlank()) { reply(ex, 400, "MISSING nodeId"); return; }
+            boolean drain = parseBool(queryParam(q, "drain"), true);
+
+            NodeInfo n = registry.byId(nodeId.trim());
+            if (n == null) { reply(ex, 404, "NOT_FOUND"); return; }
+            n.setDraining(drain);
+            auditNodeChange(dbh, auditDao, admin, drain ? "NODE_DRAIN" : "NODE_UNDRAIN", n.nodeId(), remote(ex));
+            reply(ex, 200, (drain ? "DRAINING " : "ACTIVE ") + n.nodeId());
+        });
+
         // --- DATA: chunk + file ---
 
         server.createContext("/api/chunk", ex -> {
@@ -473,40 +739,34 @@ public final class LoadBalancerMain {
             if (fileId == null || chunkId == null) { reply(ex, 400, "MISSING fileId/chunkId"); return; }
 
             String method = ex.getRequestMethod().toUpperCase();
+            JobQueue.Lane lane = laneFor(method);
+            Deadline deadline = deadlineFor(ex, chunkDeadlineMs);
+            if (!admit(ex, username, userRequests, userBytes)) return;
 
             try {
                 if ("PUT".equals(method)) {
                     if (!canWrite(aclDao, fileId, username)) { reply(ex, 403, "FORBIDDEN"); return; }
                     byte[] plain = ex.getRequestBody().readAllBytes();
+                    userBytes.charge(username, plain.length);
 
-                    var fut = jobQueue.submit(() ->
+                    var fut = jobQueue.submit(lane, username, plain.length, deadline, () ->
                             fileLocks.withWrite(fileId, () -> {
-                                var targets = ReplicaPicker.pick(registry.healthy(), scheduler, replicas);
+                                var targets = chunkIo.pickTargets();
                                 if (targets.isEmpty()) return new Result(503, "NO_HEALTHY_NODES", null);
-                                byte[] cipher = crypto.encrypt(fileId, chunkId, plain);
-                                long crcPlain = crc32(plain);
-
-                                List<String> storedOn = new ArrayList<>();
-                                for (var node : targets) {
-                                    node.incInFlight();
-                                    try {
-                                        proxy.putBytes(node.baseUrl() + "/chunk?fileId=" + fileId + "&chunkId=" + chunkId, cipher, 180);
-                                        storedOn.add(node.baseUrl());
-                                    } catch (Exception e) {
-                                        node.setHealthy(false);
-                                    } finally {
-                                        node.decInFlight();
-                                    }
-                                }
 
-                                if (storedOn.isEmpty()) return new Result(502, "ALL_REPLICAS_FAILED", null);
+                                // a rewrite goes under a new object id; the old one outlives readers (GC grace)
+                                var entry = chunkIo.storeFresh(fileId, chunkId, plain, targets, 180);
+                                if (entry == null) return new Result(502, "ALL_REPLICAS_FAILED", null);
 
-                                placement.put(fileId, chunkId, new ChunkPlacement.Entry(List.copyOf(storedOn), crcPlain, plain.length));
-                                return new Result(200, "STORED replicas=" + storedOn.size(), null);
+                                var previous = placement.get(fileId, chunkId);
+                                placement.put(fileId, chunkId, entry);
+                                if (previous != null) chunkGc.retireReplaced(fileId, chunkId, previous);
+                                if (chunkCache != null) chunkCache.invalidate(fileId, List.of(chunkId));
+                                return new Result(200, "STORED replicas=" + entry.nodeBaseUrls().size(), null);
                             })
                     );
 
-                    Result r = fut.get();
+                    Result r = await(fut, deadline);
                     reply(ex, r.code, r.body);
                     return;
                 }
@@ -514,25 +774,19 @@ public final class LoadBalancerMain {
                 if ("GET".equals(method)) {
                     if (!canRead(aclDao, fileId, username)) { reply(ex, 403, "FORBIDDEN"); return; }
 
-                    var fut = jobQueue.submit(() ->
-                            fileLocks.withRead(fileId, () -> {
-                                var entry = placement.get(fileId, chunkId);
-                                if (entry == null) return new Result(404, "UNKNOWN_CHUNK", null);
-
-                                for (String nodeUrl : entry.nodeBaseUrls()) {
-                                    try {
-                                        byte[] cipher = proxy.getBytes(nodeUrl + "/chunk?fileId=" + fileId + "&chunkId=" + chunkId, 180);
-                                        byte[] plain = crypto.decrypt(fileId, chunkId, cipher);
-                                        if (entry.crc32() != 0L && crc32(plain) != entry.crc32()) continue;
-                                        return new Result(200, null, plain);
-                                    } catch (Exception ignored) {}
-                                }
-                                return new Result(404, "NOT_FOUND_ON_ALL_REPLICAS", null);
-                            })
-                    );
+                    // only the placement lookup is optimistic; the fetch (network, breaker, cache) runs once, unlocked
+                    var fut = jobQueue.submit(lane, username, 0, deadline, () -> {
+                        var entry = fileLocks.withOptimisticRead(fileId, () -> placement.get(fileId, chunkId));
+                        if (entry == null) return new Result(404, "UNKNOWN_CHUNK", null);
+
+                        byte[] plain = chunkIo.fetch(fileId, chunkId, entry, 180);
+                        if (plain == null) return new Result(404, "NOT_FOUND_ON_ALL_REPLICAS", null);
+                        return new Result(200, null, plain);
+                    });
 
-                    Result r = fut.get();
+                    Result r = await(fut, deadline);
                     if (r.bytes != null) {
+                        userBytes.charge(username, r.bytes.length);
                         ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
                         ex.sendResponseHeaders(200, r.bytes.length);
                         try (var os = ex.getResponseBody()) { os.write(r.bytes); }
@@ -545,8 +799,144 @@ public final class LoadBalancerMain {
                 reply(ex, 405, "METHOD_NOT_ALLOWED");
             } catch (IOException io) {
                 reply(ex, 400, "BAD_BODY");
-            } catch (java.util.concurrent.RejectedExecutionException rej) {
-                reply(ex, 429, "TOO_BUSY queue=" + jobQueue.queued() + "/" + jobQueue.capacity());
+            } catch (RejectedExecutionException rej) {
+                tooBusy(ex, jobQueue, lane, username);
+            } catch (Deadline.ExceededException de) {
+                reply(ex, 504, "DEADLINE_EXCEEDED");
+            } catch (Exception e) {
+                reply(ex, 500, "LB_ERROR " + e.getMessage());
+            }
+        });
+
+        // per-chunk plaintext hashes of the current version, so a client can send a delta upload
+        server.createContext("/api/file/chunks", ex -> {
+            if (!"GET".equalsIgnoreCase(ex.getRequestMethod())) { reply(ex, 405, "METHOD_NOT_ALLOWED"); return; }
+            String username = requireUser(ex, sessionDao);
+            if (username == null) return;
+
+            String fileId = queryParam(ex.getRequestURI().getQuery(), "fileId");
+            if (fileId == null || fileId.isBlank()) { reply(ex, 400, "MISSING fileId"); return; }
+            if (!canRead(aclDao, fileId, username)) { reply(ex, 403, "FORBIDDEN"); return; }
+
+            var m = manifests.get(fileId);
+            if (m == null) { reply(ex, 404, "UNKNOWN_FILE"); return; }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("version=").append(m.version())
+                    .append(" chunkSize=").append(m.chunkSize())
+                    .append(" totalBytes=").append(m.totalBytes())
+                    .append(" chunks=").append(m.chunkIds().size()).append('\n');
+            for (String chunkId : m.chunkIds()) {
+                var entry = placement.get(fileId, chunkId);
+                sb.append(entry == null || entry.sha256() == null ? "-" : entry.sha256())
+                        .append(' ').append(entry == null ? 0 : entry.bytes()).append('\n');
+            }
+            reply(ex, 200, sb.toString());
+        });
+
+        // Multipart upload, for large files over several connections and resuming after a failure:
+        //   POST   ?fileId=F[&chunkSize=][&ifVersion=]  start a session -> UPLOAD_ID <id>
+        //   PUT    ?uploadId=U&part=N                   store part N now (any order, in parallel; resend to replace)
+        //   GET    ?uploadId=U                          parts acknowledged so far
+        //   POST   ?uploadId=U                          commit the parts in number order as the next version
+        //   DELETE ?uploadId=U                          abort
+        // Sessions idle for LB_UPLOAD_TTL_S are aborted by the upload GC.
+        server.createContext("/api/upload", ex -> {
+            if (!dbh.mysqlAvailable()) { reply(ex, 503, "MYSQL_REQUIRED"); return; }
+
+            String username = requireUser(ex, sessionDao);
+            if (username == null) return;
+
+            String q = ex.getRequestURI().getQuery();
+            String uploadId = queryParam(q, "uploadId");
+            String method = ex.getRequestMethod().toUpperCase();
+            JobQueue.Lane lane = laneFor(method);
+            Deadline deadline = deadlineFor(ex, fileDeadlineMs);
+            if (!admit(ex, username, userRequests, userBytes)) return;
+
+            try {
+                if (uploadId == null) {
+                    if (!"POST".equals(method)) { reply(ex, 400, "MISSING uploadId"); return; }
+                    String fileId = queryParam(q, "fileId");
+                    if (fileId == null || fileId.isBlank()) { reply(ex, 400, "MISSING fileId"); return; }
+                    if (!canWrite(aclDao, fileId, username)) { reply(ex, 403, "FORBIDDEN"); return; }
+                    String iv = queryParam(q, "ifVersion");
+                    Long ifVersion = iv == null ? null : parseLong(iv, Long.MIN_VALUE);
+                    if (ifVersion != null && ifVersion == Long.MIN_VALUE) { reply(ex, 400, "BAD ifVersion"); return; }
+
+                    var session = new UploadDao.Session(UUID.randomUUID().toString(), fileId, username,
+                            parseChunkSize(queryParam(q, "chunkSize")), ifVersion);
+                    try (var mysql = Db.mysql()) {
+                        uploadDao.create(mysql, session);
+                    }
+                    reply(ex, 200, "UPLOAD_ID " + session.uploadId() + " chunkSize=" + session.chunkSize());
+                    return;
+                }
+
+                UploadDao.Session session;
+                try (var mysql = Db.mysql()) {
+                    session = uploadDao.get(mysql, uploadId);
+                }
+                if (session == null) { reply(ex, 404, "NO_SUCH_UPLOAD"); return; }
+                if (!session.username().equals(username)) { reply(ex, 403, "FORBIDDEN"); return; }
+
+                if ("PUT".equals(method)) {
+                    long partNo = parseLong(queryParam(q, "part"), 0);
+                    if (partNo < 1 || partNo > MAX_UPLOAD_PARTS) { reply(ex, 400, "BAD part (1.." + MAX_UPLOAD_PARTS + ")"); return; }
+                    var in = new CountingBody(ex.getRequestBody());
+                    Result r;
+                    try {
+                        var fut = jobQueue.submit(lane, username, 0, deadline, () -> storeUploadPart(
+                                session, (int) partNo, UploadSource.fixed(in, session.chunkSize()),
+                                uploadDao, fileLocks, chunkGc, chunkIo, manifests, placement, fileDao));
+                        r = await(fut, deadline);
+                    } finally {
+                        chargeUpload(jobQueue, lane, userBytes, username, in.count());
+                    }
+                    reply(ex, r.code, r.body);
+                    return;
+                }
+
+                if ("GET".equals(method)) {
+                    StringBuilder sb = new StringBuilder();
+                    try (var mysql = Db.mysql()) {
+                        for (var part : uploadDao.listParts(mysql, uploadId)) {
+                            sb.append("part=").append(part.partNo())
+                                    .append(" bytes=").append(part.bytes())
+                                    .append(" chunks=").append(part.chunkIds().size()).append('\n');
+                        }
+                    }
+                    reply(ex, 200, "UPLOAD_ID " + uploadId + " fileId=" + session.fileId() + " chunkSize=" + session.chunkSize() + "\n" + sb);
+                    return;
+                }
+
+                if ("POST".equals(method)) {
+                    if (!canWrite(aclDao, session.fileId(), username)) { reply(ex, 403, "FORBIDDEN"); return; }
+                    var fut = jobQueue.submit(lane, username, 0, deadline, () -> completeUpload(
+                            session, uploadDao, fileLocks, chunkGc, manifests, placement, cacheDao, fileDao, aclDao));
+                    Result r = await(fut, deadline);
+
+                    try (var mysql = Db.mysql()) {
+                        auditDao.log(mysql, username, "UPLOAD", "file=" + session.fileId() + " upload=" + uploadId + " result=" + r.code, r.code == 200, remote(ex));
+                    } catch (Exception ignored) {}
+
+                    reply(ex, r.code, r.body);
+                    return;
+                }
+
+                if ("DELETE".equals(method)) {
+                    try (var mysql = Db.mysql()) {
+                        abortUpload(mysql, session, uploadDao, fileLocks, chunkGc);
+                    }
+                    reply(ex, 200, "ABORTED " + uploadId);
+                    return;
+                }
+
+                reply(ex, 405, "METHOD_NOT_ALLOWED");
+            } catch (RejectedExecutionException rej) {
+                tooBusy(ex, jobQueue, lane, username);
+            } catch (Deadline.ExceededException de) {
+                reply(ex, 504, "DEADLINE_EXCEEDED");
             } catch (Exception e) {
                 reply(ex, 500, "LB_ERROR " + e.getMessage());
             }
@@ -563,31 +953,51 @@ public final class LoadBalancerMain {
             if (fileId == null || fileId.isBlank()) { reply(ex, 400, "MISSING fileId"); return; }
 
             String method = ex.getRequestMethod().toUpperCase();
+            JobQueue.Lane lane = laneFor(method);
+            Deadline deadline = deadlineFor(ex, fileDeadlineMs);
+            if (!admit(ex, username, userRequests, userBytes)) return;
 
             try {
                 if ("PUT".equals(method)) {
                     if (!canWrite(aclDao, fileId, username)) { reply(ex, 403, "FORBIDDEN"); return; }
-                    byte[] bodyBytes = ex.getRequestBody().readAllBytes();
 
-                    int chunkSizeTmp = 1024 * 1024;
-                    String cs = queryParam(q, "chunkSize");
-                    if (cs != null) {
-                        try {
-                            int parsed = Integer.parseInt(cs.trim());
-                            if (parsed >= 4096 && parsed <= 4 * 1024 * 1024) chunkSizeTmp = parsed;
-                        } catch (NumberFormatException ignored) {}
+                    final int chunkSize = parseChunkSize(queryParam(q, "chunkSize"));
+                    String chunking = queryParam(q, "chunking");
+                    if (chunking != null && !chunking.equals("fixed") && !chunking.equals("cdc")) {
+                        reply(ex, 400, "BAD chunking (fixed|cdc)");
+                        return;
                     }
-                    final int chunkSize = chunkSizeTmp;
-
-                    var fut = jobQueue.submit(() ->
-                            storeBytesToFileId(
-                                    username, fileId, bodyBytes, chunkSize,
-                                    fileLocks, registry, scheduler, replicas, proxy, crypto,
+                    // with cdc, chunkSize is the average; cut points follow the content
+                    final ContentChunker cdc = "cdc".equals(chunking) ? ContentChunker.forAverage(chunkSize) : null;
+                    String iv = queryParam(q, "ifVersion");
+                    final Long ifVersion = iv == null ? null : parseLong(iv, Long.MIN_VALUE);
+                    if (ifVersion != null && ifVersion == Long.MIN_VALUE) { reply(ex, 400, "BAD ifVersion"); return; }
+
+                    // delta=1: the body is an UploadSource.delta stream against version ifVersion
+                    final boolean delta = "1".equals(queryParam(q, "delta"));
+                    if (delta && ifVersion == null) { reply(ex, 400, "DELTA_NEEDS ifVersion"); return; }
+                    if (delta && !canRead(aclDao, fileId, username)) { reply(ex, 403, "FORBIDDEN"); return; }
+
+                    // the body is read chunk by chunk on the worker, never held whole; it is charged
+                    // for what was actually read, since a chunked PUT declares no length
+                    var in = new CountingBody(ex.getRequestBody());
+                    Result r;
+                    try {
+                        var fut = jobQueue.submit(lane, username, 0, deadline, () -> {
+                            // a base that is not ifVersion any more fails the version check before anything is read
+                            UploadSource source = delta ? UploadSource.delta(in, UploadSource.reusable(manifests.get(fileId), placement))
+                                    : cdc != null ? UploadSource.contentDefined(in, cdc, Map.of())
+                                    : UploadSource.fixed(in, chunkSize);
+                            return storeBytesToFileId(
+                                    username, fileId, source, chunkSize, ifVersion,
+                                    chunkGc, chunkIo,
                                     manifests, placement, cacheDao, fileDao, aclDao
-                            )
-                    );
-
-                    Result r = fut.get();
+                            );
+                        });
+                        r = await(fut, deadline);
+                    } finally {
+                        chargeUpload(jobQueue, lane, userBytes, username, in.count());
+                    }
 
                     if (dbh.mysqlAvailable()) {
                         try (var mysql = Db.mysql()) {
@@ -602,35 +1012,73 @@ public final class LoadBalancerMain {
                 if ("GET".equals(method)) {
                     if (!canRead(aclDao, fileId, username)) { reply(ex, 403, "FORBIDDEN"); return; }
 
-                    var fut = jobQueue.submit(() ->
-                            fileLocks.withRead(fileId, () -> {
-                                var m = manifests.get(fileId);
-                                if (m == null) return new Result(404, "UNKNOWN_FILE", null);
+                    // manifests are immutable snapshots and old versions outlive readers (GC grace), so no lock.
+                    // Chunks are streamed to the client as they are verified; headers go out with the first one,
+                    // so failures before that still get a proper status and later ones abort the connection.
+                    String rangeHeader = ex.getRequestHeaders().getFirst("Range");
+                    ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+                    var body = new LazyResponse(ex);
+                    var fut = jobQueue.submit(lane, username, 0, deadline, () -> {
+                        try {
+                            var m = manifests.get(fileId);
+                            if (m == null) return new Result(404, "UNKNOWN_FILE", null);
+
+                            long total = m.totalBytes();
+                            ByteRange range = ByteRange.parse(rangeHeader, total);
+                            if (range == ByteRange.UNSATISFIABLE) {
+                                ex.getResponseHeaders().set("Content-Range", ByteRange.unsatisfiedContentRange(total));
+                                return new Result(416, "RANGE_NOT_SATISFIABLE", null);
+                            }
+                            long from = range == null ? 0 : range.from();
+                            long to = range == null ? total - 1 : range.to();
+                            if (range == null) body.length(total);
+                            else body.partial(range);
 
-                                var out = new java.io.ByteArrayOutputStream();
+                            // only the chunks covering [from, to]; up to window() of them fetched and decrypted concurrently
+                            var pending = new ArrayDeque<PendingRead>();
+                            try {
+                                long offset = 0;
                                 for (String chunkId : m.chunkIds()) {
                                     var entry = placement.get(fileId, chunkId);
                                     if (entry == null) return new Result(404, "MISSING_CHUNK " + chunkId, null);
 
-                                    byte[] plain = null;
-                                    for (String nodeUrl : entry.nodeBaseUrls()) {
-                                        try {
-                                            byte[] cipher = proxy.getBytes(nodeUrl + "/chunk?fileId=" + fileId + "&chunkId=" + chunkId, 300);
-                                            byte[] dec = crypto.decrypt(fileId, chunkId, cipher);
-                                            if (entry.crc32() != 0L && crc32(dec) != entry.crc32()) continue;
-                                            plain = dec;
-                                            break;
-                                        } catch (Exception ignored) {}
-                                    }
-                                    if (plain == null) return new Result(404, "CHUNK_UNAVAILABLE " + chunkId, null);
-                                    out.writeBytes(plain);
+                                    long start = offset;
+                                    offset += entry.bytes();
+                                    if (offset <= from) continue;
+                                    if (start > to) break;
+
+                                    int skip = (int) Math.max(0, from - start);
+                                    int take = (int) (Math.min(offset, to + 1) - start - skip);
+                                    pending.add(new PendingRead(chunkId, entry, skip, take, chunkIo.readAsync(fileId, chunkId, entry, 300)));
+
+                                    if (pending.size() >= chunkIo.window() && !writeNext(pending, fileId, chunkIo, body))
+                                        return new Result(404, "CHUNK_UNAVAILABLE " + pending.peek().chunkId(), null);
+                                }
+                                while (!pending.isEmpty()) {
+                                    if (!writeNext(pending, fileId, chunkIo, body))
+                                        return new Result(404, "CHUNK_UNAVAILABLE " + pending.peek().chunkId(), null);
                                 }
+                            } finally {
+                                for (PendingRead p : pending) p.plain().cancel(true);
+                            }
 
-                                return new Result(200, null, out.toByteArray());
-                            })
-                    );
+                            body.finish();
+                            return new Result(200, null, null);
+                        } finally {
+                            body.workerDone();
+                        }
+                    });
 
-                    Result r = fut.get();
+                    Result r;
+                    boolean handedOff = false;
+                    try {
+                        r = await(fut, deadline);
+                    } catch (Exception e) {
+                        // once streaming, the worker owns the exchange: only it may write to or close it
+                        if (body.abandon()) throw e;
+                        handedOff = true;
+                        r = new Result(e instanceof Deadline.ExceededException ? 504 : 500, "STREAM_ABORTED", null);
+                    }
 
                     if (dbh.mysqlAvailable()) {
                         try (var mysql = Db.mysql()) {
@@ -638,13 +1086,10 @@ public final class LoadBalancerMain {
                         } catch (Exception ignored) {}
                     }
 
-                    if (r.bytes != null) {
-                        ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
-                        ex.sendResponseHeaders(200, r.bytes.length);
-                        try (var os = ex.getResponseBody()) { os.write(r.bytes); }
-                    } else {
-                        reply(ex, r.code, r.body);
-                    }
+                    userBytes.charge(username, body.written());
+                    if (handedOff) return;
+                    if (!body.started()) reply(ex, r.code, r.body);
+                    else if (r.code != 200) ex.close(); // mid-stream failure: truncate so the client sees it
                     return;
                 }
 
@@ -652,34 +1097,10 @@ public final class LoadBalancerMain {
                     if (!canWrite(aclDao, fileId, username)) { reply(ex, 403, "FORBIDDEN"); return; }
 
                     try {
-                        var fut = jobQueue.submit(() -> {
-                            var m = manifests.get(fileId);
-
-                            if (m != null) {
-                                for (String chunkId : m.chunkIds()) placement.remove(fileId, chunkId);
-                                manifests.remove(fileId);
+                        var fut = jobQueue.submit(lane, username, 0, deadline, () ->
+                                deleteFileById(fileId, deleteAsync, manifests, chunkGc, cacheDao, fileDao, aclDao, dbh));
 
-                                for (NodeInfo n : registry.all()) {
-                                    try { proxy.delete(n.baseUrl() + "/file?fileId=" + fileId, 60); }
-                                    catch (Exception ignored) {}
-                                }
-                            }
-
-                            try (var sqlite = Db.sqlite()) {
-                                cacheDao.deleteCachedFile(sqlite, fileId);
-                            } catch (Exception ignored) {}
-
-                            if (dbh.mysqlAvailable()) {
-                                try (var mysql = Db.mysql()) {
-                                    fileDao.deleteFile(mysql, fileId);
-                                    aclDao.deleteAllForFile(mysql, fileId);
-                                } catch (Exception ignored) {}
-                            }
-
-                            return new Result(200, "DELETED fileId=" + fileId, null);
-                        });
-
-                        Result r = fut.get();
+                        Result r = await(fut, deadline);
 
                         if (dbh.mysqlAvailable()) {
                             try (var mysql = Db.mysql()) {
@@ -688,6 +1109,10 @@ public final class LoadBalancerMain {
                         }
 
                         reply(ex, r.code, r.body);
+                    } catch (RejectedExecutionException rej) {
+                        tooBusy(ex, jobQueue, lane, username);
+                    } catch (Deadline.ExceededException de) {
+                        reply(ex, 504, "DEADLINE_EXCEEDED");
                     } catch (Exception e) {
                         reply(ex, 500, "LB_ERROR " + e.getMessage());
                     }
@@ -697,20 +1122,25 @@ public final class LoadBalancerMain {
                 reply(ex, 405, "METHOD_NOT_ALLOWED");
             } catch (IOException io) {
                 reply(ex, 400, "BAD_BODY");
-            } catch (java.util.concurrent.RejectedExecutionException rej) {
-                reply(ex, 429, "TOO_BUSY queue=" + jobQueue.queued() + "/" + jobQueue.capacity());
+            } catch (RejectedExecutionException rej) {
+                tooBusy(ex, jobQueue, lane, username);
+            } catch (Deadline.ExceededException de) {
+                reply(ex, 504, "DEADLINE_EXCEEDED");
             } catch (Exception e) {
                 reply(ex, 500, "LB_ERROR " + e.getMessage());
             }
         });
 
-        server.setExecutor(null);
+        // a handler holds its thread while its job is queued and running, so there must be one
+        // for every worker and queue slot, plus some for endpoints that skip the queue
+        int httpThreads = readIntEnv("LB_HTTP_THREADS", workers + jobQueue.capacity() + 16);
+        server.setExecutor(httpExecutor(httpThreads));
         server.start();
 
         log.info("LoadBalancer started on port {} (build={})", port, BUILD_TAG);
         log.info("Scheduler: {}", scheduler.name());
         log.info("Configured nodes: {}", registry.all().size());
-        log.info("Queue: workers={} capacity={}", workers, qcap);
+        log.info("Queue: workers={} capacity={} httpThreads={}", workers, qcap, httpThreads);
     }
 
     // ----------------- TERM -----------------
@@ -724,12 +1154,9 @@ public final class LoadBalancerMain {
             FileManifestStore manifests,
             ChunkPlacement placement,
             JobQueue jobQueue,
-            FileLocks fileLocks,
-            NodeRegistry registry,
-            Scheduler scheduler,
-            int replicas,
-            ProxyClient proxy,
-            Crypto crypto,
+            ChunkGc chunkGc,
+            boolean deleteAsync,
+            ChunkIo chunkIo,
             FileDao fileDao,
             SqliteCacheDao cacheDao,
             DbBootstrap.DbHandles dbh,
@@ -804,8 +1231,8 @@ public final class LoadBalancerMain {
                 // then delete underlying file bytes + metadata (best effort)
                 try {
                     Result r = deleteFileById(
-                            fileId,
-                            manifests, placement, registry, proxy, cacheDao, fileDao, aclDao, dbh
+                            fileId, deleteAsync,
+                            manifests, chunkGc, cacheDao, fileDao, aclDao, dbh
                     );
 
                     if (dbh.mysqlAvailable()) {
@@ -829,7 +1256,7 @@ public final class LoadBalancerMain {
                 var existing = vfs.get(user, p);
                 if (existing != null) return "";
 
-                String fileId = java.util.UUID.randomUUID().toString();
+                String fileId = UUID.randomUUID().toString();
 
                 try {
                     vfs.touch(user, p, fileId);
@@ -847,7 +1274,7 @@ public final class LoadBalancerMain {
                 if (parts.length < 2) return "usage: cat <path>";
                 String p = normalizePath(cwd, parts[1]);
                 try {
-                    return readTextFile(user, p, vfs, aclDao, manifests, placement, proxy, crypto);
+                    return readTextFile(user, p, vfs, aclDao, manifests, placement, chunkIo);
                 } catch (Exception e) {
                     return e.getMessage();
                 }
@@ -928,7 +1355,7 @@ public final class LoadBalancerMain {
                 // create file if missing
                 var e = vfs.get(user, p);
                 if (e == null) {
-                    String fileId = java.util.UUID.randomUUID().toString();
+                    String fileId = UUID.randomUUID().toString();
                     vfs.touch(user, p, fileId);
                     bootstrapNewFile(user, fileId, manifests, cacheDao, fileDao, aclDao);
                     try (var mysql = Db.mysql()) {
@@ -940,7 +1367,7 @@ public final class LoadBalancerMain {
 
                 String initial;
                 try {
-                    initial = readTextFile(user, p, vfs, aclDao, manifests, placement, proxy, crypto);
+                    initial = readTextFile(user, p, vfs, aclDao, manifests, placement, chunkIo);
                 } catch (Exception ignored) {
                     initial = "";
                 }
@@ -992,10 +1419,16 @@ public final class LoadBalancerMain {
 
                 byte[] bytes = (s.buffer() == null ? "" : s.buffer()).getBytes(StandardCharsets.UTF_8);
 
+                // content-defined chunks, so an edit only stores the chunks around it; the rest are
+                // reused from the version the buffer replaces (pinned so a concurrent save is a conflict)
+                var base = manifests.get(fileId);
+                var source = UploadSource.contentDefined(new ByteArrayInputStream(bytes),
+                        NANO_CHUNKER, UploadSource.reusable(base, placement));
+
                 // IMPORTANT: do not enqueue / block on jobQueue here (terminal must be responsive)
                 Result r = storeBytesToFileId(
-                        user, fileId, bytes, 64 * 1024,
-                        fileLocks, registry, scheduler, replicas, proxy, crypto,
+                        user, fileId, source, NANO_CHUNKER.avgSize(), base == null ? FileManifestStore.ABSENT : base.version(),
+                        chunkGc, chunkIo,
                         manifests, placement, cacheDao, fileDao, aclDao
                 );
 
@@ -1017,114 +1450,354 @@ public final class LoadBalancerMain {
 
     // ----------------- STORE/READ HELPERS -----------------
 
+    /**
+     * Copy-on-write upload: chunks go to storage under a fresh version without any lock, then the
+     * manifest pointer is swapped by compare-and-set. {@code ifVersion} (null = whatever is current
+     * when the upload starts) is the version the caller expects to replace; a concurrent commit
+     * makes this one fail with 409 and its chunks are discarded. The replaced version's chunks are
+     * retired to the GC, except those the new version reuses.
+     */
     private static Result storeBytesToFileId(
             String username,
             String fileId,
-            byte[] bodyBytes,
+            UploadSource source,
             int chunkSize,
-            FileLocks fileLocks,
-            NodeRegistry registry,
-            Scheduler scheduler,
-            int replicas,
-            ProxyClient proxy,
-            Crypto crypto,
+            Long ifVersion,
+            ChunkGc chunkGc,
+            ChunkIo chunkIo,
             FileManifestStore manifests,
             ChunkPlacement placement,
             SqliteCacheDao cacheDao,
             FileDao fileDao,
             AclDao aclDao
     ) {
+        var previous = manifests.get(fileId);
+        long expected = ifVersion != null ? ifVersion
+                : previous == null ? FileManifestStore.ABSENT : previous.version();
+        if (ifVersion != null && (previous == null ? FileManifestStore.ABSENT : previous.version()) != expected) {
+            return new Result(409, "VERSION_CONFLICT current=" + (previous == null ? "none" : previous.version()), null);
+        }
 
-        try {
-            return fileLocks.withWrite(fileId, () -> {
-                var chunkIds = new ArrayList<String>();
-                long total = 0L;
+        long version = manifests.nextVersion();
+        var written = new WrittenChunks();
+        boolean committed = false;
 
-                try (var in = new java.io.ByteArrayInputStream(bodyBytes)) {
-                    int idx = 0;
-                    while (true) {
-                        byte[] plainChunk = Chunker.nextChunk(in, chunkSize);
-                        if (plainChunk == null) break;
+        try {
+            Result failed = writeChunks(fileId, source, version, chunkIo, placement, written);
+            if (failed != null) return failed;
 
-                        String chunkId = "c" + idx++;
-                        chunkIds.add(chunkId);
-                        total += plainChunk.length;
+            var manifest = new FileManifestStore.Manifest(fileId, written.total, chunkSize, List.copyOf(written.chunkIds), version);
+            if (!manifests.commit(fileId, expected, manifest)) {
+                var cur = manifests.get(fileId);
+                return new Result(409, "VERSION_CONFLICT current=" + (cur == null ? "none" : cur.version()), null);
+            }
+            committed = true;
+            publish(username, manifest, previous, written.created, chunkGc, placement, cacheDao, fileDao, aclDao);
 
-                        var targets = ReplicaPicker.pick(registry.healthy(), scheduler, replicas);
-                        if (targets.isEmpty()) return new Result(503, "NO_HEALTHY_NODES", null);
+            return new Result(200, "UPLOADED fileId=" + fileId + " bytes=" + written.total + " chunks=" + written.chunkIds.size()
+                    + " reused=" + written.reused + " version=" + version, null);
+        } catch (Deadline.ExceededException e) {
+            throw e;
+        } catch (Exception e) {
+            return new Result(500, "STORE_ERROR " + e.getMessage(), null);
+        } finally {
+            if (!committed) chunkGc.discard(fileId, written.created);
+        }
+    }
 
-                        byte[] cipherChunk = crypto.encrypt(fileId, chunkId, plainChunk);
-                        long crcPlain = crc32(plainChunk);
+    /**
+     * Stores {@code source}'s fresh pieces as chunks {@code v<version>_c<i>} and records them, and
+     * any reused base chunks, in {@code out}. Returns null once the source is drained, or the
+     * failure to report; either way {@code out.created} lists what was stored.
+     */
+    private static Result writeChunks(
+            String fileId,
+            UploadSource source,
+            long version,
+            ChunkIo chunkIo,
+            ChunkPlacement placement,
+            WrittenChunks out
+    ) throws Exception {
+        // read ahead and seal up to window() chunks on the crypto pool, and keep up to window() more
+        // on the wire; results are taken in file order
+        var pending = new ArrayDeque<PendingWrite>();
+        var storing = new ArrayDeque<PendingStore>();
+        try (source) {
+            int idx = 0;
+            boolean eof = false;
+            while (true) {
+                while (!eof && pending.size() < chunkIo.window()) {
+                    var piece = source.next();
+                    if (piece == null) { eof = true; break; }
+                    if (piece.reuseChunkId() != null) {
+                        pending.add(new PendingWrite(piece.reuseChunkId(), null, null));
+                        continue;
+                    }
+                    String chunkId = FileManifestStore.chunkId(version, idx++);
+                    pending.add(new PendingWrite(chunkId, piece.data(), chunkIo.sealAsync(fileId, chunkId, piece.data(), piece.length())));
+                }
+                PendingWrite next = pending.poll();
+                if (next == null && storing.isEmpty()) return null;
 
-                        List<String> storedOn = new ArrayList<>();
-                        for (var node : targets) {
-                            node.incInFlight();
-                            try {
-                                proxy.putBytes(node.baseUrl() + "/chunk?fileId=" + fileId + "&chunkId=" + chunkId, cipherChunk, 300);
-                                storedOn.add(node.baseUrl());
-                            } catch (Exception e) {
-                                node.setHealthy(false);
-                            } finally {
-                                node.decInFlight();
-                            }
+                if (next != null) {
+                    if (next.sealed() == null) {
+                        storing.add(new PendingStore(next.chunkId(), 0, null));
+                    } else {
+                        ChunkIo.Sealed sealed;
+                        try {
+                            sealed = next.sealed().get();
+                        } catch (ExecutionException e) {
+                            throw e.getCause() instanceof Exception c ? c : e;
                         }
+                        // sealing was the last read of the plaintext
+                        source.recycle(next.plain());
 
-                        if (storedOn.isEmpty()) return new Result(502, "ALL_REPLICAS_FAILED chunk=" + chunkId, null);
-
-                        placement.put(fileId, chunkId,
-                                new ChunkPlacement.Entry(List.copyOf(storedOn), crcPlain, plainChunk.length));
+                        var targets = chunkIo.pickTargets();
+                        if (targets.isEmpty()) return new Result(503, "NO_HEALTHY_NODES", null);
+                        storing.add(new PendingStore(next.chunkId(), sealed.plainLength(), chunkIo.putAsync(fileId, next.chunkId(), sealed, targets, 300)));
                     }
-                } catch (IOException io) {
-                    return new Result(500, "CHUNK_READ_ERROR", null);
+                    if (storing.size() < chunkIo.window() && !(eof && pending.isEmpty())) continue;
                 }
 
-                var manifest = new FileManifestStore.Manifest(fileId, total, chunkSize, List.copyOf(chunkIds));
-                manifests.put(fileId, manifest);
+                PendingStore done = storing.poll();
+                if (done.entry() == null) {
+                    // base chunk kept as is; it only vanishes if the base was replaced, which fails the commit anyway
+                    var entry = placement.get(fileId, done.chunkId());
+                    if (entry == null) return new Result(409, "VERSION_CONFLICT base chunk gone", null);
+                    out.chunkIds.add(done.chunkId());
+                    out.total += entry.bytes();
+                    out.reused++;
+                    continue;
+                }
 
-                try (var sqlite = Db.sqlite()) {
-                    cacheDao.upsertCachedFile(sqlite, manifest);
+                var entry = stored(done, fileId, placement, out);
+                if (entry == null) return new Result(502, "ALL_REPLICAS_FAILED chunk=" + done.chunkId(), null);
+                out.chunkIds.add(done.chunkId());
+                out.total += done.plainLength();
+            }
+        } catch (IOException io) {
+            return new Result(400, io.getMessage() == null ? "BAD_BODY" : "BAD_BODY " + io.getMessage(), null);
+        } finally {
+            for (PendingWrite p : pending) if (p.sealed() != null) p.sealed().cancel(true);
+            // puts already on the wire may still land; record them so the caller can discard them
+            for (PendingStore p : storing) {
+                if (p.entry() == null) continue;
+                try {
+                    stored(p, fileId, placement, out);
                 } catch (Exception ignored) {}
+            }
+        }
+    }
 
-                try (var mysql = Db.mysql()) {
-                    fileDao.upsertFile(mysql, manifest);
-                    for (String cid : manifest.chunkIds()) {
-                        var entry = placement.get(fileId, cid);
-                        if (entry != null) fileDao.upsertPlacement(mysql, fileId, cid, entry);
-                    }
-                    aclDao.ensureOwnerFullAccess(mysql, fileId, username);
-                } catch (Exception e) {
-                    log.warn("MySQL persist failed (upload kept): {}", e.getMessage());
-                }
+    /** Waits for a chunk put and records it as created; null if no replica took it. */
+    private static ChunkPlacement.Entry stored(PendingStore p, String fileId, ChunkPlacement placement, WrittenChunks out) throws Exception {
+        ChunkPlacement.Entry entry;
+        try {
+            entry = p.entry().get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception c ? c : e;
+        }
+        if (entry == null) return null;
+        placement.put(fileId, p.chunkId(), entry);
+        out.created.add(p.chunkId());
+        return entry;
+    }
+
+    /**
+     * After {@code manifest} has been committed: retires the chunks of {@code previous} it does not
+     * keep, and persists it along with the placement of the chunks in {@code created}.
+     */
+    private static void publish(
+            String username,
+            FileManifestStore.Manifest manifest,
+            FileManifestStore.Manifest previous,
+            List<String> created,
+            ChunkGc chunkGc,
+            ChunkPlacement placement,
+            SqliteCacheDao cacheDao,
+            FileDao fileDao,
+            AclDao aclDao
+    ) {
+        String fileId = manifest.fileId();
+        if (previous != null) {
+            var kept = new HashSet<>(manifest.chunkIds());
+            chunkGc.retire(fileId, previous.chunkIds().stream().filter(c -> !kept.contains(c)).toList());
+        }
+
+        try (var sqlite = Db.sqlite()) {
+            cacheDao.upsertCachedFile(sqlite, manifest);
+        } catch (Exception ignored) {}
+
+        try (var mysql = Db.mysql()) {
+            fileDao.upsertFile(mysql, manifest);
+            for (String cid : created) {
+                var entry = placement.get(fileId, cid);
+                if (entry != null) fileDao.upsertPlacement(mysql, fileId, cid, entry);
+            }
+            aclDao.ensureOwnerFullAccess(mysql, fileId, username);
+        } catch (Exception e) {
+            log.warn("MySQL persist failed (upload kept): {}", e.getMessage());
+        }
+    }
+
+    // ----------------- MULTIPART UPLOADS -----------------
+
+    private static ChunkGc.Tombstones mysqlTombstones(TombstoneDao dao) {
+        return new ChunkGc.Tombstones() {
+            @Override public void add(List<String> urls, long delayMs) throws Exception {
+                if (urls.isEmpty()) return;
+                try (var mysql = Db.mysql()) { dao.add(mysql, urls, delayMs); }
+            }
+            @Override public void done(List<String> urls) throws Exception {
+                try (var mysql = Db.mysql()) { dao.remove(mysql, urls); }
+            }
+            @Override public void failed(List<String> urls) throws Exception {
+                try (var mysql = Db.mysql()) { dao.failed(mysql, urls); }
+            }
+            @Override public List<String> due(int limit) throws Exception {
+                try (var mysql = Db.mysql()) { return dao.due(mysql, limit); }
+            }
+        };
+    }
+
+    private static String uploadLock(String uploadId) {
+        return "upload:" + uploadId;
+    }
+
+    /**
+     * Stores one part as chunks right away and records it on the session; a part sent again
+     * replaces the earlier copy, whose chunks are discarded.
+     */
+    private static Result storeUploadPart(
+            UploadDao.Session session,
+            int partNo,
+            UploadSource source,
+            UploadDao uploadDao,
+            FileLocks fileLocks,
+            ChunkGc chunkGc,
+            ChunkIo chunkIo,
+            FileManifestStore manifests,
+            ChunkPlacement placement,
+            FileDao fileDao
+    ) throws Exception {
+        String fileId = session.fileId();
+        var written = new WrittenChunks();
+        boolean recorded = false;
+        try {
+            Result failed = writeChunks(fileId, source, manifests.nextVersion(), chunkIo, placement, written);
+            if (failed != null) return failed;
+
+            try (var mysql = Db.mysql()) {
+                for (String cid : written.created) fileDao.upsertPlacement(mysql, fileId, cid, placement.get(fileId, cid));
+                var part = new UploadDao.Part(partNo, List.copyOf(written.chunkIds), written.total);
+                // serialised with complete/abort, so a part never lands on a finished session
+                List<String> replaced = fileLocks.withWrite(uploadLock(session.uploadId()), () ->
+                        uploadDao.get(mysql, session.uploadId()) == null ? null : uploadDao.putPart(mysql, session.uploadId(), part));
+                if (replaced == null) return new Result(404, "NO_SUCH_UPLOAD", null);
+                recorded = true;
+                chunkGc.discard(fileId, replaced);
+            }
+            return new Result(200, "PART part=" + partNo + " bytes=" + written.total + " chunks=" + written.chunkIds.size(), null);
+        } finally {
+            if (!recorded) chunkGc.discard(fileId, written.created);
+        }
+    }
+
+    /** Commits the parts, in part number order, as the file's next version and ends the session. */
+    private static Result completeUpload(
+            UploadDao.Session session,
+            UploadDao uploadDao,
+            FileLocks fileLocks,
+            ChunkGc chunkGc,
+            FileManifestStore manifests,
+            ChunkPlacement placement,
+            SqliteCacheDao cacheDao,
+            FileDao fileDao,
+            AclDao aclDao
+    ) throws Exception {
+        String fileId = session.fileId();
+        var previous = manifests.get(fileId);
+        long expected = session.ifVersion() != null ? session.ifVersion()
+                : previous == null ? FileManifestStore.ABSENT : previous.version();
 
-                return new Result(200, "UPLOADED fileId=" + fileId + " bytes=" + total + " chunks=" + chunkIds.size(), null);
+        try (var mysql = Db.mysql()) {
+            FileManifestStore.Manifest[] committed = { null };
+            Result failed = fileLocks.withWrite(uploadLock(session.uploadId()), () -> {
+                if (uploadDao.get(mysql, session.uploadId()) == null) return new Result(404, "NO_SUCH_UPLOAD", null);
+                var chunkIds = new ArrayList<String>();
+                long total = 0;
+                for (var part : uploadDao.listParts(mysql, session.uploadId())) {
+                    chunkIds.addAll(part.chunkIds());
+                    total += part.bytes();
+                }
+                var m = new FileManifestStore.Manifest(fileId, total, session.chunkSize(), List.copyOf(chunkIds), manifests.nextVersion());
+                if (!manifests.commit(fileId, expected, m)) {
+                    // the session stays, so the client can retry against the new version or abort
+                    var cur = manifests.get(fileId);
+                    return new Result(409, "VERSION_CONFLICT current=" + (cur == null ? "none" : cur.version()), null);
+                }
+                uploadDao.delete(mysql, session.uploadId());
+                committed[0] = m;
+                return null;
             });
+            if (failed != null) return failed;
+            var manifest = committed[0];
+
+            publish(session.username(), manifest, previous, List.of(), chunkGc, placement, cacheDao, fileDao, aclDao);
+            return new Result(200, "UPLOADED fileId=" + fileId + " bytes=" + manifest.totalBytes() + " chunks=" + manifest.chunkIds().size()
+                    + " version=" + manifest.version(), null);
+        }
+    }
+
+    /** Ends the session and discards every chunk its parts stored. */
+    private static void abortUpload(Connection mysql, UploadDao.Session session, UploadDao uploadDao, FileLocks fileLocks, ChunkGc chunkGc) throws Exception {
+        List<String> chunkIds = fileLocks.withWrite(uploadLock(session.uploadId()), () -> {
+            var out = new ArrayList<String>();
+            for (var part : uploadDao.listParts(mysql, session.uploadId())) out.addAll(part.chunkIds());
+            uploadDao.delete(mysql, session.uploadId());
+            return out;
+        });
+        chunkGc.discard(session.fileId(), chunkIds);
+    }
+
+    private static void expireUploads(long idleSeconds, UploadDao uploadDao, FileLocks fileLocks, ChunkGc chunkGc) {
+        try (var mysql = Db.mysql()) {
+            for (var session : uploadDao.listIdle(mysql, idleSeconds)) {
+                abortUpload(mysql, session, uploadDao, fileLocks, chunkGc);
+                log.info("Expired upload {} for {}", session.uploadId(), session.fileId());
+            }
         } catch (Exception e) {
-            return new Result(500, "STORE_ERROR " + e.getMessage(), null);
+            log.warn("Upload expiry failed: {}", e.getMessage());
         }
     }
 
+        /**
+         * Drops the file and hands its chunks to the GC, which deletes them only on the nodes that
+         * hold them, in parallel. Unless {@code async}, waits (within the request deadline) until
+         * every node has been tried; deletes that failed stay tombstoned and are retried.
+         */
         private static Result deleteFileById(
                 String fileId,
+                boolean async,
                 FileManifestStore manifests,
-                ChunkPlacement placement,
-                NodeRegistry registry,
-                ProxyClient proxy,
+                ChunkGc chunkGc,
                 SqliteCacheDao cacheDao,
                 FileDao fileDao,
                 AclDao aclDao,
                 DbBootstrap.DbHandles dbh
         ) {
             try {
-                var m = manifests.get(fileId);
+                var m = manifests.remove(fileId);
 
                 if (m != null) {
-                    for (String chunkId : m.chunkIds()) placement.remove(fileId, chunkId);
-                    manifests.remove(fileId);
-
-                    // best-effort: ask storage nodes to delete their local file copies
-                    for (NodeInfo n : registry.all()) {
-                        try { proxy.delete(n.baseUrl() + "/file?fileId=" + fileId, 60); }
-                        catch (Exception ignored) {}
+                    // also drops references to shared blobs
+                    var reaped = chunkGc.discard(fileId, m.chunkIds());
+                    if (!async) {
+                        try {
+                            reaped.get(Deadline.cap(Duration.ofSeconds(60)).toMillis(), TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException ignored) {
+                            // still tombstoned; the GC finishes it
+                        }
                     }
                 }
 
@@ -1152,8 +1825,7 @@ public final class LoadBalancerMain {
                 AclDao aclDao,
                 FileManifestStore manifests,
                 ChunkPlacement placement,
-                ProxyClient proxy,
-                Crypto crypto
+                ChunkIo chunkIo
         ) throws Exception {
 
         var e = vfs.get(username, path);
@@ -1172,15 +1844,7 @@ public final class LoadBalancerMain {
             if (pl == null || pl.nodeBaseUrls().isEmpty())
                 throw new IllegalArgumentException("cat: chunk missing");
 
-            byte[] plain = null;
-            for (String nodeUrl : pl.nodeBaseUrls()) {
-                try {
-                    byte[] cipher = proxy.getBytes(nodeUrl + "/chunk?fileId=" + fileId + "&chunkId=" + chunkId, 120);
-                    byte[] dec = crypto.decrypt(fileId, chunkId, cipher);
-                    plain = dec;
-                    break;
-                } catch (Exception ignored) {}
-            }
+            byte[] plain = chunkIo.fetch(fileId, chunkId, pl, 120);
             if (plain == null) throw new IllegalArgumentException("cat: chunk unavailable: " + chunkId);
 
             out.append(new String(plain, StandardCharsets.UTF_8));
@@ -1249,6 +1913,32 @@ public final class LoadBalancerMain {
         } catch (Exception ignored) {}
     }
 
+    /** Without a configured token no node may register or heartbeat. */
+    private static boolean nodeAuthorized(HttpExchange ex, String nodeToken) {
+        if (nodeToken == null || nodeToken.isBlank()) return false;
+        String given = ex.getRequestHeaders().getFirst("X-Node-Token");
+        return given != null && MessageDigest.isEqual(nodeToken.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void auditNodeChange(DbBootstrap.DbHandles dbh, AuditDao auditDao, String admin, String action, String detail, String remoteIp) {
+        if (!dbh.mysqlAvailable()) return;
+        try (var mysql = Db.mysql()) {
+            auditDao.log(mysql, admin, action, detail, true, remoteIp);
+        } catch (Exception ignored) {}
+    }
+
+    /** Requested chunk size if within 4 KiB..4 MiB, else the 1 MiB default. */
+    private static int parseChunkSize(String s) {
+        long parsed = parseLong(s, -1);
+        return parsed >= 4096 && parsed <= 4 * 1024 * 1024 ? (int) parsed : 1024 * 1024;
+    }
+
+    private static long parseLong(String s, long def) {
+        if (s == null || s.isBlank()) return def;
+        try { return Long.parseLong(s.trim()); }
+        catch (NumberFormatException e) { return def; }
+    }
+
     private static boolean parseBool(String s, boolean def) {
         if (s == null) return def;
         return "true".equalsIgnoreCase(s) || "1".equals(s) || "yes".equalsIgnoreCase(s);
@@ -1319,10 +2009,86 @@ public final class LoadBalancerMain {
         catch (Exception e) { return s; }
     }
 
-    private static long crc32(byte[] data) {
-        CRC32 crc = new CRC32();
-        crc.update(data);
-        return crc.getValue();
+    private static String latencyStats(String label, LatencyHistogram.Snapshot s) {
+        return " " + label + ".n=" + s.count()
+                + " " + label + ".p50=" + s.percentile(50)
+                + " " + label + ".p90=" + s.percentile(90)
+                + " " + label + ".p99=" + s.percentile(99)
+                + " " + label + ".max=" + s.max();
+    }
+
+    /**
+     * Client-supplied X-Timeout-Ms may shorten, never extend, the endpoint's default budget. A
+     * default of 0 means no budget, so the request has a deadline only if the client asks for one.
+     */
+    private static Deadline deadlineFor(HttpExchange ex, long defaultMs) {
+        long ms = parseLong(ex.getRequestHeaders().getFirst("X-Timeout-Ms"), defaultMs);
+        if (defaultMs <= 0) return ms > 0 ? Deadline.afterMs(ms) : null;
+        if (ms <= 0 || ms > defaultMs) ms = defaultMs;
+        return Deadline.afterMs(ms);
+    }
+
+    /**
+     * Waits for a queued task no longer than its deadline. On expiry the task is cancelled, which
+     * drops it if it is still queued; a running task is left to finish. No deadline waits for good.
+     */
+    private static <T> T await(Future<T> fut, Deadline deadline) throws Exception {
+        try {
+            return deadline == null ? fut.get() : fut.get(deadline.remainingMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            fut.cancel(false);
+            throw new Deadline.ExceededException("request deadline");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Deadline.ExceededException de) throw de;
+            throw e;
+        }
+    }
+
+    /** Threads for HttpServer handlers, so requests wait in the lanes rather than behind each other. */
+    static ExecutorService httpExecutor(int threads) {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "http-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Reads go to the interactive lane, writes to bulk, deletes to background. */
+    private static JobQueue.Lane laneFor(String method) {
+        return switch (method) {
+            case "PUT", "POST" -> JobQueue.Lane.BULK;
+            case "DELETE" -> JobQueue.Lane.BACKGROUND;
+            default -> JobQueue.Lane.INTERACTIVE;
+        };
+    }
+
+    private static void tooBusy(HttpExchange ex, JobQueue jobQueue, JobQueue.Lane lane, String username) throws IOException {
+        ex.getResponseHeaders().set("Retry-After", "1");
+        reply(ex, 429, "TOO_BUSY lane=" + lane.name().toLowerCase()
+                + " queue=" + jobQueue.queued(lane) + "/" + jobQueue.capacity(lane)
+                + " user=" + jobQueue.queued(lane, username) + "/" + jobQueue.userCapacity(lane));
+    }
+
+    /**
+     * Per-user token buckets: one request token, and no byte debt. Bytes are charged after the
+     * fact for uploads and downloads alike (a chunked upload declares no length), so a user in
+     * byte debt is refused until it is paid back.
+     */
+    private static boolean admit(HttpExchange ex, String username, RateLimiter requests, RateLimiter bytes) throws IOException {
+        long wait = requests.acquire(username, 1);
+        if (wait == 0) wait = bytes.acquire(username, 0);
+        if (wait == 0) return true;
+
+        ex.getResponseHeaders().set("Retry-After", String.valueOf(wait));
+        reply(ex, 429, "RATE_LIMITED retryAfter=" + wait + "s");
+        return false;
+    }
+
+    /** Bytes an upload actually read, into the user's byte bucket and DRR cost. */
+    private static void chargeUpload(JobQueue jobQueue, JobQueue.Lane lane, RateLimiter bytes, String username, long read) {
+        bytes.charge(username, read);
+        jobQueue.charge(lane, username, read);
     }
 
     private static void reply(HttpExchange ex, int code, String body) throws IOException {
@@ -1334,4 +2100,158 @@ public final class LoadBalancerMain {
     }
 
     private record Result(int code, String body, byte[] bytes) {}
-}
\ No newline at end of file
+
+    /** What {@link #writeChunks} has stored so far; {@code created} excludes reused chunks. */
+    private static final class WrittenChunks {
+        final List<String> chunkIds = new ArrayList<>();
+        final List<String> created = new ArrayList<>();
+        long total;
+        int reused;
+    }
+
+    /** A chunk put in flight ({@code entry} null for a reused base chunk). */
+    private record PendingStore(String chunkId, int plainLength, Future<ChunkPlacement.Entry> entry) {}
+
+    /** {@code sealed} is null for a base-version chunk that is reused rather than stored. */
+    private record PendingWrite(String chunkId, byte[] plain, Future<ChunkIo.Sealed> sealed) {}
+
+    /** {@code plain[skip, skip + take)} is the part of the chunk the response needs. */
+    private record PendingRead(String chunkId, ChunkPlacement.Entry entry, int skip, int take, Future<byte[]> plain) {}
+
+    /**
+     * Writes the oldest pending chunk. If its replica gave bad data, falls back to trying every
+     * replica synchronously. Returns false (leaving the chunk queued) if none gave valid data.
+     */
+    private static boolean writeNext(ArrayDeque<PendingRead> pending, String fileId, ChunkIo chunkIo, OutputStream out) throws Exception {
+        PendingRead p = pending.peek();
+        byte[] plain;
+        try {
+            plain = p.plain().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Deadline.ExceededException de) throw de;
+            // one more go at every replica before giving up on the chunk
+            plain = chunkIo.fetch(fileId, p.chunkId(), p.entry(), 300);
+            if (plain == null) return false;
+        }
+        out.write(plain, p.skip(), p.take());
+        pending.poll();
+        return true;
+    }
+
+    /**
+     * Response body that sends 200 (or 206) headers on the first write (or on finish, for empty files).
+     * The handler and the worker writing it hand the exchange over through {@link #abandon} and
+     * {@link #workerDone}, so it is never written or closed by both.
+     */
+    private static final class LazyResponse extends OutputStream {
+        private final HttpExchange ex;
+        private volatile int status = 200;
+        private volatile long length;
+        private volatile long written;
+        private OutputStream os;
+        private boolean abandoned;
+        private boolean workerDone;
+
+        LazyResponse(HttpExchange ex) {
+            this.ex = ex;
+        }
+
+        void length(long length) {
+            this.length = length;
+        }
+
+        /** Answers 206 with just {@code range} instead of 200. */
+        void partial(ByteRange range) {
+            this.status = 206;
+            this.length = range.length();
+            ex.getResponseHeaders().set("Content-Range", range.contentRange());
+        }
+
+        synchronized boolean started() {
+            return os != null;
+        }
+
+        /**
+         * The handler gives up waiting. Returns true if nothing was sent, in which case nothing
+         * ever will be and the handler answers. Otherwise the worker's writes fail from now on and
+         * the exchange is closed here if the worker is already done with it, else by the worker.
+         */
+        synchronized boolean abandon() {
+            abandoned = true;
+            if (os == null) return true;
+            if (workerDone) ex.close();
+            return false;
+        }
+
+        /** The worker is finished with the exchange, however it ended. */
+        synchronized void workerDone() {
+            workerDone = true;
+            if (abandoned && os != null) ex.close();
+        }
+
+        long written() {
+            return written;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start().write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start().write(b, off, len);
+            written += len;
+        }
+
+        void finish() throws IOException {
+            start().close();
+        }
+
+        private synchronized OutputStream start() throws IOException {
+            if (abandoned) throw new IOException("response abandoned");
+            if (os == null) {
+                ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                // 0 would mean chunked encoding to HttpServer; -1 is "no body"
+                ex.sendResponseHeaders(status, length == 0 ? -1 : length);
+                os = ex.getResponseBody();
+            }
+            return os;
+        }
+    }
+
+    /** Request body that counts what was read from it. */
+    private static final class CountingBody extends FilterInputStream {
+        private final AtomicLong read = new AtomicLong();
+
+        CountingBody(InputStream in) {
+            super(in);
+        }
+
+        long count() {
+            return read.get();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) read.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) read.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) read.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Verified plaintext of recently read chunks, bounded in bytes, so a hot file is served without
+ * a node round trip or a decrypt. Eviction is W-TinyLFU: every new chunk enters a small LRU
+ * window, and one leaving the window only displaces a chunk from the main area (a segmented LRU)
+ * if a count-min sketch of recent requests says it is wanted more often. A one-off scan of a large
+ * file therefore flows through the window without flushing the hot set.
+ *
+ * Keys carry the chunk's plaintext SHA-256 as its version, so a chunk rewritten under the same id
+ * can never be served stale; {@link #invalidate} only frees the memory early. Off-heap, values
+ * live in direct buffers and each hit is copied out; on-heap, the cached array itself is handed
+ * out and must not be modified.
+ */
+public final class ChunkCache {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    public record Key(String fileId, String chunkId, String version) {}
+
+    private final long maxBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final int maxEntryBytes;
+    private final boolean offHeap;
+    private final Sketch sketch;
+
+    // LRU order: the first entry is the next victim
+    private final LinkedHashMap<Key, Node> window = new LinkedHashMap<>();
+    private final LinkedHashMap<Key, Node> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<Key, Node> protectedArea = new LinkedHashMap<>();
+    private final HashMap<Key, Node> all = new HashMap<>();
+    private final HashMap<String, Set<Key>> byFile = new HashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private long hits;
+    private long misses;
+    private long hitBytes;
+    private long evictions;
+    private long rejected;
+    private long invalidations;
+
+    /** Chunks over {@code maxEntryBytes} (or an eighth of the cache) are never cached. */
+    public ChunkCache(long maxBytes, int maxEntryBytes, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes / 8);
+        this.windowMax = Math.max(maxBytes / 100, this.maxEntryBytes);
+        this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+        this.offHeap = offHeap;
+        this.sketch = new Sketch((int) Math.min(1 << 22, Math.max(1024, maxBytes / (16 * 1024))));
+    }
+
+    /** The cached plaintext, or null. Either way the request counts towards the key's popularity. */
+    public byte[] get(Key key) {
+        Node n;
+        synchronized (this) {
+            sketch.increment(key);
+            n = all.get(key);
+            if (n == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            hitBytes += n.size;
+            touch(n);
+        }
+        if (n.heap != null) return n.heap;
+        // the buffer is never written after insert, so copying outside the lock is safe
+        byte[] out = new byte[n.size];
+        n.direct.duplicate().get(out);
+        return out;
+    }
+
+    public void put(Key key, byte[] plain) {
+        if (plain.length > maxEntryBytes) return;
+        Node n = new Node(key, plain.length);
+        if (offHeap) {
+            try {
+                n.direct = ByteBuffer.allocateDirect(plain.length).put(plain).flip();
+            } catch (OutOfMemoryError e) {
+                return; // direct memory limit reached: serve uncached
+            }
+        } else {
+            n.heap = plain;
+        }
+        synchronized (this) {
+            if (all.containsKey(key)) return;
+            all.put(key, n);
+            byFile.computeIfAbsent(key.fileId(), k -> new HashSet<>()).add(key);
+            n.region = WINDOW;
+            window.put(key, n);
+            windowBytes += n.size;
+            while (windowBytes > windowMax) {
+                Node candidate = first(window);
+                window.remove(candidate.key);
+                windowBytes -= candidate.size;
+                admit(candidate);
+            }
+        }
+    }
+
+    /** Drops the given chunks of {@code fileId}, whatever their version. */
+    public synchronized void invalidate(String fileId, Collection<String> chunkIds) {
+        Set<Key> keys = byFile.get(fileId);
+        if (keys == null) return;
+        Set<String> ids = chunkIds instanceof Set<String> s ? s : new HashSet<>(chunkIds);
+        for (Iterator<Key> it = keys.iterator(); it.hasNext(); ) {
+            Key k = it.next();
+            if (!ids.contains(k.chunkId())) continue;
+            it.remove();
+            unlink(all.remove(k));
+            invalidations++;
+        }
+        if (keys.isEmpty()) byFile.remove(fileId);
+    }
+
+    public synchronized String metrics() {
+        long lookups = hits + misses;
+        return "maxBytes=" + maxBytes + " bytes=" + (windowBytes + probationBytes + protectedBytes)
+                + " entries=" + all.size() + " offHeap=" + offHeap
+                + " hits=" + hits + " misses=" + misses
+                + " hitRate=" + String.format("%.3f", lookups == 0 ? 0.0 : (double) hits / lookups)
+                + " hitBytes=" + hitBytes + " evictions=" + evictions + " rejected=" + rejected
+                + " invalidations=" + invalidations + "\n";
+    }
+
+    private void touch(Node n) {
+        switch (n.region) {
+            case WINDOW -> {
+                window.remove(n.key);
+                window.put(n.key, n);
+            }
+            case PROBATION -> {
+                probation.remove(n.key);
+                probationBytes -= n.size;
+                n.region = PROTECTED;
+                protectedArea.put(n.key, n);
+                protectedBytes += n.size;
+                // protected overflow goes back to probation rather than out
+                while (protectedBytes > protectedMax) {
+                    Node demoted = first(protectedArea);
+                    protectedArea.remove(demoted.key);
+                    protectedBytes -= demoted.size;
+                    demoted.region = PROBATION;
+                    probation.put(demoted.key, demoted);
+                    probationBytes += demoted.size;
+                }
+            }
+            default -> {
+                protectedArea.remove(n.key);
+                protectedArea.put(n.key, n);
+            }
+        }
+    }
+
+    /** A chunk leaving the window enters the main area only by outranking what it would evict. */
+    private void admit(Node candidate) {
+        long mainMax = maxBytes - windowMax;
+        int freq = sketch.frequency(candidate.key);
+        while (probationBytes + protectedBytes + candidate.size > mainMax) {
+            Node victim = probation.isEmpty() ? first(protectedArea) : first(probation);
+            if (victim == null || freq <= sketch.frequency(victim.key)) {
+                forget(candidate);
+                rejected++;
+                return;
+            }
+            unlink(victim);
+            forget(victim);
+            evictions++;
+        }
+        candidate.region = PROBATION;
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.size;
+    }
+
+    private void unlink(Node n) {
+        if (n == null) return;
+        switch (n.region) {
+            case WINDOW -> {
+                window.remove(n.key);
+                windowBytes -= n.size;
+            }
+            case PROBATION -> {
+                probation.remove(n.key);
+                probationBytes -= n.size;
+            }
+            default -> {
+                protectedArea.remove(n.key);
+                protectedBytes -= n.size;
+            }
+        }
+    }
+
+    private void forget(Node n) {
+        all.remove(n.key);
+        Set<Key> keys = byFile.get(n.key.fileId());
+        if (keys != null && keys.remove(n.key) && keys.isEmpty()) byFile.remove(n.key.fileId());
+    }
+
+    private static Node first(LinkedHashMap<Key, Node> area) {
+        return area.isEmpty() ? null : area.values().iterator().next();
+    }
+
+    private static final class Node {
+        final Key key;
+        final int size;
+        byte[] heap;
+        ByteBuffer direct;
+        int region;
+
+        Node(Key key, int size) {
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 rows of saturating 4-bit counts (held in bytes). Every counter is
+     * halved once 10 × width requests have been counted, so popularity fades with time.
+     */
+    private static final class Sketch {
+        private static final int MAX = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] rows = new byte[4][];
+        private final int mask;
+        private final int resetAt;
+        private int added;
+
+        Sketch(int width) {
+            int w = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+            for (int i = 0; i < rows.length; i++) rows[i] = new byte[w];
+            mask = w - 1;
+            resetAt = 10 * w;
+        }
+
+        void increment(Key key) {
+            int h = key.hashCode();
+            for (int i = 0; i < rows.length; i++) {
+                int slot = index(h, i);
+                if (rows[i][slot] < MAX) rows[i][slot]++;
+            }
+            if (++added >= resetAt) {
+                for (byte[] row : rows) for (int j = 0; j < row.length; j++) row[j] >>= 1;
+                added /= 2;
+            }
+        }
+
+        int frequency(Key key) {
+            int h = key.hashCode();
+            int min = MAX;
+            for (int i = 0; i < rows.length; i++) min = Math.min(min, rows[i][index(h, i)]);
+            return min;
+        }
+
+        private int index(int h, int row) {
+            int x = h * SEEDS[row];
+            x ^= x >>> 16;
+            return x & mask;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression applied to a chunk's plaintext before it is encrypted. Deflate at its
+ * fastest level; a chunk is only stored compressed if that saves at least an eighth, and a
+ * short sample is tried first so incompressible data (media, archives, already encrypted) costs
+ * next to nothing.
+ */
+public final class ChunkCodec {
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+
+    private static final int SAMPLE = 8 * 1024;
+    private static final int MIN_CHUNK = 512;
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> sampleBuf = ThreadLocal.withInitial(() -> new byte[SAMPLE]);
+
+    private ChunkCodec() {}
+
+    /**
+     * Compresses {@code plain[0, length)} into {@code into}; returns the compressed length, or -1
+     * if the chunk should be stored as is.
+     */
+    public static int compress(byte[] plain, int length, byte[] into) {
+        if (length < MIN_CHUNK) return -1;
+        Deflater d = deflaters.get();
+        try {
+            if (length > SAMPLE) {
+                int n = deflate(d, plain, 0, SAMPLE, sampleBuf.get(), SAMPLE - SAMPLE / 8);
+                if (n < 0) return -1;
+            }
+            return deflate(d, plain, 0, length, into, Math.min(into.length, length - length / 8));
+        } finally {
+            d.reset();
+        }
+    }
+
+    /** -1 if the output would not fit in {@code limit} bytes. */
+    private static int deflate(Deflater d, byte[] in, int off, int len, byte[] out, int limit) {
+        d.reset();
+        d.setInput(in, off, len);
+        d.finish();
+        int n = 0;
+        while (!d.finished()) {
+            if (n >= limit) return -1;
+            n += d.deflate(out, n, limit - n);
+        }
+        return n;
+    }
+
+    /** Inflates {@code data[0, length)} into exactly {@code plainLength} bytes of {@code into}. */
+    public static void decompress(byte[] data, int length, byte[] into, int plainLength) throws DataFormatException {
+        Inflater inf = inflaters.get();
+        try {
+            inf.setInput(data, 0, length);
+            int n = 0;
+            while (n < plainLength) {
+                int r = inf.inflate(into, n, plainLength - n);
+                if (r == 0) break;
+                n += r;
+            }
+            if (n != plainLength) throw new DataFormatException("inflated " + n + " of " + plainLength + " bytes");
+        } finally {
+            inf.reset();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Deletes chunks that no manifest references any more (superseded versions, failed or losing
+ * uploads, deleted files). Superseded versions are kept for a grace period so readers that picked
+ * up the old manifest just before the swap can finish.
+ *
+ * Only the nodes named in a chunk's placement are asked, all at once. Each object delete is first
+ * written down as a tombstone, and one that fails (node down, timeout) stays there and is retried
+ * in the background, so callers never wait on a dead node and nothing leaks across restarts.
+ */
+public final class ChunkGc implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ChunkGc.class);
+    private static final int RETRY_BATCH = 500;
+
+    /** Durable list of object deletes still owed; see {@code chunk_tombstones}. */
+    public interface Tombstones {
+        /** Records {@code urls}, not to be retried before {@code delayMs} from now. */
+        void add(List<String> urls, long delayMs) throws Exception;
+
+        void done(List<String> urls) throws Exception;
+
+        /** Reschedules {@code urls} with backoff after a failed attempt. */
+        void failed(List<String> urls) throws Exception;
+
+        /** Up to {@code limit} urls whose retry time has come. */
+        List<String> due(int limit) throws Exception;
+    }
+
+    /** Keeps nothing: a failed delete is only logged. */
+    public static final Tombstones NO_TOMBSTONES = new Tombstones() {
+        @Override public void add(List<String> urls, long delayMs) {}
+        @Override public void done(List<String> urls) {}
+        @Override public void failed(List<String> urls) {}
+        @Override public List<String> due(int limit) { return List.of(); }
+    };
+
+    private final ChunkPlacement placement;
+    private final ContentIndex contentIndex;
+    private final ProxyClient proxy;
+    private final long graceMs;
+    private final BiConsumer<String, List<String>> onCollected;
+    private final Tombstones tombstones;
+    private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chunk-gc");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService io;
+
+    /**
+     * {@code onCollected} is told which chunk ids were dropped, e.g. to clean persisted placement.
+     * Owed deletes in {@code tombstones} are retried every {@code retryMs}, {@code parallelism}
+     * at a time.
+     */
+    public ChunkGc(ChunkPlacement placement, ContentIndex contentIndex, ProxyClient proxy, long graceMs,
+                   BiConsumer<String, List<String>> onCollected, Tombstones tombstones, int parallelism, long retryMs) {
+        this.placement = placement;
+        this.contentIndex = contentIndex;
+        this.proxy = proxy;
+        this.graceMs = Math.max(0, graceMs);
+        this.onCollected = onCollected;
+        this.tombstones = tombstones;
+        AtomicInteger n = new AtomicInteger();
+        this.io = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread t = new Thread(r, "chunk-gc-io-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        if (retryMs > 0) exec.scheduleWithFixedDelay(this::retryOwed, retryMs, retryMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collects after the grace period. The deletes are recorded now, due once the grace period is
+     * over, so a restart in between cannot leak the objects; only the in-memory placement is kept
+     * until then for readers of the old manifest.
+     */
+    public void retire(String fileId, List<String> chunkIds) {
+        if (chunkIds.isEmpty()) return;
+        List<String> urls = bury(fileId, chunkIds, graceMs);
+        exec.schedule(() -> {
+            for (String chunkId : chunkIds) placement.remove(fileId, chunkId);
+            reap(urls);
+        }, graceMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collects, after the grace period, the objects of an entry that has just been replaced under
+     * the same chunk id (a raw chunk rewrite, which goes under a fresh object id).
+     */
+    public void retireReplaced(String fileId, String chunkId, ChunkPlacement.Entry replaced) {
+        if (replaced.blob() != null && !contentIndex.release(replaced)) return;
+        List<String> urls = owe(fileId, ChunkIo.objectUrls(fileId, chunkId, replaced), graceMs);
+        exec.schedule(() -> reap(urls), graceMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collects now, for chunks no reader can have seen (or may still see). The chunks are off the
+     * books and their deletes recorded when this returns; the future completes once every node
+     * has been tried.
+     */
+    public CompletableFuture<Void> discard(String fileId, List<String> chunkIds) {
+        if (chunkIds.isEmpty()) return CompletableFuture.completedFuture(null);
+        List<String> urls = bury(fileId, chunkIds, 0);
+        for (String chunkId : chunkIds) placement.remove(fileId, chunkId);
+        return reap(urls);
+    }
+
+    /**
+     * Takes the chunks off the books (content references, persisted placement) and returns the
+     * object urls to delete, already tombstoned with {@code delayMs}. In-memory placement is left
+     * to the caller.
+     */
+    private List<String> bury(String fileId, List<String> chunkIds, long delayMs) {
+        List<String> urls = new ArrayList<>();
+        // a manifest may list a reused chunk more than once; it holds one reference
+        for (String chunkId : new LinkedHashSet<>(chunkIds)) {
+            ChunkPlacement.Entry entry = placement.get(fileId, chunkId);
+            if (entry == null) continue;
+            // a shared blob only goes once its last reference does
+            if (entry.blob() != null && !contentIndex.release(entry)) continue;
+            urls.addAll(ChunkIo.objectUrls(fileId, chunkId, entry));
+        }
+        owe(fileId, urls, delayMs);
+        try {
+            onCollected.accept(fileId, chunkIds);
+        } catch (Exception e) {
+            log.warn("Chunk GC bookkeeping failed for {}: {}", fileId, e.getMessage());
+        }
+        log.debug("Chunk GC {}: {} chunks, {} object deletes", fileId, chunkIds.size(), urls.size());
+        return urls;
+    }
+
+    private List<String> owe(String fileId, List<String> urls, long delayMs) {
+        try {
+            tombstones.add(urls, delayMs);
+        } catch (Exception e) {
+            log.warn("Could not record {} tombstones for {}: {}", urls.size(), fileId, e.getMessage());
+        }
+        return urls;
+    }
+
+    private CompletableFuture<Void> reap(List<String> urls) {
+        List<CompletableFuture<Boolean>> calls = new ArrayList<>(urls.size());
+        for (String url : urls) calls.add(CompletableFuture.supplyAsync(() -> deleteOne(url), io));
+        return CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)).thenRun(() -> {
+            List<String> done = new ArrayList<>();
+            List<String> failed = new ArrayList<>();
+            for (int i = 0; i < urls.size(); i++) (calls.get(i).join() ? done : failed).add(urls.get(i));
+            try {
+                if (!done.isEmpty()) tombstones.done(done);
+                if (!failed.isEmpty()) tombstones.failed(failed);
+            } catch (Exception e) {
+                log.warn("Tombstone update failed: {}", e.getMessage());
+            }
+            if (!failed.isEmpty()) log.info("Chunk GC: {} object deletes failed", failed.size());
+        });
+    }
+
+    private boolean deleteOne(String url) {
+        try {
+            proxy.delete(url, 30);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void retryOwed() {
+        try {
+            List<String> due = tombstones.due(RETRY_BATCH);
+            if (due.isEmpty()) return;
+            reap(due).join();
+            log.debug("Chunk GC retried {} owed deletes", due.size());
+        } catch (Exception e) {
+            log.warn("Chunk GC retry failed: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        exec.shutdownNow();
+        io.shutdownNow();
+    }
+}
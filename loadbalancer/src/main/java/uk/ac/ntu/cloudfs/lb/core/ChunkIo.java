@@ -0,0 +1,649 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ntu.cloudfs.common.scheduler.LatencyOp;
+import uk.ac.ntu.cloudfs.common.scheduler.NodeInfo;
+import uk.ac.ntu.cloudfs.common.scheduler.Scheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * Replicated chunk put / replica-fallback chunk get against the storage nodes, or with erasure
+ * coding on, k + m shard puts and a parallel read that finishes as soon as any k shards arrive.
+ *
+ * Besides the one-shot {@link #store} / {@link #fetch}, the pipelined paths split a chunk into a
+ * network step (run by the caller) and a CPU step ({@link #sealAsync} / {@link #openAsync}) that
+ * runs on the crypto pool, so a large transfer keeps up to {@link #window()} chunks' AES-GCM and
+ * CRC32 work spread over all cores. {@link #readAsync} also moves the fetch off the caller, so
+ * reads overlap their network round trips too.
+ *
+ * A chunk's replica or shard PUTs all go out at once through the proxy's async calls, without a
+ * thread each. With batching on, small replicated chunks go through a {@link NodeBatcher}
+ * instead, so concurrent transfers to the same node share one request.
+ *
+ * With a {@link ChunkCache}, {@link #fetch} and {@link #readAsync} serve hot chunks' plaintext
+ * from memory; what they return must then be treated as read-only.
+ *
+ * Every chunk's plaintext SHA-256 is recorded in its placement entry. With the content index
+ * enabled, pipelined uploads store chunks as shared blobs and skip the PUT entirely when the same
+ * content is already stored.
+ */
+public final class ChunkIo {
+    private static final Logger log = LoggerFactory.getLogger(ChunkIo.class);
+
+    private final NodeRegistry registry;
+    private final Scheduler scheduler;
+    private final int replicas;
+    private final ProxyClient proxy;
+    private final Crypto crypto;
+    private final OutlierEjector ejector;
+    private final ExecutorService cryptoPool;
+    private final int window;
+    private final ContentIndex contentIndex;
+    private final boolean compress;
+    private final ReedSolomon ec;
+    private final long hedgeMs;
+    private final ConcurrentHashMap<Integer, ReedSolomon> codes = new ConcurrentHashMap<>();
+    private final ExecutorService ioPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "chunk-io");
+        t.setDaemon(true);
+        return t;
+    });
+    private final NodeBatcher batcher;
+    private final ChunkCache cache;
+    private volatile boolean stackWarned;
+
+    // per-worker scratch space, so steady-state chunk traffic allocates no chunk-sized arrays
+    private final ThreadLocal<Buf> plainBuf = ThreadLocal.withInitial(Buf::new);
+    private final ThreadLocal<byte[]> codecBuf = ThreadLocal.withInitial(() -> new byte[0]);
+    private final ThreadLocal<byte[]> copyBuf = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    private final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    });
+
+    public ChunkIo(NodeRegistry registry, Scheduler scheduler, int replicas, ProxyClient proxy, Crypto crypto, OutlierEjector ejector,
+                   ExecutorService cryptoPool, int window, ContentIndex contentIndex, boolean compress,
+                   ReedSolomon ec, long hedgeMs, NodeBatcher.Settings batching, ChunkCache cache) {
+        this.registry = registry;
+        this.scheduler = scheduler;
+        this.replicas = replicas;
+        this.proxy = proxy;
+        this.crypto = crypto;
+        this.ejector = ejector;
+        this.cryptoPool = cryptoPool;
+        this.window = Math.max(1, window);
+        this.contentIndex = contentIndex;
+        this.compress = compress;
+        this.ec = ec;
+        this.hedgeMs = Math.max(1, hedgeMs);
+        this.cache = cache;
+        this.batcher = batching == null ? null : new NodeBatcher(batching, (nodeUrl, op, path, body, length) -> {
+            NodeInfo node = registry.byBaseUrl(nodeUrl);
+            return node == null
+                    ? proxy.postBytes(nodeUrl + path, body, 0, length, 60)
+                    : call(node, op, () -> proxy.postBytes(nodeUrl + path, body, 0, length, 60));
+        }, ioPool);
+    }
+
+    /** Max chunks a pipelined transfer keeps in flight (and in memory) at once. */
+    public int window() {
+        return window;
+    }
+
+    /** Replica targets, or one node per shard with erasure coding (fewer if not enough are healthy). */
+    public List<NodeInfo> pickTargets() {
+        return ReplicaPicker.pick(registry.healthy(), scheduler, ec == null ? replicas : ec.totalShards());
+    }
+
+    /** Encrypts once and PUTs to every target. Returns null if no replica accepted the chunk. */
+    public ChunkPlacement.Entry store(String fileId, String chunkId, byte[] plain, List<NodeInfo> targets, int timeoutSeconds) throws Exception {
+        return store(fileId, chunkId, plain, plain.length, targets, timeoutSeconds);
+    }
+
+    /** As above for the first {@code length} bytes of {@code plain}, which may be a reused buffer. */
+    public ChunkPlacement.Entry store(String fileId, String chunkId, byte[] plain, int length, List<NodeInfo> targets, int timeoutSeconds) throws Exception {
+        // a fresh array: with batching on, the put may still hold the ciphertext after returning
+        return put(fileId, chunkId, seal(fileId, chunkId, plain, length, new byte[length + Crypto.TAG_LEN], false), targets, timeoutSeconds);
+    }
+
+    /**
+     * {@link #store} for a chunk id that may be written again (the raw chunk API): the bytes go
+     * under a fresh object id, recorded in the entry, so a rewrite never repeats an IV.
+     */
+    public ChunkPlacement.Entry storeFresh(String fileId, String chunkId, byte[] plain, List<NodeInfo> targets, int timeoutSeconds) throws Exception {
+        String storedId = chunkId + ".w" + UUID.randomUUID().toString().replace("-", "");
+        var entry = store(fileId, storedId, plain, targets, timeoutSeconds);
+        return entry == null ? null : entry.withStoredId(storedId);
+    }
+
+    /**
+     * Hashes, encrypts and checksums on the crypto pool; {@code plain} must not be reused until
+     * done. With dedup on, the chunk is sealed as a shared blob. The ciphertext gets its own
+     * array: an async put that timed out may still be sending it.
+     */
+    public Future<Sealed> sealAsync(String fileId, String chunkId, byte[] plain, int length) {
+        return cryptoPool.submit(() -> seal(fileId, chunkId, plain, length, new byte[length + Crypto.TAG_LEN], contentIndex.enabled()));
+    }
+
+    /**
+     * PUTs an already sealed chunk to every target. A blob whose content is already stored is not
+     * sent at all; the existing copy gains a reference. Returns null if no replica accepted it.
+     */
+    public ChunkPlacement.Entry put(String fileId, String chunkId, Sealed sealed, List<NodeInfo> targets, int timeoutSeconds) {
+        if (sealed.blob() != null) {
+            var existing = contentIndex.acquire(sealed.sha256());
+            if (existing != null) return existing;
+        }
+
+        String storeFile = sealed.blob() == null ? fileId : ContentIndex.CAS_FILE;
+        String storeChunk = sealed.blob() == null ? chunkId : sealed.blob();
+        List<String> storedOn;
+        if (sealed.shards() != null) {
+            storedOn = putShards(storeFile, storeChunk, sealed.shards(), targets, timeoutSeconds);
+        } else {
+            // every replica on the wire at once; a small chunk may share a batch request
+            boolean batched = batcher != null && batcher.accepts(sealed.cipherLength());
+            var puts = new ArrayList<CompletableFuture<?>>(targets.size());
+            for (NodeInfo node : targets) {
+                puts.add(batched
+                        ? batcher.put(node.baseUrl(), storeFile, storeChunk, sealed.cipher(), 0, sealed.cipherLength())
+                        : callAsync(node, LatencyOp.CHUNK_PUT, () -> proxy.putBytesAsync(chunkUrl(node.baseUrl(), storeFile, storeChunk),
+                                sealed.cipher(), 0, sealed.cipherLength(), timeoutSeconds)));
+            }
+            storedOn = new ArrayList<>();
+            for (int i = 0; i < targets.size(); i++) {
+                try {
+                    join(puts.get(i), timeoutSeconds);
+                    storedOn.add(targets.get(i).baseUrl());
+                } catch (Deadline.ExceededException e) {
+                    throw e;
+                } catch (Exception ignored) {}
+            }
+            if (storedOn.isEmpty()) storedOn = null;
+        }
+
+        if (storedOn == null) return null;
+        var entry = new ChunkPlacement.Entry(List.copyOf(storedOn), sealed.crc32(), sealed.plainLength(), sealed.sha256(), sealed.blob(),
+                sealed.codec(), sealed.cipherLength() - Crypto.TAG_LEN,
+                sealed.shards() == null ? 0 : ec.dataShards(), sealed.shards() == null ? 0 : ec.parityShards(), null, sealed.shardCrcs());
+        if (sealed.blob() == null) return entry;
+
+        var winner = contentIndex.register(entry);
+        if (winner != entry) {
+            // same content registered by a concurrent upload while ours was in flight: drop our copy
+            for (String url : objectUrls(fileId, chunkId, entry)) {
+                try { proxy.delete(url, timeoutSeconds); } catch (Exception ignored) {}
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * {@link #put} on the I/O pool, so an upload can have several chunks on the wire at once (and,
+     * with batching, share requests to the same node).
+     */
+    public CompletableFuture<ChunkPlacement.Entry> putAsync(String fileId, String chunkId, Sealed sealed, List<NodeInfo> targets, int timeoutSeconds) {
+        Deadline deadline = Deadline.current();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return inDeadline(deadline, () -> put(fileId, chunkId, sealed, targets, timeoutSeconds));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, ioPool);
+    }
+
+    /**
+     * PUTs shard i to {@code targets[i % size]} in parallel. Returns the node per shard
+     * ({@link ChunkPlacement.Entry#MISSING} where it failed), or null if fewer than k were stored,
+     * in which case the ones that were are deleted again.
+     *
+     * With fewer than k + m targets some node holds several shards. That is allowed while losing
+     * any one node still leaves k shards; beyond that the write is refused (null).
+     */
+    private List<String> putShards(String storeFile, String storeChunk, byte[][] shards, List<NodeInfo> targets, int timeoutSeconds) {
+        if (targets.isEmpty()) return null;
+        int perNode = (shards.length + targets.size() - 1) / targets.size();
+        if (perNode > ec.parityShards()) {
+            log.warn("Refusing erasure-coded write: {} nodes for {} shards would put {} on one node (parity {})",
+                    targets.size(), shards.length, perNode, ec.parityShards());
+            return null;
+        }
+        if (perNode > 1 && !stackWarned) log.warn("Only {} nodes for {} shards: up to {} shards per node", targets.size(), shards.length, perNode);
+        stackWarned = perNode > 1;
+        List<Future<String>> puts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            NodeInfo node = targets.get(i % targets.size());
+            byte[] shard = shards[i];
+            String url = chunkUrl(node.baseUrl(), storeFile, storeChunk + ".s" + i);
+            puts.add(callAsync(node, LatencyOp.CHUNK_PUT, () -> proxy.putBytesAsync(url, shard, 0, shard.length, timeoutSeconds))
+                    .thenApply(stored -> node.baseUrl()));
+        }
+
+        List<String> storedOn = new ArrayList<>(shards.length);
+        int stored = 0;
+        RuntimeException abort = null;
+        for (Future<String> put : puts) {
+            try {
+                storedOn.add(put.get());
+                stored++;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Deadline.ExceededException de) abort = de;
+                storedOn.add(ChunkPlacement.Entry.MISSING);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort = new Deadline.ExceededException("interrupted");
+                storedOn.add(ChunkPlacement.Entry.MISSING);
+            }
+        }
+        if (abort == null && stored >= ec.dataShards()) return storedOn;
+
+        for (int i = 0; i < storedOn.size(); i++) {
+            if (ChunkPlacement.Entry.MISSING.equals(storedOn.get(i))) continue;
+            try { proxy.delete(chunkUrl(storedOn.get(i), storeFile, storeChunk + ".s" + i), timeoutSeconds); } catch (Exception ignored) {}
+        }
+        if (abort != null) throw abort;
+        return null;
+    }
+
+    private Sealed seal(String fileId, String chunkId, byte[] plain, int length, byte[] into, boolean asBlob) throws Exception {
+        MessageDigest md = sha256.get();
+        md.update(plain, 0, length);
+        String hash = HexFormat.of().formatHex(md.digest());
+        String blob = asBlob ? ContentIndex.blobId(hash, chunkId) : null;
+
+        byte[] src = plain;
+        int srcLen = length;
+        int codec = ChunkCodec.NONE;
+        if (compress) {
+            byte[] z = scratch(codecBuf, length);
+            int n = ChunkCodec.compress(plain, length, z);
+            if (n >= 0) { src = z; srcLen = n; codec = ChunkCodec.DEFLATE; }
+        }
+        int cipherLen = crypto.encrypt(asBlob ? ContentIndex.CAS_FILE : fileId, asBlob ? blob : chunkId,
+                ByteBuffer.wrap(src, 0, srcLen), ByteBuffer.wrap(into));
+        byte[][] shards = ec == null ? null : ec.encode(into, cipherLen);
+        List<Long> shardCrcs = null;
+        if (shards != null) {
+            Long[] crcs = new Long[shards.length];
+            for (int i = 0; i < shards.length; i++) crcs[i] = crc32(shards[i]);
+            shardCrcs = List.of(crcs);
+        }
+        return new Sealed(into, cipherLen, crc32(plain, length), length, hash, blob, codec, shards, shardCrcs);
+    }
+
+    /** Raw ciphertext from the first replica that answers (or rebuilt from shards), or null if none did. */
+    public byte[] fetchSealed(String fileId, String chunkId, ChunkPlacement.Entry entry, int timeoutSeconds) {
+        if (entry.erasureCoded()) return fetchShards(fileId, chunkId, entry, timeoutSeconds);
+        boolean batched = batcher != null && batcher.accepts(entry.storedBytes() + Crypto.TAG_LEN);
+        for (String nodeUrl : readOrder(entry.nodeBaseUrls())) {
+            try {
+                if (batched) return join(batcher.get(nodeUrl, entry.storedFileId(fileId), entry.storedChunkId(chunkId)), timeoutSeconds);
+                String url = chunkUrl(nodeUrl, entry.storedFileId(fileId), entry.storedChunkId(chunkId));
+                NodeInfo node = registry.byBaseUrl(nodeUrl);
+                return node == null
+                        ? proxy.getBytes(url, timeoutSeconds)
+                        : call(node, LatencyOp.CHUNK_GET, () -> proxy.getBytes(url, timeoutSeconds));
+            } catch (Deadline.ExceededException e) {
+                throw e;
+            } catch (Exception ignored) {}
+        }
+        return null;
+    }
+
+    /**
+     * Erasure-coded read: asks for the k data shards in parallel and adds a parity shard for each
+     * one that fails (or fails its CRC), and whenever {@code hedgeMs} pass without a shard
+     * arriving; decodes as soon as any k are in. Null if fewer than k could be read.
+     */
+    private byte[] fetchShards(String fileId, String chunkId, ChunkPlacement.Entry entry, int timeoutSeconds) {
+        int k = entry.dataShards();
+        int n = k + entry.parityShards();
+        ReedSolomon rs = codes.computeIfAbsent(k * 256 + entry.parityShards(), key -> new ReedSolomon(k, entry.parityShards()));
+        int cipherLen = entry.storedBytes() + Crypto.TAG_LEN;
+        int shardSize = rs.shardSize(cipherLen);
+        String storedFile = entry.storedFileId(fileId);
+        Deadline deadline = Deadline.current();
+
+        var done = new ExecutorCompletionService<Shard>(ioPool);
+        List<Future<Shard>> started = new ArrayList<>(n);
+        byte[][] shards = new byte[n][];
+        int next = 0;
+        int inFlight = 0;
+        int have = 0;
+        try {
+            while (have < k) {
+                // keep k requests going, or one more than that if the last wait timed out
+                while (inFlight + have < k && next < n) {
+                    if (launchShard(done, started, entry, storedFile, chunkId, next++, deadline, timeoutSeconds)) inFlight++;
+                }
+                if (inFlight == 0) return null;
+
+                Future<Shard> f = next < n ? done.poll(hedgeMs, TimeUnit.MILLISECONDS)
+                        : done.poll(deadline == null ? timeoutSeconds * 1000L : deadline.remainingMs(), TimeUnit.MILLISECONDS);
+                if (f == null) {
+                    if (deadline != null && deadline.expired()) throw new Deadline.ExceededException("shard read");
+                    if (next >= n) return null;
+                    // hedge: a shard is slow, ask one more node
+                    while (next < n) {
+                        if (launchShard(done, started, entry, storedFile, chunkId, next++, deadline, timeoutSeconds)) { inFlight++; break; }
+                    }
+                    continue;
+                }
+                inFlight--;
+                try {
+                    Shard s = f.get();
+                    // a corrupt shard counts as a failed read, so another one is asked for
+                    if (s.data().length == shardSize && entry.shardIntact(s.index(), crc32(s.data()))) {
+                        shards[s.index()] = s.data();
+                        have++;
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Deadline.ExceededException de) throw de;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            for (Future<Shard> f : started) f.cancel(true);
+        }
+        return rs.decode(shards, cipherLen);
+    }
+
+    private boolean launchShard(ExecutorCompletionService<Shard> done, List<Future<Shard>> started, ChunkPlacement.Entry entry,
+                                String storedFile, String chunkId, int index, Deadline deadline, int timeoutSeconds) {
+        String nodeUrl = entry.nodeBaseUrls().get(index);
+        if (ChunkPlacement.Entry.MISSING.equals(nodeUrl)) return false;
+        String url = chunkUrl(nodeUrl, storedFile, entry.storedChunkId(chunkId, index));
+        NodeInfo node = registry.byBaseUrl(nodeUrl);
+        started.add(done.submit(() -> inDeadline(deadline, () -> new Shard(index, node == null
+                ? proxy.getBytes(url, timeoutSeconds)
+                : call(node, LatencyOp.CHUNK_GET, () -> proxy.getBytes(url, timeoutSeconds))))));
+        return true;
+    }
+
+    /** Waits for a batched transfer, no longer than {@code timeoutSeconds} or the thread's deadline. */
+    private static <T> T join(CompletableFuture<T> f, int timeoutSeconds) throws Exception {
+        try {
+            return f.get(Deadline.cap(Duration.ofSeconds(timeoutSeconds)).toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Deadline d = Deadline.current();
+            if (d != null && d.expired()) throw new Deadline.ExceededException("chunk transfer");
+            throw e;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception c ? c : e;
+        }
+    }
+
+    /** Runs {@code task} bound to the caller's deadline, since shard I/O happens on other threads. */
+    private static <T> T inDeadline(Deadline deadline, Callable<T> task) throws Exception {
+        return deadline == null ? task.call() : deadline.run(task);
+    }
+
+    /**
+     * Fetches on the I/O pool and decrypts on the crypto pool, so a reader can have several chunks
+     * in flight from different nodes. The future fails if no replica gave valid data.
+     */
+    public CompletableFuture<byte[]> readAsync(String fileId, String chunkId, ChunkPlacement.Entry entry, int timeoutSeconds) {
+        ChunkCache.Key key = cacheKey(fileId, chunkId, entry);
+        byte[] cached = key == null ? null : cache.get(key);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        Deadline deadline = Deadline.current();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                byte[] cipher = inDeadline(deadline, () -> fetchSealed(fileId, chunkId, entry, timeoutSeconds));
+                if (cipher == null) throw new IllegalStateException("chunk unavailable " + chunkId);
+                return cipher;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, ioPool).thenApplyAsync(cipher -> {
+            try {
+                byte[] plain = open(fileId, chunkId, cipher, entry);
+                if (key != null) cache.put(key, plain);
+                return plain;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, cryptoPool);
+    }
+
+    /** Decrypts and CRC-checks on the crypto pool; the future fails if the data is not valid. */
+    public Future<byte[]> openAsync(String fileId, String chunkId, byte[] cipher, ChunkPlacement.Entry entry) {
+        return cryptoPool.submit(() -> open(fileId, chunkId, cipher, entry));
+    }
+
+    private byte[] open(String fileId, String chunkId, byte[] cipher, ChunkPlacement.Entry entry) throws Exception {
+        byte[] plain = crypto.decrypt(entry.storedFileId(fileId), entry.storedChunkId(chunkId), cipher);
+        if (entry.codec() == ChunkCodec.DEFLATE) {
+            byte[] out = new byte[entry.bytes()];
+            ChunkCodec.decompress(plain, plain.length, out, entry.bytes());
+            plain = out;
+        }
+        if (entry.crc32() != 0L && crc32(plain) != entry.crc32()) throw new IllegalStateException("CRC mismatch " + chunkId);
+        return plain;
+    }
+
+    /** Fetches and decrypts a chunk, trying replicas in turn. Returns null if none gave valid data. */
+    public byte[] fetch(String fileId, String chunkId, ChunkPlacement.Entry entry, int timeoutSeconds) {
+        ChunkCache.Key key = cacheKey(fileId, chunkId, entry);
+        byte[] cached = key == null ? null : cache.get(key);
+        if (cached != null) return cached;
+        var out = new ByteArrayOutputStream(Math.max(0, entry.bytes()));
+        if (fetchTo(fileId, chunkId, entry, timeoutSeconds, out) < 0) return null;
+        byte[] plain = out.toByteArray();
+        if (key != null) cache.put(key, plain);
+        return plain;
+    }
+
+    /** Null when caching is off or the entry predates content hashes (nothing to version it by). */
+    private ChunkCache.Key cacheKey(String fileId, String chunkId, ChunkPlacement.Entry entry) {
+        return cache == null || entry.sha256() == null ? null : new ChunkCache.Key(fileId, chunkId, entry.sha256());
+    }
+
+    /**
+     * Streams the chunk from a replica through decryption and writes the verified plaintext to
+     * {@code out}. Nothing is written unless a replica produced valid data, so a bad replica can
+     * still be skipped. Returns bytes written, or -1 if no replica gave valid data.
+     */
+    public int fetchTo(String fileId, String chunkId, ChunkPlacement.Entry entry, int timeoutSeconds, OutputStream out) {
+        if (entry.erasureCoded()) {
+            byte[] cipher = fetchShards(fileId, chunkId, entry, timeoutSeconds);
+            if (cipher == null) return -1;
+            byte[] plain;
+            try {
+                plain = open(fileId, chunkId, cipher, entry);
+            } catch (Exception e) {
+                return -1;
+            }
+            try {
+                out.write(plain);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return plain.length;
+        }
+
+        Buf plain = plainBuf.get();
+        String storedFile = entry.storedFileId(fileId);
+        String storedChunk = entry.storedChunkId(chunkId);
+        for (String nodeUrl : readOrder(entry.nodeBaseUrls())) {
+            plain.reset();
+            try {
+                String url = chunkUrl(nodeUrl, storedFile, storedChunk);
+                NodeInfo node = registry.byBaseUrl(nodeUrl);
+                if (node == null) decryptFrom(url, storedFile, storedChunk, plain, timeoutSeconds);
+                else call(node, LatencyOp.CHUNK_GET, () -> decryptFrom(url, storedFile, storedChunk, plain, timeoutSeconds));
+            } catch (Deadline.ExceededException e) {
+                throw e;
+            } catch (Exception ignored) {
+                continue;
+            }
+            byte[] data = plain.array();
+            int len = plain.size();
+            if (entry.codec() == ChunkCodec.DEFLATE) {
+                byte[] inflated = scratch(codecBuf, entry.bytes());
+                try {
+                    ChunkCodec.decompress(data, len, inflated, entry.bytes());
+                } catch (DataFormatException e) {
+                    continue;
+                }
+                data = inflated;
+                len = entry.bytes();
+            }
+            if (entry.crc32() != 0L && crc32(data, len) != entry.crc32()) continue;
+            try {
+                out.write(data, 0, len);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return len;
+        }
+        return -1;
+    }
+
+    private Void decryptFrom(String url, String fileId, String chunkId, Buf plain, int timeoutSeconds) throws Exception {
+        try (InputStream in = proxy.getStream(url, timeoutSeconds)) {
+            crypto.decrypt(fileId, chunkId, in, plain, copyBuf.get());
+        }
+        return null;
+    }
+
+    /** Runs one upstream call against a node, feeding latency and outcome to its breaker. */
+    public <T> T call(NodeInfo node, LatencyOp op, FileLocks.ThrowingSupplier<T> action) throws Exception {
+        boolean admitted = ejector.onCallStart(node);
+        long start = System.nanoTime();
+        try {
+            T out = action.get();
+            ejector.onSuccess(node, op, (System.nanoTime() - start) / 1_000_000L, admitted);
+            return out;
+        } catch (Deadline.ExceededException e) {
+            ejector.onAbandoned(node, admitted);
+            throw e;
+        } catch (Exception e) {
+            ejector.onFailure(node, admitted);
+            throw e;
+        }
+    }
+
+    /** {@link #call} for an action that returns a future instead of blocking. */
+    public <T> CompletableFuture<T> callAsync(NodeInfo node, LatencyOp op, Supplier<CompletableFuture<T>> action) {
+        boolean admitted = ejector.onCallStart(node);
+        long start = System.nanoTime();
+        CompletableFuture<T> f;
+        try {
+            f = action.get();
+        } catch (RuntimeException e) {
+            ejector.onFailure(node, admitted);
+            return CompletableFuture.failedFuture(e);
+        }
+        return f.whenComplete((r, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause == null) ejector.onSuccess(node, op, (System.nanoTime() - start) / 1_000_000L, admitted);
+            else if (cause instanceof Deadline.ExceededException) ejector.onAbandoned(node, admitted);
+            else ejector.onFailure(node, admitted);
+        });
+    }
+
+    public static String chunkUrl(String nodeBaseUrl, String fileId, String chunkId) {
+        return nodeBaseUrl + "/chunk?fileId=" + fileId + "&chunkId=" + chunkId;
+    }
+
+    /** Every stored object (replica or shard) behind a placement entry. */
+    public static List<String> objectUrls(String fileId, String chunkId, ChunkPlacement.Entry entry) {
+        List<String> urls = new ArrayList<>(entry.nodeBaseUrls().size());
+        for (int i = 0; i < entry.nodeBaseUrls().size(); i++) {
+            String node = entry.nodeBaseUrls().get(i);
+            if (ChunkPlacement.Entry.MISSING.equals(node)) continue;
+            urls.add(chunkUrl(node, entry.storedFileId(fileId), entry.storedChunkId(chunkId, i)));
+        }
+        return urls;
+    }
+
+    /** Replicas whose breaker is closed first; ejected ones are still tried as a last resort. */
+    private List<String> readOrder(List<String> urls) {
+        List<String> preferred = new ArrayList<>(urls.size());
+        List<String> fallback = new ArrayList<>();
+        for (String url : urls) {
+            NodeInfo n = registry.byBaseUrl(url);
+            if (n == null || (n.healthy() && n.breaker().allowsTraffic())) preferred.add(url);
+            else fallback.add(url);
+        }
+        preferred.addAll(fallback);
+        return preferred;
+    }
+
+    private static byte[] scratch(ThreadLocal<byte[]> tl, int size) {
+        byte[] b = tl.get();
+        if (b.length < size) {
+            b = new byte[size];
+            tl.set(b);
+        }
+        return b;
+    }
+
+    static long crc32(byte[] data) {
+        return crc32(data, data.length);
+    }
+
+    static long crc32(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+
+    /**
+     * Encrypted chunk ready to send: {@code cipher[0, cipherLength)} plus the plaintext's CRC, size
+     * and hash. {@code blob} is set when it was sealed as a shared content blob; {@code codec} is
+     * the compression applied before encryption. {@code shards} holds the erasure-coded form of the
+     * ciphertext when erasure coding is on, and {@code shardCrcs} their checksums.
+     */
+    public record Sealed(byte[] cipher, int cipherLength, long crc32, int plainLength, String sha256, String blob, int codec,
+                         byte[][] shards, List<Long> shardCrcs) {}
+
+    private record Shard(int index, byte[] data) {}
+
+    /** Growable buffer whose backing array can be read without copying. */
+    private static final class Buf extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -23,7 +23,56 @@ public final class ChunkPlacement {
         return map.get(key(fileId, chunkId));
     }
 
-    public record Entry(List<String> nodeBaseUrls, long crc32, int bytes) {
+    /**
+     * {@code sha256} is the plaintext hash (null for chunks stored before it was recorded).
+     * {@code blob} is set when the bytes live in the shared content store rather than under the
+     * file's own id; see {@link ContentIndex}. {@code codec} ({@link ChunkCodec}) is what was
+     * applied before encryption, and {@code storedBytes} the resulting length.
+     *
+     * With {@code dataShards > 0} the chunk is erasure coded ({@link ReedSolomon}) rather than
+     * replicated: {@code nodeBaseUrls.get(i)} holds shard i, or is {@link #MISSING} if that shard
+     * could not be written.
+     *
+     * {@code shardCrcs} holds each shard's CRC32, so a read can skip a corrupt shard and use
+     * another instead of failing the decode (null for entries written before it was recorded).
+     *
+     * {@code storedId} is the object id on the nodes when it is not the chunk id: a raw chunk
+     * write gets a fresh one every time, since the IV follows the id and must never repeat.
+     */
+    public record Entry(List<String> nodeBaseUrls, long crc32, int bytes, String sha256, String blob, int codec, int storedBytes,
+                        int dataShards, int parityShards, String storedId, List<Long> shardCrcs) {
+        public static final String MISSING = "-";
 
+        public Entry(List<String> nodeBaseUrls, long crc32, int bytes) {
+            this(nodeBaseUrls, crc32, bytes, null, null, ChunkCodec.NONE, bytes, 0, 0, null, null);
+        }
+
+        public Entry withStoredId(String storedId) {
+            return new Entry(nodeBaseUrls, crc32, bytes, sha256, blob, codec, storedBytes, dataShards, parityShards, storedId, shardCrcs);
+        }
+
+        /** Whether shard {@code index} as read matches what was written; unknown counts as a match. */
+        public boolean shardIntact(int index, long crc) {
+            return shardCrcs == null || index >= shardCrcs.size() || shardCrcs.get(index) == crc;
+        }
+
+        public boolean erasureCoded() {
+            return dataShards > 0;
+        }
+
+        /** Object id on {@code nodeBaseUrls.get(index)}: the chunk itself, or its shard. */
+        public String storedChunkId(String chunkId, int index) {
+            String base = storedChunkId(chunkId);
+            return erasureCoded() ? base + ".s" + index : base;
+        }
+
+        /** File id the chunk is stored (and its IV derived) under on the nodes. */
+        public String storedFileId(String fileId) {
+            return blob == null ? fileId : ContentIndex.CAS_FILE;
+        }
+
+        public String storedChunkId(String chunkId) {
+            return blob != null ? blob : storedId != null ? storedId : chunkId;
+        }
     }
 }
@@ -22,4 +22,15 @@ public final class Chunker {
         System.arraycopy(buf, 0, exact, 0, off);
         return exact;
     }
+
+    /** Fills {@code buf} from {@code in} as far as possible; returns bytes read, 0 on EOF. */
+    public static int fill(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int r = in.read(buf, off, buf.length - off);
+            if (r == -1) break;
+            off += r;
+        }
+        return off;
+    }
 }
\ No newline at end of file
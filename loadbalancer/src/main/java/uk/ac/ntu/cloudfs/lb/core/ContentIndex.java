@@ -0,0 +1,86 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cross-file dedup: plaintext SHA-256 → the one stored copy ("blob") of that content, with a
+ * reference count per manifest chunk pointing at it.
+ *
+ * Blobs are stored under {@link #CAS_FILE} as {@code <sha256>.<chunkId of first uploader>}, so
+ * once the last reference goes and the blob is being deleted, a re-upload of the same content
+ * gets a different name and cannot be hit by that delete.
+ */
+public final class ContentIndex {
+    public static final String CAS_FILE = "_cas";
+
+    private final boolean enabled;
+    private final ConcurrentHashMap<String, Blob> byHash = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    public ContentIndex(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public static String blobId(String sha256, String chunkId) {
+        return sha256 + "." + chunkId;
+    }
+
+    /** Adds a reference to already stored content; returns its entry, or null if there is none. */
+    public ChunkPlacement.Entry acquire(String sha256) {
+        Blob b = byHash.computeIfPresent(sha256, (k, v) -> new Blob(v.entry, v.refs + 1));
+        if (b == null) return null;
+        hits.incrementAndGet();
+        savedBytes.addAndGet(b.entry.bytes());
+        return b.entry;
+    }
+
+    /**
+     * Registers a blob just stored, with one reference. If the same content was registered
+     * meanwhile, that one gets the reference and is returned instead; the caller's blob is then
+     * unreferenced and should be deleted.
+     */
+    public ChunkPlacement.Entry register(ChunkPlacement.Entry entry) {
+        Blob b = byHash.merge(entry.sha256(), new Blob(entry, 1), (old, mine) -> new Blob(old.entry, old.refs + 1));
+        if (b.entry == entry) stored.incrementAndGet();
+        else {
+            hits.incrementAndGet();
+            savedBytes.addAndGet(entry.bytes());
+        }
+        return b.entry;
+    }
+
+    /** Rebuilds a reference from persisted placement at startup. */
+    public void restore(ChunkPlacement.Entry entry) {
+        if (entry.blob() == null || entry.sha256() == null) return;
+        byHash.merge(entry.sha256(), new Blob(entry, 1), (old, mine) -> new Blob(old.entry, old.refs + 1));
+    }
+
+    /** Drops one reference; true if it was the last and the blob should be deleted from the nodes. */
+    public boolean release(ChunkPlacement.Entry entry) {
+        if (entry.blob() == null || entry.sha256() == null) return false;
+        boolean[] last = {false};
+        byHash.computeIfPresent(entry.sha256(), (k, v) -> {
+            if (!v.entry.blob().equals(entry.blob())) return v;
+            if (v.refs > 1) return new Blob(v.entry, v.refs - 1);
+            last[0] = true;
+            return null;
+        });
+        return last[0];
+    }
+
+    public String metrics() {
+        long refs = 0;
+        for (Blob b : byHash.values()) refs += b.refs;
+        return "enabled=" + enabled + " blobs=" + byHash.size() + " refs=" + refs + " stored=" + stored.get()
+                + " hits=" + hits.get() + " savedBytes=" + savedBytes.get() + "\n";
+    }
+
+    private record Blob(ChunkPlacement.Entry entry, long refs) {}
+}
@@ -4,20 +4,42 @@ import javax.crypto.Cipher;
 import javax.crypto.Mac;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Base64;
 
+/**
+ * AES-GCM chunk encryption with a deterministic IV per (fileId, chunkId), so different bytes must
+ * never be encrypted under the same pair: every write uses a fresh chunk id. Cipher and HMAC
+ * objects are cached per thread, so the provider lookup and HMAC key schedule happen once per
+ * worker rather than once per chunk.
+ */
 public final class Crypto {
     private static final String CIPHER = "AES/GCM/NoPadding";
     private static final int GCM_TAG_BITS = 128;
     private static final int IV_LEN = 12;
+    public static final int TAG_LEN = GCM_TAG_BITS / 8;
 
     private final SecretKeySpec key;
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(Crypto::newCipher);
+    private final ThreadLocal<Mac> macs;
+    private final ThreadLocal<byte[]> macOut = ThreadLocal.withInitial(() -> new byte[32]);
 
     public Crypto(byte[] key32) {
         if (key32.length != 32) throw new IllegalArgumentException("Need 32-byte key");
         this.key = new SecretKeySpec(key32, "AES");
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (Exception e) {
+                throw new IllegalStateException("HmacSHA256 unavailable", e);
+            }
+        });
     }
 
     public static Crypto fromEnv() {
@@ -31,27 +53,75 @@ public final class Crypto {
     }
 
     public byte[] encrypt(String fileId, String chunkId, byte[] plain) throws Exception {
-        byte[] iv = iv(fileId, chunkId);
-        Cipher c = Cipher.getInstance(CIPHER);
-        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
-        return c.doFinal(plain);
+        return cipher(Cipher.ENCRYPT_MODE, fileId, chunkId).doFinal(plain);
     }
 
     public byte[] decrypt(String fileId, String chunkId, byte[] cipher) throws Exception {
-        byte[] iv = iv(fileId, chunkId);
-        Cipher c = Cipher.getInstance(CIPHER);
-        c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
-        return c.doFinal(cipher);
+        return cipher(Cipher.DECRYPT_MODE, fileId, chunkId).doFinal(cipher);
     }
 
+    /**
+     * Encrypts {@code plain}'s remaining bytes into {@code out} (needs {@code + TAG_LEN} room);
+     * returns the number of bytes written. Both buffers' positions advance.
+     */
+    public int encrypt(String fileId, String chunkId, ByteBuffer plain, ByteBuffer out) throws Exception {
+        return cipher(Cipher.ENCRYPT_MODE, fileId, chunkId).doFinal(plain, out);
+    }
+
+    /** Decrypts {@code cipher}'s remaining bytes into {@code out}; returns the number of bytes written. */
+    public int decrypt(String fileId, String chunkId, ByteBuffer cipher, ByteBuffer out) throws Exception {
+        return cipher(Cipher.DECRYPT_MODE, fileId, chunkId).doFinal(cipher, out);
+    }
+
+    /**
+     * Streaming counterpart of {@link #decrypt(String, String, byte[])}, used by reads that go
+     * straight from a replica to the client. GCM only releases
+     * plaintext once the tag has verified, so nothing unauthenticated ever reaches {@code out};
+     * the provider buffers one chunk's ciphertext internally to do that.
+     */
+    public long decrypt(String fileId, String chunkId, InputStream in, OutputStream out, byte[] buf) throws Exception {
+        return pump(cipher(Cipher.DECRYPT_MODE, fileId, chunkId), in, out, buf);
+    }
+
+    private static long pump(Cipher c, InputStream in, OutputStream out, byte[] buf) throws Exception {
+        byte[] outBuf = new byte[c.getOutputSize(buf.length)];
+        long written = 0;
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            int m = c.update(buf, 0, n, outBuf);
+            if (m > 0) { out.write(outBuf, 0, m); written += m; }
+        }
+        byte[] tail = c.doFinal();
+        out.write(tail);
+        return written + tail.length;
+    }
+
+    private Cipher cipher(int mode, String fileId, String chunkId) throws Exception {
+        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, iv(fileId, chunkId), 0, IV_LEN);
+        Cipher c = ciphers.get();
+        // GCM refuses to encrypt again under the IV it last encrypted with; that is a real nonce
+        // reuse here (every write must use a fresh chunk id), so it is left to fail
+        c.init(mode, key, spec);
+        return c;
+    }
+
+    /** HMAC(key, fileId|chunkId); the first 12 bytes are the IV. Returns a per-thread buffer. */
     private byte[] iv(String fileId, String chunkId) throws Exception {
-        // HMAC(key, fileId|chunkId) -> first 12 bytes
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(key);
-        byte[] h = mac.doFinal((fileId + "|" + chunkId).getBytes(StandardCharsets.UTF_8));
-        byte[] iv = new byte[IV_LEN];
-        System.arraycopy(h, 0, iv, 0, IV_LEN);
-        return iv;
+        Mac mac = macs.get();
+        mac.update(fileId.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) '|');
+        mac.update(chunkId.getBytes(StandardCharsets.UTF_8));
+        byte[] h = macOut.get();
+        mac.doFinal(h, 0);
+        return h;
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(CIPHER);
+        } catch (Exception e) {
+            throw new IllegalStateException(CIPHER + " unavailable", e);
+        }
     }
 
     private static ByteSlice sha256(String s) {
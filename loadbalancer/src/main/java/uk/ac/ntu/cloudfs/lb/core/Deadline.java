@@ -0,0 +1,69 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+/**
+ * Absolute point in time by which a request must be answered. JobQueue binds the task's deadline
+ * to the worker thread while it runs, so ProxyClient and FileLocks can cap their waits by the
+ * remaining budget without it being threaded through every call.
+ */
+public final class Deadline {
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long atNanos;
+
+    private Deadline(long atNanos) {
+        this.atNanos = atNanos;
+    }
+
+    public static Deadline afterMs(long ms) {
+        return new Deadline(System.nanoTime() + Math.max(0, ms) * 1_000_000L);
+    }
+
+    /** Deadline bound to the current thread, or null outside a deadline-carrying task. */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    public long remainingMs() {
+        return Math.max(0, (atNanos - System.nanoTime()) / 1_000_000L);
+    }
+
+    public boolean expired() {
+        return atNanos - System.nanoTime() <= 0;
+    }
+
+    /** Runs {@code task} with this deadline bound to the thread; fails fast if already expired. */
+    public <T> T run(Callable<T> task) throws Exception {
+        if (expired()) throw new ExceededException("expired before start");
+        Deadline prev = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return task.call();
+        } finally {
+            if (prev == null) CURRENT.remove();
+            else CURRENT.set(prev);
+        }
+    }
+
+    /**
+     * {@code fixed} capped by the current thread's remaining budget. Throws when the budget is
+     * already spent, so no upstream call is started for a request nobody waits for any more.
+     */
+    public static Duration cap(Duration fixed) {
+        Deadline d = CURRENT.get();
+        if (d == null) return fixed;
+        long left = d.remainingMs();
+        if (left <= 0) throw new ExceededException("no budget left");
+        return left < fixed.toMillis() ? Duration.ofMillis(left) : fixed;
+    }
+
+    public static final class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ExceededException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,27 +1,86 @@
 package uk.ac.ntu.cloudfs.lb.core;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * Per-file read/write locking over a fixed array of {@link StampedLock} stripes hashed by fileId,
+ * so memory stays constant however many files exist. Two files may share a stripe; that only
+ * costs some false contention. Stripes are not reentrant: never take a second lock (for any
+ * file) while holding one.
+ */
 public final class FileLocks {
-    private final ConcurrentHashMap<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
-    private ReentrantReadWriteLock lock(String fileId) {
-        return locks.computeIfAbsent(fileId, k -> new ReentrantReadWriteLock());
+    private final StampedLock[] stripes;
+    private final int mask;
+
+    public FileLocks() {
+        this(256);
+    }
+
+    /** {@code stripes} is rounded up to a power of two. */
+    public FileLocks(int stripes) {
+        int n = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new StampedLock[n];
+        for (int i = 0; i < n; i++) this.stripes[i] = new StampedLock();
+        this.mask = n - 1;
     }
 
     public <T> T withRead(String fileId, ThrowingSupplier<T> s) throws Exception {
-        var l = lock(fileId).readLock();
-        l.lock();
+        StampedLock l = stripe(fileId);
+        long stamp = readLock(l);
         try { return s.get(); }
-        finally { l.unlock(); }
+        finally { l.unlockRead(stamp); }
     }
 
     public <T> T withWrite(String fileId, ThrowingSupplier<T> s) throws Exception {
-        var l = lock(fileId).writeLock();
-        l.lock();
+        StampedLock l = stripe(fileId);
+        long stamp = writeLock(l);
         try { return s.get(); }
-        finally { l.unlock(); }
+        finally { l.unlockWrite(stamp); }
+    }
+
+    /**
+     * Runs {@code s} without taking the lock and keeps the result if no writer touched the stripe
+     * meanwhile; otherwise runs it again under the read lock. {@code s} must be side-effect free
+     * and tolerate seeing a half-written state (its result is discarded then).
+     */
+    public <T> T withOptimisticRead(String fileId, ThrowingSupplier<T> s) throws Exception {
+        StampedLock l = stripe(fileId);
+        long stamp = l.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                T out = s.get();
+                if (l.validate(stamp)) return out;
+            } catch (Deadline.ExceededException e) {
+                throw e;
+            } catch (Exception e) {
+                if (l.validate(stamp)) throw e;
+            }
+        }
+        return withRead(fileId, s);
+    }
+
+    private StampedLock stripe(String fileId) {
+        int h = fileId.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    /** Both wait no longer than the current request deadline, if any. */
+    private static long readLock(StampedLock l) throws InterruptedException {
+        Deadline d = Deadline.current();
+        if (d == null) return l.readLock();
+        long stamp = l.tryReadLock(d.remainingMs(), TimeUnit.MILLISECONDS);
+        if (stamp == 0L) throw new Deadline.ExceededException("lock wait");
+        return stamp;
+    }
+
+    private static long writeLock(StampedLock l) throws InterruptedException {
+        Deadline d = Deadline.current();
+        if (d == null) return l.writeLock();
+        long stamp = l.tryWriteLock(d.remainingMs(), TimeUnit.MILLISECONDS);
+        if (stamp == 0L) throw new Deadline.ExceededException("lock wait");
+        return stamp;
     }
 
     @FunctionalInterface public interface ThrowingSupplier<T> { T get() throws Exception; }
-}
\ No newline at end of file
+}
@@ -2,9 +2,21 @@ package uk.ac.ntu.cloudfs.lb.core;
 
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Current manifest per file. Manifests are immutable; an upload writes its chunks under a fresh
+ * version and then swaps the pointer with {@link #commit}, so readers holding a manifest always
+ * see one complete version without locking.
+ */
 public final class FileManifestStore {
+    /** Expected version meaning "the file must not exist yet". */
+    public static final long ABSENT = -1L;
+
     private final ConcurrentHashMap<String, Manifest> files = new ConcurrentHashMap<>();
+    // seeded from the clock and moved past every persisted version by observe(): a version
+    // issued twice would reuse chunk ids, and so GCM nonces
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis());
 
     public void put(String fileId, Manifest manifest) {
         files.put(fileId, manifest);
@@ -18,5 +30,46 @@ public final class FileManifestStore {
     return files.remove(fileId);
 }
 
-    public record Manifest(String fileId, long totalBytes, int chunkSize, List<String> chunkIds) {}
-}
\ No newline at end of file
+    /** Unique, increasing version for a new upload; also namespaces its chunk ids. */
+    public long nextVersion() {
+        return versions.incrementAndGet();
+    }
+
+    /** Makes sure later versions are above {@code version}, one loaded from storage. */
+    public void observe(long version) {
+        versions.accumulateAndGet(version, Math::max);
+    }
+
+    /** Installs {@code next} only if the current version is still {@code expectedVersion}. */
+    public boolean commit(String fileId, long expectedVersion, Manifest next) {
+        boolean[] swapped = { false };
+        files.compute(fileId, (k, cur) -> {
+            long curVersion = cur == null ? ABSENT : cur.version();
+            if (curVersion != expectedVersion) return cur;
+            swapped[0] = true;
+            return next;
+        });
+        return swapped[0];
+    }
+
+    public static String chunkId(long version, int index) {
+        return "v" + version + "_c" + index;
+    }
+
+    /** The version a {@link #chunkId} was issued under, or {@link #ABSENT} for any other id. */
+    public static long versionOf(String chunkId) {
+        int end = chunkId.indexOf("_c");
+        if (!chunkId.startsWith("v") || end < 2) return ABSENT;
+        try {
+            return Long.parseLong(chunkId.substring(1, end));
+        } catch (NumberFormatException e) {
+            return ABSENT;
+        }
+    }
+
+    public record Manifest(String fileId, long totalBytes, int chunkSize, List<String> chunkIds, long version) {
+        public Manifest(String fileId, long totalBytes, int chunkSize, List<String> chunkIds) {
+            this(fileId, totalBytes, chunkSize, chunkIds, 0L);
+        }
+    }
+}
@@ -4,41 +4,131 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ntu.cloudfs.common.scheduler.NodeInfo;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Probes every node concurrently once per interval and feeds the results into a
+ * phi-accrual detector per node. A node is marked UNHEALTHY once its phi crosses the
+ * threshold and only comes back after several consecutive successful probes, so a
+ * single lost probe neither flips it down nor a single lucky one flips it back up.
+ */
 public final class HealthChecker implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(HealthChecker.class);
 
+    private static final int WINDOW = 100;
+    private static final int RECOVER_AFTER_OK = 3;
+
     private final NodeRegistry registry;
     private final HttpPing ping;
     private final long intervalMs;
+    private final double phiThreshold;
+    private final ConcurrentHashMap<String, NodeHealth> state = new ConcurrentHashMap<>();
 
     public HealthChecker(NodeRegistry registry, long intervalMs) {
+        this(registry, intervalMs, 8.0);
+    }
+
+    public HealthChecker(NodeRegistry registry, long intervalMs, double phiThreshold) {
         this.registry = registry;
-        this.ping = new HttpPing();
+        this.ping = new HttpPing(Duration.ofMillis(Math.max(500, intervalMs)));
         this.intervalMs = intervalMs;
+        this.phiThreshold = phiThreshold;
+    }
+
+    /** Current suspicion level for a node, 0 if it has not been probed yet. */
+    public double phi(String nodeId) {
+        NodeHealth h = state.get(nodeId);
+        return h == null ? 0.0 : h.detector.phi(System.currentTimeMillis());
     }
 
     @Override
     public void run() {
         while (!Thread.currentThread().isInterrupted()) {
-            List<NodeInfo> nodes = registry.all();
-
-            for (NodeInfo n : nodes) {
-                boolean ok = ping.isHealthy(n.baseUrl());
-                boolean prev = n.healthy();
-                n.setHealthy(ok);
-
-                if (ok != prev) {
-                    log.info("Health change: {} -> {}", n.nodeId(), ok ? "HEALTHY" : "UNHEALTHY");
-                }
+            long started = System.currentTimeMillis();
+            try {
+                sweep();
+            } catch (Exception e) {
+                log.warn("Health sweep failed: {}", e.getMessage());
             }
 
+            long sleepMs = intervalMs - (System.currentTimeMillis() - started);
+            if (sleepMs <= 0) continue;
             try {
-                Thread.sleep(intervalMs);
+                Thread.sleep(sleepMs);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
         }
     }
-}
\ No newline at end of file
+
+    private void sweep() throws InterruptedException {
+        List<NodeInfo> nodes = registry.all();
+        List<CompletableFuture<Void>> probes = new ArrayList<>(nodes.size());
+
+        for (NodeInfo n : nodes) {
+            NodeHealth h = state.computeIfAbsent(n.nodeId(), id -> new NodeHealth(newDetector()));
+            probes.add(ping.isHealthyAsync(n.baseUrl()).thenAccept(ok -> h.onProbe(ok, System.currentTimeMillis())));
+        }
+
+        try {
+            CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0]))
+                    .get(intervalMs * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception ignored) {
+            // stragglers are judged by phi below; their late result still lands in the detector
+        }
+
+        long now = System.currentTimeMillis();
+        for (NodeInfo n : nodes) {
+            NodeHealth h = state.get(n.nodeId());
+            if (h == null) continue;
+
+            double phi = h.detector.phi(now);
+            boolean prev = n.healthy();
+            boolean next = prev
+                    ? phi < phiThreshold
+                    : phi < phiThreshold && h.consecutiveOk() >= RECOVER_AFTER_OK;
+
+            if (next != prev) {
+                n.setHealthy(next);
+                log.info("Health change: {} -> {} (phi={})", n.nodeId(), next ? "HEALTHY" : "UNHEALTHY",
+                        String.format("%.2f", phi));
+            }
+        }
+
+        // forget nodes that are no longer registered
+        state.keySet().removeIf(id -> nodes.stream().noneMatch(n -> n.nodeId().equals(id)));
+    }
+
+    private PhiAccrualDetector newDetector() {
+        return new PhiAccrualDetector(WINDOW, intervalMs, intervalMs / 4.0, intervalMs / 2, System.currentTimeMillis());
+    }
+
+    private static final class NodeHealth {
+        final PhiAccrualDetector detector;
+        private int consecutiveOk;
+
+        NodeHealth(PhiAccrualDetector detector) {
+            this.detector = detector;
+        }
+
+        synchronized void onProbe(boolean ok, long nowMs) {
+            if (ok) {
+                detector.heartbeat(nowMs);
+                consecutiveOk++;
+            } else {
+                consecutiveOk = 0;
+            }
+        }
+
+        synchronized int consecutiveOk() {
+            return consecutiveOk;
+        }
+    }
+}
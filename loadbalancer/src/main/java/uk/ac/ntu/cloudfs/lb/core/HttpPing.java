@@ -5,28 +5,48 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 public final class HttpPing {
     private final HttpClient client;
+    private final Duration timeout;
 
     public HttpPing() {
+        this(Duration.ofSeconds(2));
+    }
+
+    public HttpPing(Duration timeout) {
+        this.timeout = timeout;
         this.client = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(2))
+                .connectTimeout(timeout)
                 .build();
     }
 
     public boolean isHealthy(String baseUrl) {
         try {
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(baseUrl + "/health"))
-                    .timeout(Duration.ofSeconds(2))
-                    .GET()
-                    .build();
-
-            HttpResponse<String> resp = client.send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> resp = client.send(request(baseUrl), HttpResponse.BodyHandlers.ofString());
             return resp.statusCode() == 200;
         } catch (Exception ignored) {
             return false;
         }
     }
-}
\ No newline at end of file
+
+    /** Non-blocking probe; never completes exceptionally. */
+    public CompletableFuture<Boolean> isHealthyAsync(String baseUrl) {
+        try {
+            return client.sendAsync(request(baseUrl), HttpResponse.BodyHandlers.discarding())
+                    .thenApply(resp -> resp.statusCode() == 200)
+                    .exceptionally(t -> false);
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    private HttpRequest request(String baseUrl) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/health"))
+                .timeout(timeout)
+                .GET()
+                .build();
+    }
+}
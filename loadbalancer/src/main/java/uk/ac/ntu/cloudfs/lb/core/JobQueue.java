@@ -1,36 +1,365 @@
 package uk.ac.ntu.cloudfs.lb.core;
 
-import java.util.concurrent.*;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Multi-lane work queue. Each lane has its own queue capacity and a cap on how many of the
+ * shared workers it may occupy; idle workers pick the next lane by smooth weighted round-robin
+ * among lanes that have work and spare budget. A burst in one lane therefore fills only that
+ * lane's queue (429 there) and cannot take the workers the other lanes are entitled to.
+ *
+ * Within a lane, tasks are queued per user and served by deficit round-robin, so a user with
+ * hundreds of queued uploads waits behind their own backlog rather than everyone else's. A task
+ * costs one unit plus one per MiB of payload; each user may hold at most {@code userCap} tasks
+ * in a lane. A payload whose size is only known once the task has read it (a chunked upload) is
+ * charged afterwards with {@link #charge}.
+ *
+ * A task may carry a {@link Deadline}; it is bound to the worker thread while the task runs, and
+ * a task whose deadline passed while it was queued is dropped without running (its future fails
+ * with Deadline.ExceededException).
+ */
 public final class JobQueue implements AutoCloseable {
 
-    private final BlockingQueue<Runnable> queue;
-    private final ThreadPoolExecutor exec;
+    public enum Lane {
+        /** small latency-sensitive reads: ping, chunk/file GET */
+        INTERACTIVE,
+        /** uploads and chunk writes */
+        BULK,
+        /** deletes and other maintenance */
+        BACKGROUND
+    }
+
+    /** Per-lane budget: max concurrently running tasks, max queued tasks, dequeue weight. */
+    public record LaneConfig(int workers, int capacity, int weight) {
+        public LaneConfig {
+            if (workers < 1 || capacity < 1 || weight < 1) throw new IllegalArgumentException("lane values must be >= 1");
+        }
+
+        /** Parses "workers:capacity:weight", falling back to {@code def} on anything malformed. */
+        public static LaneConfig parse(String raw, LaneConfig def) {
+            if (raw == null || raw.isBlank()) return def;
+            String[] p = raw.trim().split(":");
+            if (p.length != 3) return def;
+            try {
+                return new LaneConfig(Integer.parseInt(p[0].trim()), Integer.parseInt(p[1].trim()), Integer.parseInt(p[2].trim()));
+            } catch (IllegalArgumentException e) {
+                return def;
+            }
+        }
+    }
+
+    /** Task key for work not tied to a session (e.g. /api/ping). */
+    public static final String ANONYMOUS = "-";
+
+    private static final long COST_BYTES = 1024 * 1024;
+    private static final int MAX_COST = 64;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+    private final Thread[] workers;
+    private volatile boolean closed;
 
     public JobQueue(int workers, int queueCapacity) {
-        this.queue = new ArrayBlockingQueue<>(queueCapacity);
-        this.exec = new ThreadPoolExecutor(
-                workers, workers,
-                0L, TimeUnit.MILLISECONDS,
-                this.queue,
-                new ThreadPoolExecutor.AbortPolicy() // reject when full
-        );
+        this(workers, defaults(workers, queueCapacity), 0);
+    }
+
+    /** {@code userCap <= 0} means a quarter of each lane's capacity. */
+    public JobQueue(int workers, Map<Lane, LaneConfig> config, int userCap) {
+        for (Lane lane : Lane.values()) {
+            LaneConfig c = config.get(lane);
+            if (c == null) throw new IllegalArgumentException("missing lane config " + lane);
+            int cap = userCap > 0 ? Math.min(userCap, c.capacity()) : Math.max(1, c.capacity() / 4);
+            lanes.put(lane, new LaneState(c, cap));
+        }
+
+        this.workers = new Thread[Math.max(1, workers)];
+        for (int i = 0; i < this.workers.length; i++) {
+            Thread t = new Thread(this::workerLoop, "job-worker-" + i);
+            t.setDaemon(true);
+            this.workers[i] = t;
+            t.start();
+        }
+    }
+
+    /**
+     * Default split of the old single pool: interactive may use every worker, bulk all but one
+     * (so a read always has a worker to go to), background a quarter.
+     */
+    public static Map<Lane, LaneConfig> defaults(int workers, int queueCapacity) {
+        int w = Math.max(1, workers);
+        int cap = Math.max(1, queueCapacity);
+        Map<Lane, LaneConfig> m = new EnumMap<>(Lane.class);
+        m.put(Lane.INTERACTIVE, new LaneConfig(w, cap, 4));
+        m.put(Lane.BULK, new LaneConfig(Math.max(1, w - 1), cap, 2));
+        m.put(Lane.BACKGROUND, new LaneConfig(Math.max(1, w / 4), cap, 1));
+        return m;
+    }
+
+    public int workers() {
+        return workers.length;
     }
 
     public int queued() {
-        return queue.size();
+        lock.lock();
+        try {
+            int n = 0;
+            for (LaneState s : lanes.values()) n += s.size;
+            return n;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int capacity() {
-        return queue.remainingCapacity() + queue.size();
+        int n = 0;
+        for (LaneState s : lanes.values()) n += s.config.capacity();
+        return n;
+    }
+
+    public int queued(Lane lane) {
+        lock.lock();
+        try { return lanes.get(lane).size; }
+        finally { lock.unlock(); }
     }
 
-    public <T> Future<T> submit(Callable<T> task) throws RejectedExecutionException {
-        return exec.submit(task);
+    public int queued(Lane lane, String user) {
+        lock.lock();
+        try {
+            UserQueue uq = lanes.get(lane).users.get(user);
+            return uq == null ? 0 : uq.jobs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity(Lane lane) {
+        return lanes.get(lane).config.capacity();
+    }
+
+    public int userCapacity(Lane lane) {
+        return lanes.get(lane).userCap;
+    }
+
+    public <T> Future<T> submit(Lane lane, Callable<T> task) throws RejectedExecutionException {
+        return submit(lane, ANONYMOUS, 0, null, task);
+    }
+
+    /**
+     * Queues {@code task} under {@code user}; {@code bytes} is the payload size used as DRR cost,
+     * {@code deadline} may be null.
+     */
+    public <T> Future<T> submit(Lane lane, String user, long bytes, Deadline deadline, Callable<T> task) throws RejectedExecutionException {
+        FutureTask<T> ft = new FutureTask<>(deadline == null ? task : () -> deadline.run(task));
+        String key = user == null ? ANONYMOUS : user;
+        int cost = (int) Math.min(MAX_COST, 1 + Math.max(0, bytes) / COST_BYTES);
+        lock.lock();
+        try {
+            if (closed) throw new RejectedExecutionException("queue closed");
+            LaneState s = lanes.get(lane);
+            if (s.size >= s.config.capacity()) {
+                s.rejected++;
+                throw new RejectedExecutionException("lane " + lane + " full");
+            }
+            UserQueue uq = s.users.get(key);
+            if (uq != null && uq.jobs.size() >= s.userCap) {
+                s.rejected++;
+                throw new RejectedExecutionException("user " + key + " over lane " + lane + " cap");
+            }
+            if (uq == null) {
+                uq = new UserQueue(key);
+                s.users.put(key, uq);
+                s.ring.addLast(uq);
+            }
+            uq.jobs.addLast(new Job(ft, System.nanoTime(), cost, deadline));
+            s.size++;
+            s.submitted++;
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return ft;
+    }
+
+    /**
+     * Adds payload cost for a task that has already run, e.g. an upload whose size was unknown
+     * at submit. It comes off the user's deficit, so their next queued task in the lane waits
+     * longer; a user with nothing queued is not competing and owes nothing.
+     */
+    public void charge(Lane lane, String user, long bytes) {
+        int cost = (int) Math.min(MAX_COST, Math.max(0, bytes) / COST_BYTES);
+        if (cost == 0) return;
+        lock.lock();
+        try {
+            UserQueue uq = lanes.get(lane).users.get(user == null ? ANONYMOUS : user);
+            if (uq != null) uq.deficit -= cost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** One line per lane: queue fill, running vs budget, counters and mean queue wait. */
+    public String metrics() {
+        StringBuilder sb = new StringBuilder();
+        lock.lock();
+        try {
+            for (var e : lanes.entrySet()) {
+                LaneState s = e.getValue();
+                long waitAvgMs = s.completed == 0 ? 0 : s.waitNanos / s.completed / 1_000_000L;
+                sb.append(e.getKey().name().toLowerCase())
+                        .append(" queued=").append(s.size).append("/").append(s.config.capacity())
+                        .append(" users=").append(s.users.size())
+                        .append(" running=").append(s.running).append("/").append(s.config.workers())
+                        .append(" weight=").append(s.config.weight())
+                        .append(" submitted=").append(s.submitted)
+                        .append(" completed=").append(s.completed)
+                        .append(" rejected=").append(s.rejected)
+                        .append(" expired=").append(s.expired)
+                        .append(" waitAvgMs=").append(waitAvgMs)
+                        .append("\n");
+            }
+        } finally {
+            lock.unlock();
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    private void workerLoop() {
+        while (true) {
+            LaneState lane;
+            Job job;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) return;
+                    lane = nextLane();
+                    if (lane != null) break;
+                    workAvailable.await();
+                }
+                job = lane.poll();
+                lane.running++;
+                lane.waitNanos += System.nanoTime() - job.enqueuedNanos;
+                if (job.deadline != null && job.deadline.expired()) lane.expired++;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                job.task.run(); // FutureTask captures the task's own exceptions; expired ones fail fast
+            } finally {
+                lock.lock();
+                try {
+                    lane.running--;
+                    lane.completed++;
+                    // a freed lane budget may make queued work eligible for an idle worker
+                    workAvailable.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Smooth weighted round-robin (as in nginx) over lanes with queued work and spare budget. */
+    private LaneState nextLane() {
+        LaneState best = null;
+        int totalWeight = 0;
+        for (LaneState s : lanes.values()) {
+            if (s.size == 0 || s.running >= s.config.workers()) continue;
+            s.currentWeight += s.config.weight();
+            totalWeight += s.config.weight();
+            if (best == null || s.currentWeight > best.currentWeight) best = s;
+        }
+        if (best != null) best.currentWeight -= totalWeight;
+        return best;
     }
 
     @Override
     public void close() {
-        exec.shutdownNow();
+        lock.lock();
+        try {
+            closed = true;
+            for (LaneState s : lanes.values()) {
+                for (UserQueue uq : s.ring) {
+                    for (Job j : uq.jobs) j.task.cancel(true);
+                }
+                s.ring.clear();
+                s.users.clear();
+                s.size = 0;
+            }
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread t : workers) t.interrupt();
+    }
+
+    private record Job(FutureTask<?> task, long enqueuedNanos, int cost, Deadline deadline) {}
+
+    private static final class UserQueue {
+        final String user;
+        final ArrayDeque<Job> jobs = new ArrayDeque<>();
+        int deficit;
+        boolean credited;
+
+        UserQueue(String user) {
+            this.user = user;
+        }
+    }
+
+    private static final class LaneState {
+        final LaneConfig config;
+        final int userCap;
+        final Map<String, UserQueue> users = new HashMap<>();
+        final ArrayDeque<UserQueue> ring = new ArrayDeque<>();
+        int size;
+        int running;
+        int currentWeight;
+        long submitted;
+        long completed;
+        long rejected;
+        long expired;
+        long waitNanos;
+
+        LaneState(LaneConfig config, int userCap) {
+            this.config = config;
+            this.userCap = userCap;
+        }
+
+        /** Deficit round-robin over users with queued work (quantum 1); caller holds the lock and size > 0. */
+        Job poll() {
+            while (true) {
+                UserQueue uq = ring.peekFirst();
+                if (!uq.credited) {
+                    uq.deficit += 1;
+                    uq.credited = true;
+                }
+                Job head = uq.jobs.peekFirst();
+                if (head.cost() <= uq.deficit) {
+                    uq.jobs.pollFirst();
+                    uq.deficit -= head.cost();
+                    size--;
+                    if (uq.jobs.isEmpty()) {
+                        ring.pollFirst();
+                        users.remove(uq.user);
+                    }
+                    return head;
+                }
+                ring.pollFirst();
+                uq.credited = false;
+                ring.addLast(uq);
+            }
+        }
     }
 }
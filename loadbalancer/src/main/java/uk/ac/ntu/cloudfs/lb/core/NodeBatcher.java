@@ -0,0 +1,171 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import uk.ac.ntu.cloudfs.common.scheduler.LatencyOp;
+import uk.ac.ntu.cloudfs.common.wire.ChunkBatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces small chunk GETs and PUTs bound for the same node into one {@link ChunkBatch}
+ * request. An operation waits at most {@code lingerMicros} for company; a full batch goes at
+ * once. Each operation still completes (or fails) on its own.
+ */
+public final class NodeBatcher {
+
+    /** {@code maxChunk}: larger chunks bypass batching. */
+    public record Settings(int maxChunk, int maxRecords, int maxBytes, long lingerMicros) {}
+
+    /** Sends one framed batch to {@code nodeUrl + path} and returns the framed response. */
+    interface Transport {
+        byte[] post(String nodeUrl, LatencyOp op, String path, byte[] body, int length) throws Exception;
+    }
+
+    private final Settings settings;
+    private final Transport transport;
+    private final ExecutorService io;
+    private final ConcurrentHashMap<String, Queue> queues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chunk-batch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    NodeBatcher(Settings settings, Transport transport, ExecutorService io) {
+        this.settings = settings;
+        this.transport = transport;
+        this.io = io;
+    }
+
+    boolean accepts(int length) {
+        return length <= settings.maxChunk();
+    }
+
+    CompletableFuture<byte[]> get(String nodeUrl, String fileId, String chunkId) {
+        var op = new Op(fileId, chunkId, null, 0, 0);
+        enqueue(queue(nodeUrl, false), op);
+        return op.done;
+    }
+
+    /** {@code data} must stay unchanged until the future completes. */
+    CompletableFuture<byte[]> put(String nodeUrl, String fileId, String chunkId, byte[] data, int offset, int length) {
+        var op = new Op(fileId, chunkId, data, offset, length);
+        enqueue(queue(nodeUrl, true), op);
+        return op.done;
+    }
+
+    private Queue queue(String nodeUrl, boolean put) {
+        return queues.computeIfAbsent((put ? "P " : "G ") + nodeUrl, k -> new Queue(nodeUrl, put));
+    }
+
+    private void enqueue(Queue q, Op op) {
+        q.ops.add(op);
+        if (q.size.incrementAndGet() >= settings.maxRecords()) {
+            io.execute(() -> drain(q));
+        } else if (q.armed.compareAndSet(false, true)) {
+            timer.schedule(() -> {
+                q.armed.set(false);
+                io.execute(() -> drain(q));
+            }, settings.lingerMicros(), TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void drain(Queue q) {
+        while (true) {
+            List<Op> batch = new ArrayList<>();
+            long bytes = 0;
+            Op op;
+            while (batch.size() < settings.maxRecords() && (batch.isEmpty() || bytes < settings.maxBytes()) && (op = q.ops.poll()) != null) {
+                q.size.decrementAndGet();
+                batch.add(op);
+                bytes += op.length;
+            }
+            if (batch.isEmpty()) return;
+            send(q, batch);
+        }
+    }
+
+    private void send(Queue q, List<Op> batch) {
+        try {
+            var buf = new ByteArrayOutputStream();
+            var out = new DataOutputStream(buf);
+            long[] sent = new long[batch.size()];
+            out.writeInt(batch.size());
+            for (int i = 0; i < sent.length; i++) {
+                Op op = batch.get(i);
+                ChunkBatch.writeKey(out, op.fileId, op.chunkId);
+                if (q.put) {
+                    sent[i] = ChunkBatch.crc32(op.data, op.offset, op.length);
+                    out.writeInt((int) sent[i]);
+                    out.writeInt(op.length);
+                    out.write(op.data, op.offset, op.length);
+                }
+            }
+            out.flush();
+            byte[] resp = transport.post(q.nodeUrl, q.put ? LatencyOp.CHUNK_PUT : LatencyOp.CHUNK_GET,
+                    q.put ? ChunkBatch.PUT_PATH : ChunkBatch.GET_PATH, buf.toByteArray(), buf.size());
+
+            var in = new DataInputStream(new ByteArrayInputStream(resp));
+            if (ChunkBatch.readCount(in) != batch.size()) throw new IOException("batch answered with a different record count");
+            for (int i = 0; i < sent.length; i++) {
+                Op op = batch.get(i);
+                int status = in.readUnsignedByte();
+                long crc = in.readInt() & 0xFFFFFFFFL;
+                byte[] data = in.readNBytes(in.readInt());
+                if (status != ChunkBatch.OK) {
+                    op.done.completeExceptionally(new IOException("batch record status " + status + " for " + op.chunkId));
+                } else if (crc != (q.put ? sent[i] : ChunkBatch.crc32(data, 0, data.length))) {
+                    op.done.completeExceptionally(new IOException("batch record CRC mismatch for " + op.chunkId));
+                } else {
+                    op.done.complete(data);
+                }
+            }
+        } catch (Exception e) {
+            for (Op op : batch) op.done.completeExceptionally(e);
+        }
+    }
+
+    private static final class Queue {
+        final String nodeUrl;
+        final boolean put;
+        final ConcurrentLinkedQueue<Op> ops = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicBoolean armed = new AtomicBoolean();
+
+        Queue(String nodeUrl, boolean put) {
+            this.nodeUrl = nodeUrl;
+            this.put = put;
+        }
+    }
+
+    private static final class Op {
+        final String fileId;
+        final String chunkId;
+        final byte[] data;
+        final int offset;
+        final int length;
+        final CompletableFuture<byte[]> done = new CompletableFuture<>();
+
+        Op(String fileId, String chunkId, byte[] data, int offset, int length) {
+            this.fileId = fileId;
+            this.chunkId = chunkId;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
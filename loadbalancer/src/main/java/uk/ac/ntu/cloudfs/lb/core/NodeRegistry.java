@@ -3,18 +3,91 @@ package uk.ac.ntu.cloudfs.lb.core;
 import uk.ac.ntu.cloudfs.common.scheduler.NodeInfo;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+/**
+ * Live set of storage nodes. Mutations (static config, self-registration, admin API) are
+ * serialised and publish a new immutable snapshot; readers and schedulers never lock.
+ */
 public final class NodeRegistry {
-    private final CopyOnWriteArrayList<NodeInfo> nodes = new CopyOnWriteArrayList<>();
+    private volatile List<NodeInfo> snapshot = List.of();
+    // ids an admin removed; self-registration is refused until an admin adds them back
+    private final Set<String> removed = new HashSet<>();
 
-    public void addNode(NodeInfo node) { nodes.add(node); }
+    public synchronized void addNode(NodeInfo node) {
+        upsert(node);
+    }
+
+    /**
+     * Adds the node, or replaces an existing one with the same id. Re-registering the same
+     * id at the same URL keeps the existing NodeInfo so its stats and drain flag survive.
+     */
+    public synchronized NodeInfo upsert(NodeInfo node) {
+        removed.remove(node.nodeId());
+        List<NodeInfo> next = new ArrayList<>(snapshot.size() + 1);
+        NodeInfo result = node;
+        boolean replaced = false;
+        for (NodeInfo n : snapshot) {
+            if (!n.nodeId().equals(node.nodeId())) {
+                next.add(n);
+                continue;
+            }
+            replaced = true;
+            if (n.baseUrl().equals(node.baseUrl()) && n.priority() == node.priority()) {
+                result = n;
+            } else {
+                node.setDraining(n.draining());
+            }
+            next.add(result);
+        }
+        if (!replaced) next.add(node);
+        snapshot = List.copyOf(next);
+        return result;
+    }
+
+    /**
+     * Self-registration: like {@link #upsert}, but an id already known at another URL, or one
+     * an admin removed, is left alone and null is returned. Only the admin API may move a node.
+     */
+    public synchronized NodeInfo register(NodeInfo node) {
+        if (removed.contains(node.nodeId())) return null;
+        NodeInfo existing = byId(node.nodeId());
+        if (existing != null && !existing.baseUrl().equals(node.baseUrl())) return null;
+        return upsert(node);
+    }
+
+    /** Admin removal; the node may not register itself again until it is re-added with {@link #upsert}. */
+    public synchronized NodeInfo remove(String nodeId) {
+        NodeInfo gone = byId(nodeId);
+        if (gone == null) return null;
+        snapshot = snapshot.stream().filter(n -> n != gone).collect(Collectors.toUnmodifiableList());
+        removed.add(nodeId);
+        return gone;
+    }
 
-    public List<NodeInfo> all() { return new ArrayList<>(nodes); }
+    public synchronized boolean removed(String nodeId) {
+        return removed.contains(nodeId);
+    }
+
+    public List<NodeInfo> all() { return snapshot; }
+
+    public NodeInfo byId(String nodeId) {
+        for (NodeInfo n : snapshot) if (n.nodeId().equals(nodeId)) return n;
+        return null;
+    }
+
+    public NodeInfo byBaseUrl(String baseUrl) {
+        for (NodeInfo n : snapshot) if (n.baseUrl().equals(baseUrl)) return n;
+        return null;
+    }
 
+    /** Nodes eligible for new traffic: healthy, breaker closed (or trialling), not draining. */
     public List<NodeInfo> healthy() {
-        return nodes.stream().filter(NodeInfo::healthy).collect(Collectors.toList());
+        return snapshot.stream()
+                .filter(n -> n.healthy() && !n.draining() && n.breaker().allowsTraffic())
+                .collect(Collectors.toList());
     }
-}
\ No newline at end of file
+}
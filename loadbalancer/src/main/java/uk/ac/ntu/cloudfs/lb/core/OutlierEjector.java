@@ -0,0 +1,81 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ntu.cloudfs.common.scheduler.CircuitBreaker;
+import uk.ac.ntu.cloudfs.common.scheduler.LatencyOp;
+import uk.ac.ntu.cloudfs.common.scheduler.NodeInfo;
+
+/**
+ * Passive outlier detection: feeds data-path outcomes into each node's circuit breaker and
+ * caps how many nodes may be ejected at once so a cluster-wide blip cannot empty the pool.
+ */
+public final class OutlierEjector {
+    private static final Logger log = LoggerFactory.getLogger(OutlierEjector.class);
+
+    private final NodeRegistry registry;
+    private final long slowCallMs;
+    private final int maxEjectPercent;
+
+    public OutlierEjector(NodeRegistry registry, long slowCallMs, int maxEjectPercent) {
+        this.registry = registry;
+        this.slowCallMs = slowCallMs;
+        this.maxEjectPercent = Math.max(0, Math.min(100, maxEjectPercent));
+    }
+
+    /**
+     * Returns whether the breaker admitted the call. A call that goes ahead anyway (an ejected
+     * replica tried as a last resort) passes false to the outcome methods and leaves the breaker alone.
+     */
+    public boolean onCallStart(NodeInfo node) {
+        node.incInFlight();
+        return node.breaker().tryAcquire();
+    }
+
+    public void onSuccess(NodeInfo node, LatencyOp op, long tookMs, boolean admitted) {
+        node.decInFlight();
+        node.recordLatencyMs(op, tookMs);
+        if (!admitted) return;
+        boolean slow = slowCallMs > 0 && tookMs >= slowCallMs;
+        CircuitBreaker.State before = node.breaker().state();
+        boolean tripDue = node.breaker().onSuccess(slow);
+        logTransition(node, before);
+        if (tripDue) eject(node);
+    }
+
+    public void onFailure(NodeInfo node, boolean admitted) {
+        node.decInFlight();
+        if (!admitted) return;
+        CircuitBreaker.State before = node.breaker().state();
+        boolean tripDue = node.breaker().onFailure();
+        logTransition(node, before);
+        if (tripDue) eject(node);
+    }
+
+    public void onAbandoned(NodeInfo node, boolean admitted) {
+        node.decInFlight();
+        if (admitted) node.breaker().onAbandoned();
+    }
+
+    public int ejectedCount() {
+        int n = 0;
+        for (NodeInfo other : registry.all()) if (other.breaker().state() != CircuitBreaker.State.CLOSED) n++;
+        return n;
+    }
+
+    /**
+     * Trips the node's breaker if the cap allows. Only this method moves a breaker out of CLOSED,
+     * and it counts and trips under one lock, so concurrent failures on different nodes cannot
+     * overshoot the cap; a slot is held until the breaker closes again.
+     */
+    private synchronized void eject(NodeInfo node) {
+        int max = registry.all().size() * maxEjectPercent / 100;
+        if (ejectedCount() >= max) return;
+        if (node.breaker().trip()) log.info("Circuit {}: {} -> {}", node.nodeId(), CircuitBreaker.State.CLOSED, CircuitBreaker.State.OPEN);
+    }
+
+    private static void logTransition(NodeInfo node, CircuitBreaker.State before) {
+        CircuitBreaker.State after = node.breaker().state();
+        if (before != after) log.info("Circuit {}: {} -> {}", node.nodeId(), before, after);
+    }
+}
@@ -0,0 +1,67 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+/**
+ * Phi-accrual failure detector (Hayashibara et al., as used by Akka/Cassandra).
+ * Keeps a sliding window of heartbeat inter-arrival times and reports how suspicious
+ * the current silence is: phi = -log10(P(next heartbeat arrives later than now)).
+ */
+public final class PhiAccrualDetector {
+    private final long[] intervals;
+    private final double minStdDevMs;
+    private final long acceptablePauseMs;
+
+    private int size;
+    private int next;
+    private double sum;
+    private double sumSq;
+    private long lastHeartbeatMs;
+
+    public PhiAccrualDetector(int maxSamples, long expectedIntervalMs, double minStdDevMs, long acceptablePauseMs, long nowMs) {
+        this.intervals = new long[Math.max(2, maxSamples)];
+        this.minStdDevMs = minStdDevMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+        this.lastHeartbeatMs = nowMs;
+
+        // bootstrap so the very first missed heartbeats are already judged against something
+        long stdDev = expectedIntervalMs / 4;
+        add(expectedIntervalMs - stdDev);
+        add(expectedIntervalMs + stdDev);
+    }
+
+    public synchronized void heartbeat(long nowMs) {
+        long interval = nowMs - lastHeartbeatMs;
+        lastHeartbeatMs = nowMs;
+        if (interval > 0) add(interval);
+    }
+
+    public synchronized double phi(long nowMs) {
+        long sinceLast = nowMs - lastHeartbeatMs;
+        double mean = sum / size + acceptablePauseMs;
+        double variance = sumSq / size - (sum / size) * (sum / size);
+        double stdDev = Math.max(Math.sqrt(Math.max(variance, 0.0)), minStdDevMs);
+
+        // logistic approximation of the normal CDF, see Akka's PhiAccrualFailureDetector
+        double y = (sinceLast - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (sinceLast > mean) return -Math.log10(e / (1.0 + e));
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public synchronized long lastHeartbeatMs() {
+        return lastHeartbeatMs;
+    }
+
+    private void add(long interval) {
+        if (size == intervals.length) {
+            long old = intervals[next];
+            sum -= old;
+            sumSq -= (double) old * old;
+        } else {
+            size++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumSq += (double) interval * interval;
+    }
+}
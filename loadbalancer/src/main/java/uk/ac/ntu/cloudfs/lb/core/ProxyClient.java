@@ -1,64 +1,378 @@
 package uk.ac.ntu.cloudfs.lb.core;
 
+import uk.ac.ntu.cloudfs.common.wire.NodeWire;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import static java.net.http.HttpRequest.BodyPublishers;
 import static java.net.http.HttpResponse.BodyHandlers;
+import static java.net.http.HttpResponse.BodySubscribers;
 
+/**
+ * Calls to storage nodes. Each node gets its own HTTP client, and at most
+ * {@code maxConnectionsPerNode} requests are on the wire to it at once; the rest wait in line
+ * without holding a thread. The async methods return as soon as the request is queued, so one
+ * caller can overlap many transfers; the blocking ones wait on the same path.
+ *
+ * With the binary protocol on, single-chunk GET, PUT and DELETE go over {@link NodeWire} to every
+ * node that advertises it (asked once, and again a minute after a node said no or dropped);
+ * everything else, and nodes without it, use HTTP.
+ */
 public final class ProxyClient {
-    private final HttpClient client = HttpClient.newBuilder()
-            .connectTimeout(Duration.ofSeconds(3))
-            .build();
+    private static final long REPROBE_MS = 60_000;
+
+    /**
+     * {@code maxConnectionsPerNode} of 0 means no limit. {@code h2c} asks nodes to upgrade to
+     * cleartext HTTP/2, which multiplexes requests over one connection where the node supports it
+     * and falls back to HTTP/1.1 where it does not.
+     */
+    public record Settings(int maxConnectionsPerNode, boolean h2c, boolean binary, int binaryConnections) {}
+
+    private final Settings settings;
+    private final ConcurrentHashMap<String, NodePool> pools = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Wire> wires = new ConcurrentHashMap<>();
+
+    /** {@code client} is null when the node has no binary port. */
+    private record Wire(WireClient client, long checkedAtMs) {}
+
+    private record ChunkRef(String nodeBaseUrl, String fileId, String chunkId) {}
+
+    public ProxyClient() {
+        this(new Settings(0, false, false, 0));
+    }
+
+    public ProxyClient(Settings settings) {
+        this.settings = settings;
+    }
 
     public String get(String url, int timeoutSeconds) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder()
+        return await(sendAsync(HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .timeout(Duration.ofSeconds(timeoutSeconds))
-                .GET()
-                .build();
-
-        HttpResponse<String> resp = client.send(req, BodyHandlers.ofString());
-        if (resp.statusCode() != 200) throw new RuntimeException("Upstream status " + resp.statusCode() + " " + resp.body());
-        return resp.body();
+                .GET(), BodyHandlers.ofString(), timeoutSeconds).thenApply(ProxyClient::textBody));
     }
 
     public String delete(String url, int timeoutSeconds) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .timeout(Duration.ofSeconds(timeoutSeconds))
-                .DELETE()
-                .build();
+        return await(deleteAsync(url, timeoutSeconds));
+    }
 
-        HttpResponse<String> resp = client.send(req, BodyHandlers.ofString());
-        if (resp.statusCode() != 200) throw new RuntimeException("Upstream status " + resp.statusCode() + " " + resp.body());
-        return resp.body();
+    public CompletableFuture<String> deleteAsync(String url, int timeoutSeconds) {
+        ChunkRef ref = chunkRef(url);
+        WireClient w = ref == null ? null : wire(ref.nodeBaseUrl());
+        if (w != null) {
+            return wireCall(w, ref, NodeWire.DELETE, null, 0, 0, timeoutSeconds).thenApply(r -> {
+                if (r.status() == NodeWire.ABSENT) return "ABSENT";
+                if (r.status() != NodeWire.OK) throw new RuntimeException("Upstream status 500");
+                return "DELETED";
+            });
+        }
+        return sendAsync(HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .DELETE(), BodyHandlers.ofString(), timeoutSeconds).thenApply(ProxyClient::textBody);
     }
 
     public String putBytes(String url, byte[] data, int timeoutSeconds) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder()
+        return putBytes(url, data, 0, data.length, timeoutSeconds);
+    }
+
+    public String putBytes(String url, byte[] data, int offset, int length, int timeoutSeconds) throws Exception {
+        return await(putBytesAsync(url, data, offset, length, timeoutSeconds));
+    }
+
+    /** {@code data} must stay unchanged until the future completes. */
+    public CompletableFuture<String> putBytesAsync(String url, byte[] data, int offset, int length, int timeoutSeconds) {
+        ChunkRef ref = chunkRef(url);
+        WireClient w = ref == null ? null : wire(ref.nodeBaseUrl());
+        if (w != null) {
+            return wireCall(w, ref, NodeWire.PUT, data, offset, length, timeoutSeconds).thenApply(r -> {
+                if (r.status() != NodeWire.OK) throw new RuntimeException("Upstream status 500 STORE_ERROR");
+                return "STORED bytes=" + length + " crc32=" + r.crc32();
+            });
+        }
+        return sendAsync(HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .timeout(Duration.ofSeconds(timeoutSeconds))
-                .PUT(BodyPublishers.ofByteArray(data))
-                .build();
+                .PUT(BodyPublishers.ofByteArray(data, offset, length)), BodyHandlers.ofString(), timeoutSeconds)
+                .thenApply(ProxyClient::textBody);
+    }
 
-        HttpResponse<String> resp = client.send(req, BodyHandlers.ofString());
-        if (resp.statusCode() != 200) throw new RuntimeException("Upstream status " + resp.statusCode() + " " + resp.body());
+    public byte[] postBytes(String url, byte[] data, int offset, int length, int timeoutSeconds) throws Exception {
+        return await(sendAsync(HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .POST(BodyPublishers.ofByteArray(data, offset, length)), BodyHandlers.ofByteArray(), timeoutSeconds)
+                .thenApply(ProxyClient::bytesBody));
+    }
+
+    /** Response body as a stream; the caller must close it. */
+    public InputStream getStream(String url, int timeoutSeconds) throws Exception {
+        HttpResponse<InputStream> resp = await(sendAsync(HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .GET(), BodyHandlers.ofInputStream(), timeoutSeconds));
+        if (resp.statusCode() != 200) {
+            resp.body().close();
+            throw new RuntimeException("Upstream status " + resp.statusCode());
+        }
         return resp.body();
     }
 
     public byte[] getBytes(String url, int timeoutSeconds) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder()
+        return await(getBytesAsync(url, timeoutSeconds));
+    }
+
+    public CompletableFuture<byte[]> getBytesAsync(String url, int timeoutSeconds) {
+        ChunkRef ref = chunkRef(url);
+        WireClient w = ref == null ? null : wire(ref.nodeBaseUrl());
+        if (w != null) {
+            return wireCall(w, ref, NodeWire.GET, null, 0, 0, timeoutSeconds).thenApply(r -> {
+                if (r.status() != NodeWire.OK) throw new RuntimeException("Upstream status " + (r.status() == NodeWire.NOT_FOUND ? 404 : 500));
+                return r.body();
+            });
+        }
+        return sendAsync(HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .timeout(Duration.ofSeconds(timeoutSeconds))
-                .GET()
-                .build();
+                .GET(), BodyHandlers.ofByteArray(), timeoutSeconds).thenApply(ProxyClient::bytesBody);
+    }
 
-        HttpResponse<byte[]> resp = client.send(req, BodyHandlers.ofByteArray());
+    private static String textBody(HttpResponse<String> resp) {
+        if (resp.statusCode() != 200) throw new RuntimeException("Upstream status " + resp.statusCode() + " " + resp.body());
+        return resp.body();
+    }
+
+    private static byte[] bytesBody(HttpResponse<byte[]> resp) {
         if (resp.statusCode() != 200) throw new RuntimeException("Upstream status " + resp.statusCode());
         return resp.body();
     }
-}
\ No newline at end of file
+
+    /** Waits for an async call and rethrows its failure as the blocking methods always have. */
+    private static <T> T await(CompletableFuture<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception c ? c : e;
+        }
+    }
+
+    /**
+     * Sends with {@code timeoutSeconds}, shortened to the remaining request deadline if one is
+     * bound to the calling thread. A timeout caused by that cut surfaces as
+     * Deadline.ExceededException so callers don't blame the node for our own budget running out.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest.Builder b, HttpResponse.BodyHandler<T> handler, int timeoutSeconds) {
+        Duration fixed = Duration.ofSeconds(timeoutSeconds);
+        Duration timeout = Deadline.cap(fixed);
+        HttpRequest req = b.timeout(timeout).build();
+        return timeouts(pool(req.uri()).send(req, handler, timeout), timeout, fixed, null);
+    }
+
+    private CompletableFuture<WireClient.Response> wireCall(WireClient w, ChunkRef ref, int op, byte[] data, int offset, int length,
+                                                            int timeoutSeconds) {
+        Duration fixed = Duration.ofSeconds(timeoutSeconds);
+        Duration timeout = Deadline.cap(fixed);
+        return timeouts(w.submit(op, ref.fileId(), ref.chunkId(), data, offset, length, timeout), timeout, fixed, e -> {
+            // connection refused or lost: the node may have come back without the port, ask again
+            if (e instanceof IOException) forget(ref.nodeBaseUrl(), w);
+        });
+    }
+
+    private static <T> CompletableFuture<T> timeouts(CompletableFuture<T> f, Duration timeout, Duration fixed,
+                                                     Consumer<Throwable> onFailure) {
+        CompletableFuture<T> out = new CompletableFuture<>();
+        f.whenComplete((r, e) -> {
+            if (e == null) {
+                out.complete(r);
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof HttpTimeoutException || cause instanceof TimeoutException) {
+                cause = timeout.compareTo(fixed) < 0
+                        ? new Deadline.ExceededException("upstream call cut short by deadline")
+                        : new HttpTimeoutException("request timed out");
+            } else if (onFailure != null) {
+                onFailure.accept(cause);
+            }
+            out.completeExceptionally(cause);
+        });
+        return out;
+    }
+
+    private NodePool pool(URI uri) {
+        return pools.computeIfAbsent(uri.getScheme() + "://" + uri.getRawAuthority(), k -> new NodePool(
+                HttpClient.newBuilder()
+                        .connectTimeout(Duration.ofSeconds(3))
+                        .version(settings.h2c() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                        .build(),
+                settings.maxConnectionsPerNode()));
+    }
+
+    private WireClient wire(String nodeBaseUrl) {
+        if (!settings.binary()) return null;
+        Wire w = wires.get(nodeBaseUrl);
+        if (w != null && (w.client() != null || System.currentTimeMillis() - w.checkedAtMs() <= REPROBE_MS)) return w.client();
+        // probed outside the map: a slow node must not block callers for other keys in its bin
+        Wire probed = probe(nodeBaseUrl);
+        boolean installed = w == null ? wires.putIfAbsent(nodeBaseUrl, probed) == null : wires.replace(nodeBaseUrl, w, probed);
+        if (installed) return probed.client();
+        // someone else probed meanwhile: theirs wins
+        if (probed.client() != null) probed.client().close();
+        Wire cur = wires.get(nodeBaseUrl);
+        return cur == null ? null : cur.client();
+    }
+
+    /** Asks the node whether it speaks the binary protocol. */
+    private Wire probe(String nodeBaseUrl) {
+        try {
+            HttpResponse<String> resp = await(sendAsync(HttpRequest.newBuilder()
+                    .uri(URI.create(nodeBaseUrl + NodeWire.PROBE_PATH))
+                    .GET(), BodyHandlers.ofString(), 3));
+            String body = resp.body().trim();
+            if (resp.statusCode() == 200 && body.startsWith("BIN port=")) {
+                int port = Integer.parseInt(body.substring("BIN port=".length()).trim());
+                String host = URI.create(nodeBaseUrl).getHost();
+                return new Wire(new WireClient(new InetSocketAddress(host, port), settings.binaryConnections()), System.currentTimeMillis());
+            }
+        } catch (Exception ignored) {
+            // unreachable or too old to know the probe: HTTP for now
+        }
+        return new Wire(null, System.currentTimeMillis());
+    }
+
+    private void forget(String nodeBaseUrl, WireClient w) {
+        Wire cur = wires.get(nodeBaseUrl);
+        if (cur != null && cur.client() == w && wires.remove(nodeBaseUrl, cur)) w.close();
+    }
+
+    /** The node and key behind a {@link ChunkIo#chunkUrl} url, or null for any other url. */
+    private static ChunkRef chunkRef(String url) {
+        int at = url.indexOf("/chunk?");
+        if (at < 0) return null;
+        String fileId = null;
+        String chunkId = null;
+        for (String part : url.substring(at + 7).split("&")) {
+            if (part.startsWith("fileId=")) fileId = part.substring(7);
+            else if (part.startsWith("chunkId=")) chunkId = part.substring(8);
+        }
+        return fileId == null || chunkId == null ? null : new ChunkRef(url.substring(0, at), fileId, chunkId);
+    }
+
+    /**
+     * One node's client and its limit on requests in flight. A request over the limit is queued
+     * and started by whichever request finishes next; one that timed out while queued is dropped.
+     */
+    private static final class NodePool {
+        private final HttpClient client;
+        private final int max;
+        private final ArrayDeque<BooleanSupplier> waiting = new ArrayDeque<>();
+        private int active;
+
+        NodePool(HttpClient client, int max) {
+            this.client = client;
+            this.max = max;
+        }
+
+        <T> CompletableFuture<HttpResponse<T>> send(HttpRequest req, HttpResponse.BodyHandler<T> handler, Duration timeout) {
+            if (max <= 0) return client.sendAsync(req, handler);
+            CompletableFuture<HttpResponse<T>> out = new CompletableFuture<>();
+            BooleanSupplier start = () -> {
+                if (out.isDone()) return false;
+                // a streamed body holds the connection until it is read or closed, and so the slot
+                AtomicBoolean released = new AtomicBoolean();
+                Runnable done = () -> {
+                    if (released.compareAndSet(false, true)) release();
+                };
+                client.sendAsync(req, info -> BodySubscribers.mapping(handler.apply(info), body -> releasing(body, done)))
+                        .whenComplete((r, e) -> {
+                            if (e != null) {
+                                done.run();
+                                out.completeExceptionally(e);
+                            } else if (!(r.body() instanceof InputStream in)) {
+                                done.run();
+                                out.complete(r);
+                            } else if (!out.complete(r)) {
+                                // nobody is left to read it
+                                try { in.close(); } catch (IOException ignored) {}
+                            }
+                        });
+                return true;
+            };
+            synchronized (this) {
+                if (active >= max) {
+                    waiting.add(start);
+                    return out.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                }
+                active++;
+            }
+            start.getAsBoolean();
+            return out;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T releasing(T body, Runnable done) {
+            return body instanceof InputStream in ? (T) new ReleasingStream(in, done) : body;
+        }
+
+        /** Hands the slot to the next queued request that still wants it. */
+        private void release() {
+            while (true) {
+                BooleanSupplier next;
+                synchronized (this) {
+                    next = waiting.poll();
+                    if (next == null) {
+                        active--;
+                        return;
+                    }
+                }
+                if (next.getAsBoolean()) return;
+            }
+        }
+
+        /** Runs {@code done} once, at end of stream or on close, whichever comes first. */
+        private static final class ReleasingStream extends FilterInputStream {
+            private final Runnable done;
+
+            ReleasingStream(InputStream in, Runnable done) {
+                super(in);
+                this.done = done;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) done.run();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n < 0) done.run();
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    done.run();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keyed token buckets (one per user). A request is admitted when the bucket holds at least
+ * {@code min(amount, burst)} tokens and is then debited the full amount, so a single request
+ * larger than the burst is still possible but puts the bucket into debt that later requests
+ * must wait out. A rate of 0 disables the limiter.
+ */
+public final class RateLimiter {
+    private static final int SWEEP_THRESHOLD = 10_000;
+
+    private final double ratePerSec;
+    private final double burst;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    public RateLimiter(double ratePerSec, double burst) {
+        this.ratePerSec = Math.max(0, ratePerSec);
+        this.burst = Math.max(1, burst);
+    }
+
+    public boolean enabled() {
+        return ratePerSec > 0;
+    }
+
+    /** Returns 0 if admitted, otherwise whole seconds until {@code amount} would be admitted. */
+    public long acquire(String key, double amount) {
+        if (!enabled()) return 0;
+        if (buckets.size() > SWEEP_THRESHOLD) sweep();
+        return buckets.computeIfAbsent(key, k -> new Bucket(burst)).acquire(Math.max(0, amount));
+    }
+
+    /** Debits without checking, for costs only known after the fact (e.g. download size). */
+    public void charge(String key, double amount) {
+        if (!enabled() || amount <= 0) return;
+        buckets.computeIfAbsent(key, k -> new Bucket(burst)).charge(amount);
+    }
+
+    /** Full buckets carry no state worth keeping. */
+    private void sweep() {
+        buckets.values().removeIf(Bucket::full);
+    }
+
+    private final class Bucket {
+        private double tokens;
+        private long lastNanos = System.nanoTime();
+
+        Bucket(double tokens) {
+            this.tokens = tokens;
+        }
+
+        synchronized long acquire(double amount) {
+            refill();
+            double need = Math.min(amount, burst);
+            if (tokens >= need) {
+                tokens -= amount;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((need - tokens) / ratePerSec));
+        }
+
+        synchronized void charge(double amount) {
+            refill();
+            tokens -= amount;
+        }
+
+        synchronized boolean full() {
+            refill();
+            return tokens >= burst;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastNanos) / 1e9 * ratePerSec);
+            lastNanos = now;
+        }
+    }
+}
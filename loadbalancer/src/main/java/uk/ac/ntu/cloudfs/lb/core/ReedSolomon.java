@@ -0,0 +1,181 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8): {@code k} data shards plus {@code m} parity
+ * shards, any {@code k} of which rebuild the rest. The encoding matrix is a Vandermonde matrix
+ * normalised so its top {@code k} rows are the identity, so data shards are the input as is.
+ */
+public final class ReedSolomon {
+    private static final int[] LOG = new int[256];
+    private static final byte[] EXP = new byte[510];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) x ^= 0x11D;
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) MUL[a][b] = EXP[LOG[a] + LOG[b]];
+        }
+    }
+
+    private final int k;
+    private final int m;
+    private final byte[][] matrix; // (k + m) x k
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("need k >= 1, m >= 1, k + m <= 256");
+        }
+        this.k = dataShards;
+        this.m = parityShards;
+
+        int n = k + m;
+        byte[][] vandermonde = new byte[n][k];
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c < k; c++) vandermonde[r][c] = pow(r, c);
+        }
+        byte[][] top = new byte[k][];
+        System.arraycopy(vandermonde, 0, top, 0, k);
+        this.matrix = times(vandermonde, invert(top));
+    }
+
+    /** "k+m", e.g. "4+2"; null for a blank spec (replication). */
+    public static ReedSolomon parse(String spec) {
+        if (spec == null || spec.isBlank()) return null;
+        String[] p = spec.trim().split("\\+");
+        if (p.length != 2) throw new IllegalArgumentException("erasure coding spec must be k+m: " + spec);
+        return new ReedSolomon(Integer.parseInt(p[0].trim()), Integer.parseInt(p[1].trim()));
+    }
+
+    public int dataShards() { return k; }
+    public int parityShards() { return m; }
+    public int totalShards() { return k + m; }
+
+    public int shardSize(int length) {
+        return Math.max(1, (length + k - 1) / k);
+    }
+
+    /** Splits {@code data[0, length)} into k zero-padded data shards and appends m parity shards. */
+    public byte[][] encode(byte[] data, int length) {
+        int size = shardSize(length);
+        byte[][] shards = new byte[k + m][size];
+        for (int i = 0; i < k; i++) {
+            int from = i * size;
+            int n = Math.min(size, length - from);
+            if (n > 0) System.arraycopy(data, from, shards[i], 0, n);
+        }
+        for (int p = 0; p < m; p++) {
+            byte[] row = matrix[k + p];
+            for (int j = 0; j < k; j++) mulAdd(row[j], shards[j], shards[k + p], size);
+        }
+        return shards;
+    }
+
+    /**
+     * Rebuilds the original {@code length} bytes from the shards present (missing ones null);
+     * needs at least k of them.
+     */
+    public byte[] decode(byte[][] shards, int length) {
+        int size = shardSize(length);
+        int[] picked = new int[k];
+        int have = 0;
+        boolean dataComplete = true;
+        for (int i = 0; i < k + m && have < k; i++) {
+            if (shards[i] != null) picked[have++] = i;
+            else if (i < k) dataComplete = false;
+        }
+        if (have < k) throw new IllegalArgumentException("need " + k + " shards, have " + have);
+
+        byte[][] data = new byte[k][];
+        if (dataComplete) {
+            System.arraycopy(shards, 0, data, 0, k);
+        } else {
+            byte[][] sub = new byte[k][];
+            for (int j = 0; j < k; j++) sub[j] = matrix[picked[j]];
+            byte[][] inv = invert(sub);
+            for (int d = 0; d < k; d++) {
+                if (shards[d] != null) { data[d] = shards[d]; continue; }
+                byte[] out = new byte[size];
+                for (int j = 0; j < k; j++) mulAdd(inv[d][j], shards[picked[j]], out, size);
+                data[d] = out;
+            }
+        }
+
+        byte[] out = new byte[length];
+        for (int i = 0; i < k; i++) {
+            int from = i * size;
+            int n = Math.min(size, length - from);
+            if (n > 0) System.arraycopy(data[i], 0, out, from, n);
+        }
+        return out;
+    }
+
+    private static void mulAdd(byte c, byte[] in, byte[] out, int len) {
+        if (c == 0) return;
+        byte[] t = MUL[c & 0xff];
+        if (c == 1) {
+            for (int i = 0; i < len; i++) out[i] ^= in[i];
+        } else {
+            for (int i = 0; i < len; i++) out[i] ^= t[in[i] & 0xff];
+        }
+    }
+
+    private static byte mul(byte a, byte b) {
+        return MUL[a & 0xff][b & 0xff];
+    }
+
+    private static byte pow(int a, int n) {
+        if (n == 0) return 1;
+        if (a == 0) return 0;
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte inverse(byte a) {
+        return EXP[255 - LOG[a & 0xff]];
+    }
+
+    private static byte[][] times(byte[][] a, byte[][] b) {
+        byte[][] out = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                byte v = 0;
+                for (int i = 0; i < b.length; i++) v ^= mul(a[r][i], b[i][c]);
+                out[r][c] = v;
+            }
+        }
+        return out;
+    }
+
+    /** Gauss-Jordan inverse of a square matrix over GF(2^8). */
+    private static byte[][] invert(byte[][] src) {
+        int n = src.length;
+        byte[][] a = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(src[r], 0, a[r], 0, n);
+            a[r][n + r] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && a[pivot][col] == 0) pivot++;
+            if (pivot == n) throw new IllegalArgumentException("singular matrix");
+            byte[] tmp = a[col]; a[col] = a[pivot]; a[pivot] = tmp;
+
+            byte scale = inverse(a[col][col]);
+            for (int c = 0; c < 2 * n; c++) a[col][c] = mul(a[col][c], scale);
+            for (int r = 0; r < n; r++) {
+                if (r == col || a[r][col] == 0) continue;
+                byte f = a[r][col];
+                for (int c = 0; c < 2 * n; c++) a[r][c] ^= mul(f, a[col][c]);
+            }
+        }
+        byte[][] out = new byte[n][n];
+        for (int r = 0; r < n; r++) System.arraycopy(a[r], n, out[r], 0, n);
+        return out;
+    }
+}
@@ -3,6 +3,7 @@ package uk.ac.ntu.cloudfs.lb.core;
 import uk.ac.ntu.cloudfs.common.scheduler.EmaLatencyScheduler;
 import uk.ac.ntu.cloudfs.common.scheduler.FcfsScheduler;
 import uk.ac.ntu.cloudfs.common.scheduler.LeastInFlightScheduler;
+import uk.ac.ntu.cloudfs.common.scheduler.PercentileLatencyScheduler;
 import uk.ac.ntu.cloudfs.common.scheduler.PriorityScheduler;
 import uk.ac.ntu.cloudfs.common.scheduler.RoundRobinScheduler;
 import uk.ac.ntu.cloudfs.common.scheduler.Scheduler;
@@ -18,6 +19,8 @@ public final class SchedulerFactory {
 
             case "least_in_flight" -> new LeastInFlightScheduler();
             case "ema_latency" -> new EmaLatencyScheduler();
+            case "p90_latency" -> new PercentileLatencyScheduler(90);
+            case "p99_latency" -> new PercentileLatencyScheduler(99);
             case "round_robin" -> new RoundRobinScheduler();
             default -> new RoundRobinScheduler();
         };
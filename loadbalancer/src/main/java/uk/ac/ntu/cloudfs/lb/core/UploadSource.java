@@ -0,0 +1,141 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import uk.ac.ntu.cloudfs.common.chunking.ContentChunker;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Where an upload's chunks come from, in file order: fresh bytes to store, or a chunk of the
+ * version being replaced that is reused as is.
+ */
+public interface UploadSource extends Closeable {
+
+    /** Largest fresh chunk a delta upload may carry (a 4 MiB-average CDC chunk's maximum). */
+    int MAX_DELTA_CHUNK = 16 * 1024 * 1024;
+
+    /** Next piece, or null at the end. */
+    Piece next() throws IOException;
+
+    /**
+     * Hands back a fresh piece's buffer once nothing reads it any more; the source may fill it
+     * again. Called from the thread that calls {@link #next}.
+     */
+    default void recycle(byte[] data) {}
+
+    /** Either {@code data[0, length)} to store, or the id of a base-version chunk to reuse. */
+    record Piece(byte[] data, int length, String reuseChunkId) {
+        static Piece fresh(byte[] data, int length) {
+            return new Piece(data, length, null);
+        }
+
+        static Piece reuse(String chunkId) {
+            return new Piece(null, 0, chunkId);
+        }
+    }
+
+    /** Fixed-size chunks; with pieces recycled, an upload cycles through a window's worth of buffers. */
+    static UploadSource fixed(InputStream in, int chunkSize) {
+        ArrayDeque<byte[]> free = new ArrayDeque<>();
+        return new UploadSource() {
+            @Override public Piece next() throws IOException {
+                byte[] buf = free.isEmpty() ? new byte[chunkSize] : free.pop();
+                int n = Chunker.fill(in, buf);
+                if (n > 0) return Piece.fresh(buf, n);
+                free.push(buf);
+                return null;
+            }
+            @Override public void recycle(byte[] data) {
+                if (data.length == chunkSize) free.push(data);
+            }
+            @Override public void close() throws IOException { in.close(); }
+        };
+    }
+
+    /**
+     * Content-defined chunks. Any whose SHA-256 is a key of {@code reusable} reuses that chunk
+     * instead of being stored again.
+     */
+    static UploadSource contentDefined(InputStream in, ContentChunker chunker, Map<String, String> reusable) {
+        ContentChunker.Reader reader = chunker.reader(in);
+        MessageDigest md = reusable.isEmpty() ? null : sha256();
+        return new UploadSource() {
+            @Override public Piece next() throws IOException {
+                byte[] chunk = reader.nextChunk();
+                if (chunk == null) return null;
+                if (md != null) {
+                    String reuse = reusable.get(HexFormat.of().formatHex(md.digest(chunk)));
+                    if (reuse != null) return Piece.reuse(reuse);
+                }
+                return Piece.fresh(chunk, chunk.length);
+            }
+            @Override public void close() throws IOException { in.close(); }
+        };
+    }
+
+    /**
+     * Delta upload body, as a sequence of records:
+     * <pre>
+     *   'R' sha256[32]          reuse the base chunk with this plaintext hash
+     *   'D' length[4, BE] bytes  store these bytes as a new chunk
+     * </pre>
+     * Only chunks of the base version can be referenced, so a client cannot claim content it has
+     * not been able to read.
+     */
+    static UploadSource delta(InputStream body, Map<String, String> reusable) {
+        DataInputStream in = new DataInputStream(body);
+        byte[] hash = new byte[32];
+        return new UploadSource() {
+            @Override public Piece next() throws IOException {
+                int tag = in.read();
+                if (tag == -1) return null;
+                if (tag == 'R') {
+                    in.readFully(hash);
+                    String reuse = reusable.get(HexFormat.of().formatHex(hash));
+                    if (reuse == null) throw new IOException("unknown base chunk " + HexFormat.of().formatHex(hash));
+                    return Piece.reuse(reuse);
+                }
+                if (tag == 'D') {
+                    int len = in.readInt();
+                    if (len <= 0 || len > MAX_DELTA_CHUNK) throw new IOException("bad chunk length " + len);
+                    byte[] data = new byte[len];
+                    try {
+                        in.readFully(data);
+                    } catch (EOFException e) {
+                        throw new IOException("truncated chunk");
+                    }
+                    return Piece.fresh(data, len);
+                }
+                throw new IOException("bad record tag " + tag);
+            }
+            @Override public void close() throws IOException { in.close(); }
+        };
+    }
+
+    /** Plaintext SHA-256 → chunk id for the chunks of {@code base} that can be reused. */
+    static Map<String, String> reusable(FileManifestStore.Manifest base, ChunkPlacement placement) {
+        Map<String, String> out = new HashMap<>();
+        if (base == null) return out;
+        for (String chunkId : base.chunkIds()) {
+            var entry = placement.get(base.fileId(), chunkId);
+            if (entry != null && entry.sha256() != null) out.putIfAbsent(entry.sha256(), chunkId);
+        }
+        return out;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+}
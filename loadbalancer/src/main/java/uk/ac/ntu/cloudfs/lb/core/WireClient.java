@@ -0,0 +1,139 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import uk.ac.ntu.cloudfs.common.wire.NodeWire;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A few persistent {@link NodeWire} connections to one storage node. Any number of requests
+ * share a connection, each tagged with an id; a reader thread per connection hands responses
+ * back as they arrive. A connection that breaks fails everything pending on it and is replaced
+ * on next use.
+ */
+final class WireClient {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+
+    record Response(int status, long crc32, byte[] body) {}
+
+    private final InetSocketAddress address;
+    private final Connection[] slots;
+    private final AtomicInteger next = new AtomicInteger();
+
+    WireClient(InetSocketAddress address, int connections) {
+        this.address = address;
+        this.slots = new Connection[Math.max(1, connections)];
+    }
+
+    /**
+     * Sends the request and returns its response future; {@code data} is sent for a PUT only. The
+     * future fails with {@link TimeoutException} after {@code timeout}.
+     */
+    CompletableFuture<Response> submit(int op, String fileId, String chunkId, byte[] data, int offset, int length, Duration timeout) {
+        Connection c;
+        try {
+            c = connection(Math.floorMod(next.getAndIncrement(), slots.length));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        int id = c.ids.incrementAndGet();
+        CompletableFuture<Response> f = new CompletableFuture<>();
+        c.pending.put(id, f);
+        try {
+            c.send(NodeWire.request(id, op, fileId, chunkId, data == null ? 0 : length), data, offset, length);
+        } catch (IOException e) {
+            c.pending.remove(id);
+            return CompletableFuture.failedFuture(e);
+        }
+        return f.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS).whenComplete((r, e) -> c.pending.remove(id));
+    }
+
+    void close() {
+        synchronized (slots) {
+            for (Connection c : slots) if (c != null) c.close(new IOException("client closed"));
+        }
+    }
+
+    private Connection connection(int slot) throws IOException {
+        synchronized (slots) {
+            Connection c = slots[slot];
+            if (c == null || c.closed) {
+                c = new Connection(address);
+                slots[slot] = c;
+            }
+            return c;
+        }
+    }
+
+    private static final class Connection {
+        final SocketChannel ch;
+        final ConcurrentHashMap<Integer, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+        final AtomicInteger ids = new AtomicInteger();
+        volatile boolean closed;
+
+        Connection(InetSocketAddress address) throws IOException {
+            ch = SocketChannel.open();
+            try {
+                ch.socket().connect(address, CONNECT_TIMEOUT_MS);
+                ch.socket().setTcpNoDelay(true);
+                write(new ByteBuffer[] {ByteBuffer.wrap(NodeWire.MAGIC)});
+            } catch (IOException e) {
+                ch.close();
+                throw e;
+            }
+            Thread t = new Thread(this::read, "wire-read-" + address.getPort());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /** Header and body go out in one gathering write, the body straight from the caller's array. */
+        void send(ByteBuffer header, byte[] data, int offset, int length) throws IOException {
+            try {
+                write(data == null ? new ByteBuffer[] {header} : new ByteBuffer[] {header, ByteBuffer.wrap(data, offset, length)});
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+
+        private void write(ByteBuffer[] bufs) throws IOException {
+            synchronized (this) {
+                while (bufs[bufs.length - 1].hasRemaining()) ch.write(bufs);
+            }
+        }
+
+        private void read() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(ch.socket().getInputStream(), 64 * 1024));
+                while (true) {
+                    int id = in.readInt();
+                    int status = in.readUnsignedByte();
+                    long crc = in.readInt() & 0xFFFFFFFFL;
+                    byte[] body = new byte[NodeWire.checkLength(in.readInt())];
+                    in.readFully(body);
+                    // gone if the caller timed out
+                    CompletableFuture<Response> f = pending.remove(id);
+                    if (f != null) f.complete(new Response(status, crc, body));
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void close(IOException cause) {
+            closed = true;
+            try { ch.close(); } catch (IOException ignored) {}
+            for (var f : pending.values()) f.completeExceptionally(cause);
+        }
+    }
+}
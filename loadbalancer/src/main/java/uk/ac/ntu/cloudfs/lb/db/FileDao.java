@@ -6,16 +6,18 @@ import uk.ac.ntu.cloudfs.lb.core.FileManifestStore;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.StringJoiner;
 
 public final class FileDao {
 
     public void upsertFile(Connection c, FileManifestStore.Manifest m) throws Exception {
         try (PreparedStatement ps = c.prepareStatement(
-                "REPLACE INTO files(file_id,total_bytes,chunk_size) VALUES(?,?,?)")) {
+                "REPLACE INTO files(file_id,total_bytes,chunk_size,version) VALUES(?,?,?,?)")) {
             ps.setString(1, m.fileId());
             ps.setLong(2, m.totalBytes());
             ps.setInt(3, m.chunkSize());
+            ps.setLong(4, m.version());
             ps.executeUpdate();
         }
 
@@ -37,28 +39,49 @@ public final class FileDao {
         }
     }
 
-        public void deleteFile(Connection mysql, String fileId) throws Exception {
-    try (var ps = mysql.prepareStatement("DELETE FROM files WHERE file_id=?")) {
-        ps.setString(1, fileId);
-        ps.executeUpdate();
+    /** Placement rows are left to the chunk GC, which drops exactly the chunks it collects. */
+    public void deleteFile(Connection mysql, String fileId) throws Exception {
+        try (var ps = mysql.prepareStatement("DELETE FROM files WHERE file_id=?")) {
+            ps.setString(1, fileId);
+            ps.executeUpdate();
+        }
     }
-    try (var ps = mysql.prepareStatement("DELETE FROM placements WHERE file_id=?")) {
-        ps.setString(1, fileId);
-        ps.executeUpdate();
+
+    public void deletePlacements(Connection c, String fileId, List<String> chunkIds) throws Exception {
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM chunk_placement WHERE file_id=? AND chunk_id=?")) {
+            for (String chunkId : chunkIds) {
+                ps.setString(1, fileId);
+                ps.setString(2, chunkId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
     }
-}
 
     public void upsertPlacement(Connection c, String fileId, String chunkId, ChunkPlacement.Entry e) throws Exception {
         StringJoiner j = new StringJoiner(",");
         for (String url : e.nodeBaseUrls()) j.add(url);
+        StringJoiner shardCrcs = null;
+        if (e.shardCrcs() != null) {
+            shardCrcs = new StringJoiner(",");
+            for (long crc : e.shardCrcs()) shardCrcs.add(Long.toString(crc));
+        }
 
         try (PreparedStatement ps = c.prepareStatement(
-                "REPLACE INTO chunk_placement(file_id,chunk_id,replica_urls,crc32,bytes) VALUES(?,?,?,?,?)")) {
+                "REPLACE INTO chunk_placement(file_id,chunk_id,replica_urls,crc32,bytes,sha256,blob_id,codec,stored_bytes,data_shards,parity_shards,stored_id,shard_crcs) VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?)")) {
             ps.setString(1, fileId);
             ps.setString(2, chunkId);
             ps.setString(3, j.toString());
             ps.setLong(4, e.crc32());
             ps.setInt(5, e.bytes());
+            ps.setString(6, e.sha256());
+            ps.setString(7, e.blob());
+            ps.setInt(8, e.codec());
+            ps.setInt(9, e.storedBytes());
+            ps.setInt(10, e.dataShards());
+            ps.setInt(11, e.parityShards());
+            ps.setString(12, e.storedId());
+            ps.setString(13, shardCrcs == null ? null : shardCrcs.toString());
             ps.executeUpdate();
         }
     }
@@ -14,13 +14,14 @@ public final class MySqlReadDao {
         Map<String, FileManifestStore.Manifest> out = new LinkedHashMap<>();
 
         // files
-        try (PreparedStatement ps = mysql.prepareStatement("SELECT file_id,total_bytes,chunk_size FROM files");
+        try (PreparedStatement ps = mysql.prepareStatement("SELECT file_id,total_bytes,chunk_size,version FROM files");
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
                 String fileId = rs.getString(1);
                 long total = rs.getLong(2);
                 int chunkSize = rs.getInt(3);
-                out.put(fileId, new FileManifestStore.Manifest(fileId, total, chunkSize, new ArrayList<>()));
+                long version = rs.getLong(4);
+                out.put(fileId, new FileManifestStore.Manifest(fileId, total, chunkSize, new ArrayList<>(), version));
             }
         }
 
@@ -44,7 +45,7 @@ public final class MySqlReadDao {
     public List<PlacementRow> loadAllPlacements(Connection mysql) throws Exception {
         List<PlacementRow> rows = new ArrayList<>();
         try (PreparedStatement ps = mysql.prepareStatement(
-                "SELECT file_id,chunk_id,replica_urls,crc32,bytes FROM chunk_placement");
+                "SELECT file_id,chunk_id,replica_urls,crc32,bytes,sha256,blob_id,codec,stored_bytes,data_shards,parity_shards,stored_id,shard_crcs FROM chunk_placement");
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
                 String fileId = rs.getString(1);
@@ -52,16 +53,26 @@ public final class MySqlReadDao {
                 String replicaUrls = rs.getString(3);
                 long crc32 = rs.getLong(4);
                 int bytes = rs.getInt(5);
+                String sha256 = rs.getString(6);
+                String blob = rs.getString(7);
+                int codec = rs.getInt(8);
+                int stored = rs.getInt(9);
+                if (rs.wasNull()) stored = bytes;
+                int dataShards = rs.getInt(10);
+                int parityShards = rs.getInt(11);
+                String storedId = rs.getString(12);
+                String shardCrcs = rs.getString(13);
 
                 List<String> urls = replicaUrls == null || replicaUrls.isBlank()
                         ? List.of()
                         : Arrays.asList(replicaUrls.split(","));
 
-                rows.add(new PlacementRow(fileId, chunkId, urls, crc32, bytes));
+                rows.add(new PlacementRow(fileId, chunkId, new ChunkPlacement.Entry(urls, crc32, bytes, sha256, blob, codec, stored, dataShards, parityShards, storedId,
+                        shardCrcs == null || shardCrcs.isBlank() ? null : Arrays.stream(shardCrcs.split(",")).map(Long::valueOf).toList())));
             }
         }
         return rows;
     }
 
-    public record PlacementRow(String fileId, String chunkId, List<String> urls, long crc32, int bytes) {}
+    public record PlacementRow(String fileId, String chunkId, ChunkPlacement.Entry entry) {}
 }
\ No newline at end of file
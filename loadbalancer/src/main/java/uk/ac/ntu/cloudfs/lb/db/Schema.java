@@ -41,6 +41,87 @@ public final class Schema {
                 )
             """);
 
+            try {
+                s.executeUpdate("""
+                    ALTER TABLE chunk_placement
+                    ADD COLUMN sha256 CHAR(64) NULL,
+                    ADD COLUMN blob_id VARCHAR(192) NULL
+                """);
+            } catch (Exception ignored) {
+                // columns already exist
+            }
+
+            try {
+                s.executeUpdate("""
+                    ALTER TABLE chunk_placement
+                    ADD COLUMN codec TINYINT NOT NULL DEFAULT 0,
+                    ADD COLUMN stored_bytes INT NULL
+                """);
+            } catch (Exception ignored) {
+                // columns already exist
+            }
+
+            try {
+                s.executeUpdate("""
+                    ALTER TABLE chunk_placement
+                    ADD COLUMN data_shards INT NOT NULL DEFAULT 0,
+                    ADD COLUMN parity_shards INT NOT NULL DEFAULT 0
+                """);
+            } catch (Exception ignored) {
+                // columns already exist
+            }
+
+            try {
+                s.executeUpdate("""
+                    ALTER TABLE chunk_placement
+                    ADD COLUMN stored_id VARCHAR(192) NULL
+                """);
+            } catch (Exception ignored) {
+                // column already exists
+            }
+
+            try {
+                s.executeUpdate("""
+                    ALTER TABLE chunk_placement
+                    ADD COLUMN shard_crcs TEXT NULL
+                """);
+            } catch (Exception ignored) {
+                // column already exists
+            }
+
+            s.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS chunk_tombstones (
+                  url VARCHAR(512) PRIMARY KEY,
+                  attempts INT NOT NULL DEFAULT 0,
+                  next_attempt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                  created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+                )
+            """);
+
+            s.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS upload_sessions (
+                  upload_id VARCHAR(64) PRIMARY KEY,
+                  file_id VARCHAR(128) NOT NULL,
+                  username VARCHAR(64) NOT NULL,
+                  chunk_size INT NOT NULL,
+                  if_version BIGINT NULL,
+                  created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                  updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+                )
+            """);
+
+            s.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS upload_parts (
+                  upload_id VARCHAR(64) NOT NULL,
+                  part_no INT NOT NULL,
+                  chunk_ids TEXT NOT NULL,
+                  bytes BIGINT NOT NULL,
+                  PRIMARY KEY (upload_id, part_no),
+                  FOREIGN KEY (upload_id) REFERENCES upload_sessions(upload_id)
+                    ON DELETE CASCADE
+                )
+            """);
+
             s.executeUpdate("""
             CREATE TABLE IF NOT EXISTS audit_log (
               id BIGINT PRIMARY KEY AUTO_INCREMENT,
@@ -72,6 +153,16 @@ public final class Schema {
                 // column should exitst
             }
 
+            try {
+                s.executeUpdate("""
+                    ALTER TABLE files
+                    ADD COLUMN version BIGINT
+                    NOT NULL DEFAULT 0
+                """);
+            } catch (Exception ignored) {
+                // column already exists
+            }
+
             s.executeUpdate("""
                 CREATE TABLE IF NOT EXISTS acls (
                   file_id VARCHAR(128) NOT NULL,
@@ -0,0 +1,74 @@
+package uk.ac.ntu.cloudfs.lb.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Object deletes still owed to storage nodes. A failed attempt backs off exponentially (30 s
+ * doubling, capped at an hour); after {@link #MAX_ATTEMPTS} the delete is given up on.
+ */
+public final class TombstoneDao {
+    public static final int MAX_ATTEMPTS = 100;
+
+    /** New tombstones only come due after this, leaving the first attempt to whoever added them. */
+    private static final int FIRST_RETRY_SECONDS = 60;
+
+    /** Tombstones {@code urls}, first due {@link #FIRST_RETRY_SECONDS} after {@code delayMs}. */
+    public void add(Connection c, List<String> urls, long delayMs) throws Exception {
+        long seconds = (Math.max(0, delayMs) + 999) / 1000 + FIRST_RETRY_SECONDS;
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT IGNORE INTO chunk_tombstones(url,next_attempt) VALUES(?, NOW() + INTERVAL ? SECOND)")) {
+            for (String url : urls) {
+                ps.setString(1, url);
+                ps.setLong(2, seconds);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    public void remove(Connection c, List<String> urls) throws Exception {
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM chunk_tombstones WHERE url=?")) {
+            for (String url : urls) {
+                ps.setString(1, url);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    public void failed(Connection c, List<String> urls) throws Exception {
+        try (PreparedStatement ps = c.prepareStatement("""
+                UPDATE chunk_tombstones
+                SET attempts = attempts + 1,
+                    next_attempt = NOW() + INTERVAL LEAST(3600, 30 * POW(2, LEAST(attempts, 7))) SECOND
+                WHERE url=?
+                """)) {
+            for (String url : urls) {
+                ps.setString(1, url);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /** Drops tombstones past {@link #MAX_ATTEMPTS}, then returns up to {@code limit} due ones. */
+    public List<String> due(Connection c, int limit) throws Exception {
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM chunk_tombstones WHERE attempts >= ?")) {
+            ps.setInt(1, MAX_ATTEMPTS);
+            ps.executeUpdate();
+        }
+        List<String> out = new ArrayList<>();
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT url FROM chunk_tombstones WHERE next_attempt <= NOW() ORDER BY next_attempt LIMIT ?")) {
+            ps.setInt(1, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(rs.getString(1));
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,115 @@
+package uk.ac.ntu.cloudfs.lb.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multipart upload sessions. A part row lists the chunks its bytes were stored as; their
+ * placement lives in {@code chunk_placement} like any other chunk, so a session survives a
+ * restart of the load balancer.
+ */
+public final class UploadDao {
+
+    public void create(Connection c, Session s) throws Exception {
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO upload_sessions(upload_id,file_id,username,chunk_size,if_version) VALUES(?,?,?,?,?)")) {
+            ps.setString(1, s.uploadId());
+            ps.setString(2, s.fileId());
+            ps.setString(3, s.username());
+            ps.setInt(4, s.chunkSize());
+            if (s.ifVersion() == null) ps.setNull(5, Types.BIGINT);
+            else ps.setLong(5, s.ifVersion());
+            ps.executeUpdate();
+        }
+    }
+
+    public Session get(Connection c, String uploadId) throws Exception {
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT upload_id,file_id,username,chunk_size,if_version FROM upload_sessions WHERE upload_id=?")) {
+            ps.setString(1, uploadId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? session(rs) : null;
+            }
+        }
+    }
+
+    /** Sessions nobody has touched for {@code idleSeconds}. */
+    public List<Session> listIdle(Connection c, long idleSeconds) throws Exception {
+        List<Session> out = new ArrayList<>();
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT upload_id,file_id,username,chunk_size,if_version FROM upload_sessions "
+                        + "WHERE updated_at < NOW() - INTERVAL ? SECOND")) {
+            ps.setLong(1, idleSeconds);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(session(rs));
+            }
+        }
+        return out;
+    }
+
+    /** Records a part, replacing any earlier upload of the same number; returns the chunks it replaced. */
+    public List<String> putPart(Connection c, String uploadId, Part part) throws Exception {
+        List<String> replaced = List.of();
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT chunk_ids FROM upload_parts WHERE upload_id=? AND part_no=?")) {
+            ps.setString(1, uploadId);
+            ps.setInt(2, part.partNo());
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) replaced = split(rs.getString(1));
+            }
+        }
+        try (PreparedStatement ps = c.prepareStatement(
+                "REPLACE INTO upload_parts(upload_id,part_no,chunk_ids,bytes) VALUES(?,?,?,?)")) {
+            ps.setString(1, uploadId);
+            ps.setInt(2, part.partNo());
+            ps.setString(3, String.join(",", part.chunkIds()));
+            ps.setLong(4, part.bytes());
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = c.prepareStatement(
+                "UPDATE upload_sessions SET updated_at=CURRENT_TIMESTAMP WHERE upload_id=?")) {
+            ps.setString(1, uploadId);
+            ps.executeUpdate();
+        }
+        return replaced;
+    }
+
+    /** In part number order. */
+    public List<Part> listParts(Connection c, String uploadId) throws Exception {
+        List<Part> out = new ArrayList<>();
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT part_no,chunk_ids,bytes FROM upload_parts WHERE upload_id=? ORDER BY part_no")) {
+            ps.setString(1, uploadId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(new Part(rs.getInt(1), split(rs.getString(2)), rs.getLong(3)));
+            }
+        }
+        return out;
+    }
+
+    public void delete(Connection c, String uploadId) throws Exception {
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM upload_sessions WHERE upload_id=?")) {
+            ps.setString(1, uploadId);
+            ps.executeUpdate();
+        }
+    }
+
+    private static Session session(ResultSet rs) throws Exception {
+        long v = rs.getLong(5);
+        Long ifVersion = rs.wasNull() ? null : v;
+        return new Session(rs.getString(1), rs.getString(2), rs.getString(3), rs.getInt(4), ifVersion);
+    }
+
+    private static List<String> split(String csv) {
+        return csv == null || csv.isEmpty() ? List.of() : List.of(csv.split(","));
+    }
+
+    /** {@code ifVersion} is the version the upload replaces, or null for whatever is current at completion. */
+    public record Session(String uploadId, String fileId, String username, int chunkSize, Long ifVersion) {}
+
+    public record Part(int partNo, List<String> chunkIds, long bytes) {}
+}
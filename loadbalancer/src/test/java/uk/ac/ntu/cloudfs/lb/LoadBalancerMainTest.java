@@ -0,0 +1,92 @@
+package uk.ac.ntu.cloudfs.lb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import uk.ac.ntu.cloudfs.lb.core.JobQueue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoadBalancerMainTest {
+
+    /**
+     * Handlers block until their job is done, as in the load balancer. A read must get through
+     * while an upload holds the bulk lane, which needs both requests in flight at once.
+     */
+    @Test
+    void concurrentRequestsCompeteInLanes() throws Exception {
+        CountDownLatch uploadRunning = new CountDownLatch(1);
+        CountDownLatch releaseUpload = new CountDownLatch(1);
+        ExecutorService http = LoadBalancerMain.httpExecutor(8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        try (JobQueue jobs = new JobQueue(2, JobQueue.defaults(2, 10), 0)) {
+            server.createContext("/upload", ex -> handle(ex, jobs, JobQueue.Lane.BULK, () -> {
+                uploadRunning.countDown();
+                releaseUpload.await();
+                return "uploaded";
+            }));
+            server.createContext("/read", ex -> handle(ex, jobs, JobQueue.Lane.INTERACTIVE, () -> "read"));
+            server.setExecutor(http);
+            server.start();
+
+            HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            CompletableFuture<HttpResponse<String>> upload = client.sendAsync(
+                    HttpRequest.newBuilder(URI.create(base + "/upload")).build(), HttpResponse.BodyHandlers.ofString());
+            assertTrue(uploadRunning.await(5, TimeUnit.SECONDS));
+
+            // a second upload waits in the bulk lane, which may only use one of the two workers
+            CompletableFuture<HttpResponse<String>> queued = client.sendAsync(
+                    HttpRequest.newBuilder(URI.create(base + "/upload")).build(), HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> read = client.send(
+                    HttpRequest.newBuilder(URI.create(base + "/read")).timeout(Duration.ofSeconds(5)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, read.statusCode());
+            assertEquals("read", read.body());
+            assertFalse(upload.isDone());
+            assertFalse(queued.isDone());
+
+            releaseUpload.countDown();
+            assertEquals("uploaded", upload.get(5, TimeUnit.SECONDS).body());
+            assertEquals("uploaded", queued.get(5, TimeUnit.SECONDS).body());
+        } finally {
+            releaseUpload.countDown();
+            server.stop(0);
+            http.shutdownNow();
+        }
+    }
+
+    private static void handle(HttpExchange ex, JobQueue jobs, JobQueue.Lane lane, Callable<String> job)
+            throws IOException {
+        String body;
+        int code = 200;
+        try {
+            body = jobs.submit(lane, "user", 0, null, job).get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            code = 500;
+            body = e.toString();
+        }
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        ex.sendResponseHeaders(code, data.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(data);
+        }
+    }
+}
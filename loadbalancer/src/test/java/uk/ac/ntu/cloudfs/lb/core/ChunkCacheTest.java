@@ -0,0 +1,118 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkCacheTest {
+    private static final int KIB = 1024;
+
+    @Test
+    void missThenHit() {
+        ChunkCache cache = new ChunkCache(1024 * KIB, 64 * KIB, false);
+        ChunkCache.Key key = key("f", "c0");
+        byte[] plain = random(1, 4 * KIB);
+
+        assertNull(cache.get(key));
+        cache.put(key, plain);
+        assertSame(plain, cache.get(key));
+        assertTrue(cache.metrics().contains(" hits=1 misses=1 "), cache.metrics());
+    }
+
+    @Test
+    void versionIsPartOfTheKey() {
+        ChunkCache cache = new ChunkCache(1024 * KIB, 64 * KIB, false);
+        cache.put(new ChunkCache.Key("f", "c0", "v1"), random(1, 100));
+        assertNull(cache.get(new ChunkCache.Key("f", "c0", "v2")));
+    }
+
+    @Test
+    void oversizedChunksAreNotCached() {
+        ChunkCache cache = new ChunkCache(1024 * KIB, 64 * KIB, false);
+        cache.put(key("f", "big"), random(1, 64 * KIB + 1));
+        assertNull(cache.get(key("f", "big")));
+
+        // an eighth of the cache caps the entry size too
+        ChunkCache small = new ChunkCache(256 * KIB, 64 * KIB, false);
+        small.put(key("f", "big"), random(1, 32 * KIB + 1));
+        assertNull(small.get(key("f", "big")));
+    }
+
+    @Test
+    void invalidateDropsOnlyTheNamedChunks() {
+        ChunkCache cache = new ChunkCache(1024 * KIB, 64 * KIB, false);
+        cache.put(new ChunkCache.Key("f", "c0", "v1"), random(1, 100));
+        cache.put(new ChunkCache.Key("f", "c1", "v1"), random(2, 100));
+        cache.put(new ChunkCache.Key("g", "c0", "v1"), random(3, 100));
+
+        cache.invalidate("f", List.of("c0"));
+
+        assertNull(cache.get(new ChunkCache.Key("f", "c0", "v1")));
+        assertNotNull(cache.get(new ChunkCache.Key("f", "c1", "v1")));
+        assertNotNull(cache.get(new ChunkCache.Key("g", "c0", "v1")));
+    }
+
+    @Test
+    void offHeapHitsAreCopies() {
+        ChunkCache cache = new ChunkCache(1024 * KIB, 64 * KIB, true);
+        byte[] plain = random(1, 4 * KIB);
+        cache.put(key("f", "c0"), plain.clone());
+
+        byte[] first = cache.get(key("f", "c0"));
+        assertArrayEquals(plain, first);
+        first[0] ^= 1;
+        byte[] second = cache.get(key("f", "c0"));
+        assertNotSame(first, second);
+        assertArrayEquals(plain, second);
+    }
+
+    /** The W-TinyLFU point: one pass over a large file must not push out chunks read repeatedly. */
+    @Test
+    void scanDoesNotFlushTheHotSet() {
+        ChunkCache cache = new ChunkCache(1024 * KIB, 64 * KIB, false);
+        int hot = 10;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < hot; i++) read(cache, key("hot", "c" + i), 16 * KIB);
+        }
+
+        // 3 MiB of chunks each read once, three times the cache
+        for (int i = 0; i < 200; i++) read(cache, key("scan", "c" + i), 16 * KIB);
+
+        for (int i = 0; i < hot; i++) assertNotNull(cache.get(key("hot", "c" + i)), "hot chunk " + i + " evicted");
+    }
+
+    @Test
+    void staysWithinItsByteBudget() {
+        ChunkCache cache = new ChunkCache(512 * KIB, 64 * KIB, false);
+        for (int i = 0; i < 500; i++) {
+            ChunkCache.Key k = key("f", "c" + i);
+            for (int r = 0; r <= i % 3; r++) read(cache, k, 16 * KIB);
+        }
+        String m = cache.metrics();
+        long bytes = Long.parseLong(m.replaceAll("(?s).* bytes=(\\d+) .*", "$1"));
+        assertTrue(bytes <= 512 * KIB, m);
+    }
+
+    /** How the read path uses the cache: look up, and fill on a miss. */
+    private static void read(ChunkCache cache, ChunkCache.Key key, int size) {
+        if (cache.get(key) == null) cache.put(key, new byte[size]);
+    }
+
+    private static ChunkCache.Key key(String fileId, String chunkId) {
+        return new ChunkCache.Key(fileId, chunkId, "v");
+    }
+
+    private static byte[] random(long seed, int size) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+}
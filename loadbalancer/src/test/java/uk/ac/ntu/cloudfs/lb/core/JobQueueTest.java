@@ -0,0 +1,135 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobQueueTest {
+    private static final JobQueue.Lane BULK = JobQueue.Lane.BULK;
+    private static final long MIB = 1024 * 1024;
+
+    @Test
+    void usersTakeTurnsWithinALane() throws Exception {
+        try (JobQueue q = singleWorker(100, 50)) {
+            List<String> order = new ArrayList<>();
+            CountDownLatch gate = block(q);
+            List<Future<?>> all = new ArrayList<>();
+            for (int i = 0; i < 6; i++) all.add(q.submit(BULK, "a", 0, null, record(order, "a")));
+            for (int i = 0; i < 2; i++) all.add(q.submit(BULK, "b", 0, null, record(order, "b")));
+            gate.countDown();
+            await(all);
+
+            assertEquals(List.of("a", "b", "a", "b", "a", "a", "a", "a"), order);
+        }
+    }
+
+    @Test
+    void largePayloadsCostMoreTurns() throws Exception {
+        try (JobQueue q = singleWorker(100, 50)) {
+            List<String> order = new ArrayList<>();
+            CountDownLatch gate = block(q);
+            List<Future<?>> all = new ArrayList<>();
+            // 4 MiB costs 5 turns, so b's three 1-turn jobs all go first
+            all.add(q.submit(BULK, "a", 4 * MIB, null, record(order, "a")));
+            for (int i = 0; i < 3; i++) all.add(q.submit(BULK, "b", 0, null, record(order, "b")));
+            gate.countDown();
+            await(all);
+
+            assertEquals(List.of("b", "b", "b", "a"), order);
+        }
+    }
+
+    @Test
+    void chargeAfterTheFactDelaysTheUsersNextTask() throws Exception {
+        try (JobQueue q = singleWorker(100, 50)) {
+            List<String> order = new ArrayList<>();
+            CountDownLatch gate = block(q);
+            List<Future<?>> all = new ArrayList<>();
+            // like a chunked upload: submitted at cost 0, charged for 8 MiB once it has read them
+            all.add(q.submit(BULK, "a", 0, null, () -> {
+                q.charge(BULK, "a", 8 * MIB);
+                return record(order, "a").call();
+            }));
+            all.add(q.submit(BULK, "a", 0, null, record(order, "a2")));
+            for (int i = 0; i < 3; i++) all.add(q.submit(BULK, "b", 0, null, record(order, "b")));
+            gate.countDown();
+            await(all);
+
+            assertEquals(List.of("a", "b", "b", "b", "a2"), order);
+        }
+    }
+
+    @Test
+    void rejectsOverUserCapAndLaneCapacity() throws Exception {
+        try (JobQueue q = singleWorker(3, 2)) {
+            CountDownLatch gate = block(q);
+            q.submit(BULK, "a", 0, null, () -> null);
+            q.submit(BULK, "a", 0, null, () -> null);
+            assertThrows(RejectedExecutionException.class, () -> q.submit(BULK, "a", 0, null, () -> null));
+            q.submit(BULK, "b", 0, null, () -> null);
+            assertThrows(RejectedExecutionException.class, () -> q.submit(BULK, "c", 0, null, () -> null));
+            // other lanes have their own queues
+            q.submit(JobQueue.Lane.INTERACTIVE, "c", 0, null, () -> null);
+            gate.countDown();
+        }
+    }
+
+    @Test
+    void taskWhoseDeadlinePassedInTheQueueDoesNotRun() throws Exception {
+        try (JobQueue q = singleWorker(100, 50)) {
+            CountDownLatch gate = block(q);
+            boolean[] ran = {false};
+            Future<Object> f = q.submit(BULK, "a", 0, Deadline.afterMs(1), () -> ran[0] = true);
+            Thread.sleep(20);
+            gate.countDown();
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> f.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof Deadline.ExceededException);
+            assertTrue(!ran[0]);
+        }
+    }
+
+    /** One worker shared by all lanes, so tasks run one at a time in dequeue order. */
+    private static JobQueue singleWorker(int capacity, int userCap) {
+        Map<JobQueue.Lane, JobQueue.LaneConfig> config = JobQueue.defaults(1, capacity);
+        return new JobQueue(1, config, userCap);
+    }
+
+    /** Occupies the only worker until the returned latch is released. */
+    private static CountDownLatch block(JobQueue q) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        q.submit(JobQueue.Lane.BACKGROUND, "gate", 0, null, () -> {
+            started.countDown();
+            gate.await();
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    private static Callable<Object> record(List<String> order, String name) {
+        return () -> {
+            synchronized (order) {
+                order.add(name);
+            }
+            return null;
+        };
+    }
+
+    private static void await(List<Future<?>> futures) throws Exception {
+        for (Future<?> f : futures) f.get(5, TimeUnit.SECONDS);
+    }
+}
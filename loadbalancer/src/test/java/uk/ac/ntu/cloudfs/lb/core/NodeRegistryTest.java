@@ -0,0 +1,50 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import org.junit.jupiter.api.Test;
+import uk.ac.ntu.cloudfs.common.scheduler.NodeInfo;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NodeRegistryTest {
+
+    @Test
+    void reRegisteringAtTheSameUrlKeepsTheNode() {
+        NodeRegistry registry = new NodeRegistry();
+        NodeInfo first = registry.register(new NodeInfo("n1", "http://a:9000"));
+        assertSame(first, registry.register(new NodeInfo("n1", "http://a:9000")));
+    }
+
+    @Test
+    void registrationCannotMoveANode() {
+        NodeRegistry registry = new NodeRegistry();
+        registry.register(new NodeInfo("n1", "http://a:9000"));
+        assertNull(registry.register(new NodeInfo("n1", "http://evil:9000")));
+        assertFalse(registry.removed("n1"));
+    }
+
+    @Test
+    void removedNodeStaysOutUntilAnAdminAddsItBack() {
+        NodeRegistry registry = new NodeRegistry();
+        registry.register(new NodeInfo("n1", "http://a:9000"));
+
+        assertNotNull(registry.remove("n1"));
+        assertTrue(registry.removed("n1"));
+        assertNull(registry.register(new NodeInfo("n1", "http://a:9000")));
+        assertNull(registry.byId("n1"));
+
+        registry.upsert(new NodeInfo("n1", "http://a:9000"));
+        assertFalse(registry.removed("n1"));
+        assertNotNull(registry.register(new NodeInfo("n1", "http://a:9000")));
+    }
+
+    @Test
+    void removingAnUnknownNodeRemembersNothing() {
+        NodeRegistry registry = new NodeRegistry();
+        assertNull(registry.remove("ghost"));
+        assertFalse(registry.removed("ghost"));
+    }
+}
@@ -0,0 +1,91 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import org.junit.jupiter.api.Test;
+import uk.ac.ntu.cloudfs.common.scheduler.CircuitBreaker;
+import uk.ac.ntu.cloudfs.common.scheduler.LatencyOp;
+import uk.ac.ntu.cloudfs.common.scheduler.NodeInfo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutlierEjectorTest {
+
+    @Test
+    void failuresEjectANode() {
+        NodeRegistry registry = registry(4);
+        OutlierEjector ejector = new OutlierEjector(registry, 0, 50);
+        NodeInfo node = registry.all().get(0);
+
+        for (int i = 0; i < 5; i++) fail(ejector, node);
+
+        assertEquals(CircuitBreaker.State.OPEN, node.breaker().state());
+        assertFalse(node.breaker().tryAcquire());
+    }
+
+    @Test
+    void capHoldsWhenEveryNodeFails() {
+        NodeRegistry registry = registry(4);
+        OutlierEjector ejector = new OutlierEjector(registry, 0, 50);
+
+        for (int i = 0; i < 10; i++) for (NodeInfo n : registry.all()) fail(ejector, n);
+
+        assertEquals(2, ejector.ejectedCount());
+    }
+
+    /** Two nodes at 50%: concurrent failures on both must still leave one in service. */
+    @Test
+    void capHoldsUnderConcurrentFailures() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            NodeRegistry registry = registry(2);
+            OutlierEjector ejector = new OutlierEjector(registry, 0, 50);
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            CountDownLatch go = new CountDownLatch(1);
+            for (int t = 0; t < 8; t++) {
+                NodeInfo node = registry.all().get(t % 2);
+                pool.execute(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 20; i++) fail(ejector, node);
+                });
+            }
+            go.countDown();
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+            assertEquals(1, ejector.ejectedCount(), "round " + round);
+        }
+    }
+
+    @Test
+    void callsNotAdmittedLeaveTheBreakerAlone() {
+        NodeRegistry registry = registry(4);
+        OutlierEjector ejector = new OutlierEjector(registry, 0, 50);
+        NodeInfo node = registry.all().get(0);
+        for (int i = 0; i < 5; i++) fail(ejector, node);
+
+        // a last-resort call to the ejected node that succeeds does not close it
+        assertFalse(ejector.onCallStart(node));
+        ejector.onSuccess(node, LatencyOp.CHUNK_GET, 1, false);
+        assertEquals(CircuitBreaker.State.OPEN, node.breaker().state());
+        assertEquals(0, node.inFlight());
+    }
+
+    private static void fail(OutlierEjector ejector, NodeInfo node) {
+        ejector.onFailure(node, ejector.onCallStart(node));
+    }
+
+    private static NodeRegistry registry(int nodes) {
+        NodeRegistry registry = new NodeRegistry();
+        for (int i = 0; i < nodes; i++) registry.addNode(new NodeInfo("n" + i, "http://n" + i + ":9000"));
+        return registry;
+    }
+}
@@ -0,0 +1,111 @@
+package uk.ac.ntu.cloudfs.lb.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ReedSolomonTest {
+
+    @Test
+    void dataShardsAreTheInputAsIs() {
+        ReedSolomon rs = new ReedSolomon(4, 2);
+        byte[] data = random(1, 4000);
+        byte[][] shards = rs.encode(data, data.length);
+
+        assertEquals(6, shards.length);
+        for (int i = 0; i < 4; i++) assertArrayEquals(Arrays.copyOfRange(data, i * 1000, (i + 1) * 1000), shards[i]);
+    }
+
+    @Test
+    void decodesAfterErasingAnyMShards() {
+        for (int[] km : new int[][] {{1, 1}, {2, 1}, {3, 2}, {4, 2}, {6, 3}, {10, 4}}) {
+            int k = km[0];
+            int m = km[1];
+            ReedSolomon rs = new ReedSolomon(k, m);
+            byte[] data = random(k * 31 + m, 10_007);
+            byte[][] shards = rs.encode(data, data.length);
+
+            // every subset of exactly m erased shards
+            forEachSubset(k + m, m, erased -> {
+                byte[][] copy = shards.clone();
+                for (int i : erased) copy[i] = null;
+                assertArrayEquals(data, rs.decode(copy, data.length), k + "+" + m + " erased " + Arrays.toString(erased));
+            });
+        }
+    }
+
+    @Test
+    void decodesWithFewerThanMErasures() {
+        ReedSolomon rs = new ReedSolomon(4, 3);
+        byte[] data = random(7, 999);
+        byte[][] shards = rs.encode(data, data.length);
+        for (int i = 0; i < 7; i++) {
+            byte[][] copy = shards.clone();
+            copy[i] = null;
+            assertArrayEquals(data, rs.decode(copy, data.length));
+        }
+    }
+
+    @Test
+    void lengthsThatDoNotSplitEvenly() {
+        ReedSolomon rs = new ReedSolomon(5, 2);
+        for (int length : new int[] {1, 4, 5, 6, 17, 4096, 65_537}) {
+            byte[] data = random(length, length);
+            byte[][] shards = rs.encode(data, length);
+            assertEquals(rs.shardSize(length), shards[0].length);
+            shards[0] = null;
+            shards[6] = null;
+            assertArrayEquals(data, rs.decode(shards, length), "length " + length);
+        }
+    }
+
+    @Test
+    void tooFewShardsIsAnError() {
+        ReedSolomon rs = new ReedSolomon(3, 2);
+        byte[] data = random(3, 300);
+        byte[][] shards = rs.encode(data, data.length);
+        shards[0] = null;
+        shards[2] = null;
+        shards[4] = null;
+        assertThrows(IllegalArgumentException.class, () -> rs.decode(shards, data.length));
+    }
+
+    @Test
+    void parseSpec() {
+        ReedSolomon rs = ReedSolomon.parse(" 4+2 ");
+        assertEquals(4, rs.dataShards());
+        assertEquals(2, rs.parityShards());
+        assertNull(ReedSolomon.parse(""));
+        assertThrows(IllegalArgumentException.class, () -> ReedSolomon.parse("4"));
+        assertThrows(IllegalArgumentException.class, () -> ReedSolomon.parse("0+2"));
+    }
+
+    private interface SubsetAction {
+        void accept(int[] subset);
+    }
+
+    private static void forEachSubset(int n, int size, SubsetAction action) {
+        int[] idx = new int[size];
+        for (int i = 0; i < size; i++) idx[i] = i;
+        while (true) {
+            action.accept(idx.clone());
+            int i = size - 1;
+            while (i >= 0 && idx[i] == n - size + i) i--;
+            if (i < 0) return;
+            idx[i]++;
+            for (int j = i + 1; j < size; j++) idx[j] = idx[j - 1] + 1;
+        }
+    }
+
+    private static byte[] random(long seed, int size) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,114 @@
+package uk.ac.ntu.cloudfs.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ntu.cloudfs.node.store.ChunkStore;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.function.IntSupplier;
+
+/**
+ * Registers this node with the load balancer on boot and keeps it informed via heartbeats. A node
+ * an admin removed (HTTP 410) does not register again; it keeps heartbeating, which resumes
+ * normally once an admin adds it back.
+ */
+public final class LbRegistrar implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(LbRegistrar.class);
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(3))
+            .build();
+
+    private final String lbUrl;
+    private final String nodeId;
+    private final String publicUrl;
+    private final int priority;
+    private final String token;
+    private final long heartbeatMs;
+    private final ChunkStore store;
+    private final IntSupplier inFlight;
+    private boolean removed;
+
+    public LbRegistrar(String lbUrl, String nodeId, String publicUrl, int priority, String token,
+                       long heartbeatMs, ChunkStore store, IntSupplier inFlight) {
+        this.lbUrl = lbUrl.endsWith("/") ? lbUrl.substring(0, lbUrl.length() - 1) : lbUrl;
+        this.nodeId = nodeId;
+        this.publicUrl = publicUrl;
+        this.priority = priority;
+        this.token = token;
+        this.heartbeatMs = heartbeatMs;
+        this.store = store;
+        this.inFlight = inFlight;
+    }
+
+    @Override
+    public void run() {
+        boolean known = false; // the LB has a record of us, live or removed
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                int code;
+                if (!known) {
+                    code = register();
+                } else {
+                    code = heartbeat();
+                    // LB restarted and forgot us: join again
+                    if (code == 404) code = register();
+                }
+                if (code == 200 || code == 410) {
+                    known = true;
+                    noteRemoved(code == 410);
+                } else if (code == 404) {
+                    known = false;
+                }
+            } catch (Exception e) {
+                log.debug("LB unreachable: {}", e.getMessage());
+            }
+
+            try {
+                Thread.sleep(heartbeatMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private int register() throws Exception {
+        int code = post("/api/nodes/register?nodeId=" + enc(nodeId) + "&url=" + enc(publicUrl) + "&priority=" + priority);
+        if (code == 200) log.info("Registered with LB {} as {} ({})", lbUrl, nodeId, publicUrl);
+        else if (code != 410) log.warn("LB registration rejected: HTTP {}", code);
+        return code;
+    }
+
+    private void noteRemoved(boolean now) {
+        if (now == removed) return;
+        removed = now;
+        if (now) log.warn("Removed from LB {} by an admin; not rejoining until re-added", lbUrl);
+        else log.info("Re-added to LB {}", lbUrl);
+    }
+
+    private int heartbeat() throws Exception {
+        return post("/api/nodes/heartbeat?nodeId=" + enc(nodeId)
+                + "&inFlight=" + inFlight.getAsInt()
+                + "&storedBytes=" + store.storedBytes()
+                + "&freeBytes=" + store.freeBytes());
+    }
+
+    private int post(String pathAndQuery) throws Exception {
+        HttpRequest.Builder b = HttpRequest.newBuilder()
+                .uri(URI.create(lbUrl + pathAndQuery))
+                .timeout(Duration.ofSeconds(5))
+                .POST(HttpRequest.BodyPublishers.noBody());
+        if (token != null && !token.isBlank()) b.header("X-Node-Token", token);
+        return client.send(b.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private static String enc(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+}
@@ -5,13 +5,23 @@ import com.sun.net.httpserver.HttpServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ntu.cloudfs.common.Version;
+import uk.ac.ntu.cloudfs.common.http.ByteRange;
+import uk.ac.ntu.cloudfs.common.wire.ChunkBatch;
+import uk.ac.ntu.cloudfs.common.wire.NodeWire;
 import uk.ac.ntu.cloudfs.node.store.ChunkStore;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class StorageNodeMain {
 
@@ -19,10 +29,16 @@ public final class StorageNodeMain {
 
     public static void main(String[] args) throws IOException {
         int port = readIntEnv("NODE_PORT", 9001);
+        int binPort = readIntEnv("NODE_BIN_PORT", 0);
 
         String dataDir = System.getenv().getOrDefault("NODE_DATA_DIR", "./data");
         ChunkStore store = new ChunkStore(Paths.get(dataDir));
+        AtomicInteger inFlight = new AtomicInteger();
 
+        // without it small responses sit out the client's delayed ACK, ~40 ms per chunk call
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
         // ---- basic endpoints ----
@@ -38,7 +54,13 @@ public final class StorageNodeMain {
             reply(ex, 200, "PONG from " + System.getenv().getOrDefault("NODE_ID", "node"));
         });
 
-        // ---- chunk storage endpoint: PUT + GET on same path ----
+        // ---- where the binary chunk protocol listens, if it does ----
+        server.createContext(NodeWire.PROBE_PATH, ex -> {
+            if (binPort > 0) reply(ex, 200, "BIN port=" + binPort);
+            else reply(ex, 404, "NO_BINARY");
+        });
+
+        // ---- chunk storage endpoint: PUT + GET + DELETE on same path ----
         server.createContext("/chunk", ex -> {
             String method = ex.getRequestMethod().toUpperCase();
             String q = ex.getRequestURI().getQuery();
@@ -50,37 +72,30 @@ public final class StorageNodeMain {
                 return;
             }
 
-            if ("PUT".equals(method)) {
-                long delayMs = readLongEnv("NODE_DELAY_MS", 0);
-                if (delayMs > 0) {
-                    try { Thread.sleep(delayMs); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
-                }
-
-                byte[] data = ex.getRequestBody().readAllBytes();
-                try {
-                    ChunkStore.PutResult res = store.put(fileId, chunkId, data);
-                    reply(ex, 200, "STORED bytes=" + res.bytes() + " crc32=" + res.crc32());
-                } catch (IOException io) {
-                    reply(ex, 500, "STORE_ERROR " + io.getMessage());
-                }
-                return;
+            inFlight.incrementAndGet();
+            try {
+                handleChunk(ex, method, fileId, chunkId, store);
+            } finally {
+                inFlight.decrementAndGet();
             }
+        });
 
-            if ("GET".equals(method)) {
-                try {
-                    byte[] data = store.get(fileId, chunkId);
-                    ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
-                    ex.sendResponseHeaders(200, data.length);
-                    try (OutputStream os = ex.getResponseBody()) {
-                        os.write(data);
-                    }
-                } catch (IOException io) {
-                    reply(ex, 404, "NOT_FOUND");
-                }
-                return;
+        // ---- batch transfer: many chunks per request, framed as in ChunkBatch ----
+        server.createContext(ChunkBatch.GET_PATH, ex -> {
+            inFlight.incrementAndGet();
+            try {
+                handleBatch(ex, false, store);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+        server.createContext(ChunkBatch.PUT_PATH, ex -> {
+            inFlight.incrementAndGet();
+            try {
+                handleBatch(ex, true, store);
+            } finally {
+                inFlight.decrementAndGet();
             }
-
-            reply(ex, 405, "METHOD_NOT_ALLOWED");
         });
 
         // ---- delete all chunks for a file ----
@@ -103,11 +118,151 @@ public final class StorageNodeMain {
             }
         });
 
-        server.setExecutor(null);
+        // one thread per concurrent request, so the LB's per-node connections are actually served in parallel
+        AtomicInteger httpThreadNo = new AtomicInteger();
+        server.setExecutor(Executors.newFixedThreadPool(Math.max(1, readIntEnv("NODE_HTTP_THREADS", 64)), r -> {
+            Thread t = new Thread(r, "http-" + httpThreadNo.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }));
         server.start();
 
-        log.info("StorageNode started on port {} (endpoints: /health, /version, /ping, /chunk, /file)", port);
+        log.info("StorageNode started on port {} (endpoints: /health, /version, /ping, /wire, /chunk, /chunks/get, /chunks/put, /file)", port);
+
+        if (binPort > 0) {
+            Thread wire = new Thread(new WireServer(binPort, store, inFlight,
+                    readIntEnv("NODE_BIN_THREADS", 16), readLongEnv("NODE_DELAY_MS", 0)), "wire-accept");
+            wire.setDaemon(true);
+            wire.start();
+            log.info("Binary chunk protocol on port {}", binPort);
+        }
         log.info("Data dir: {}", Paths.get(dataDir).toAbsolutePath());
+
+        String lbUrl = System.getenv("LB_URL");
+        if (lbUrl != null && !lbUrl.isBlank()) {
+            String nodeId = System.getenv().getOrDefault("NODE_ID", "node-" + port);
+            String publicUrl = System.getenv().getOrDefault("NODE_PUBLIC_URL", "http://localhost:" + port);
+            Thread reg = new Thread(new LbRegistrar(
+                    lbUrl.trim(), nodeId, publicUrl,
+                    readIntEnv("NODE_PRIORITY", 0),
+                    System.getenv("LB_NODE_TOKEN"),
+                    readLongEnv("NODE_HEARTBEAT_MS", 5000),
+                    store, inFlight::get), "lb-registrar");
+            reg.setDaemon(true);
+            reg.start();
+        }
+    }
+
+    private static void handleChunk(HttpExchange ex, String method, String fileId, String chunkId, ChunkStore store) throws IOException {
+        if ("PUT".equals(method)) {
+            long delayMs = readLongEnv("NODE_DELAY_MS", 0);
+            if (delayMs > 0) {
+                try { Thread.sleep(delayMs); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+            }
+
+            byte[] data = ex.getRequestBody().readAllBytes();
+            try {
+                ChunkStore.PutResult res = store.put(fileId, chunkId, data);
+                reply(ex, 200, "STORED bytes=" + res.bytes() + " crc32=" + res.crc32());
+            } catch (IOException io) {
+                reply(ex, 500, "STORE_ERROR " + io.getMessage());
+            }
+            return;
+        }
+
+        if ("GET".equals(method)) {
+            try {
+                // only a range is read from disk, so a few KB of a large chunk cost a few KB
+                ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+                String rangeHeader = ex.getRequestHeaders().getFirst("Range");
+                ByteRange range = rangeHeader == null ? null : ByteRange.parse(rangeHeader, store.size(fileId, chunkId));
+                if (range == ByteRange.UNSATISFIABLE) {
+                    ex.getResponseHeaders().set("Content-Range", ByteRange.unsatisfiedContentRange(store.size(fileId, chunkId)));
+                    reply(ex, 416, "RANGE_NOT_SATISFIABLE");
+                    return;
+                }
+
+                byte[] data = range == null
+                        ? store.get(fileId, chunkId)
+                        : store.read(fileId, chunkId, range.from(), (int) range.length());
+                ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                if (range != null) ex.getResponseHeaders().set("Content-Range", range.contentRange());
+                ex.sendResponseHeaders(range == null ? 200 : 206, data.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(data);
+                }
+            } catch (IOException io) {
+                reply(ex, 404, "NOT_FOUND");
+            }
+            return;
+        }
+
+        if ("DELETE".equals(method)) {
+            try {
+                reply(ex, 200, store.delete(fileId, chunkId) ? "DELETED" : "ABSENT");
+            } catch (IOException io) {
+                reply(ex, 500, "DELETE_ERROR " + io.getMessage());
+            }
+            return;
+        }
+
+        reply(ex, 405, "METHOD_NOT_ALLOWED");
+    }
+
+    /**
+     * Answers each record in order as it is handled, so a large batch streams instead of being
+     * buffered. A record that fails only fails itself; a malformed request is a 400.
+     */
+    private static void handleBatch(HttpExchange ex, boolean put, ChunkStore store) throws IOException {
+        if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+            reply(ex, 405, "METHOD_NOT_ALLOWED");
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(ex.getRequestBody(), 64 * 1024));
+        int count;
+        try {
+            count = ChunkBatch.readCount(in);
+        } catch (IOException e) {
+            reply(ex, 400, "BAD_BATCH " + e.getMessage());
+            return;
+        }
+
+        ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        ex.sendResponseHeaders(200, 0);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(ex.getResponseBody(), 64 * 1024))) {
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                ChunkBatch.Key key = ChunkBatch.readKey(in);
+                if (put) {
+                    long crc = in.readInt() & 0xFFFFFFFFL;
+                    int len = in.readInt();
+                    if (len < 0 || len > ChunkBatch.MAX_RECORD_BYTES) throw new IOException("bad record length " + len);
+                    byte[] data = in.readNBytes(len);
+                    if (data.length != len) throw new IOException("truncated record");
+                    if (ChunkBatch.crc32(data, 0, len) != crc) {
+                        ChunkBatch.writeStatus(out, ChunkBatch.BAD_CRC, 0, null, 0);
+                        continue;
+                    }
+                    try {
+                        ChunkStore.PutResult res = store.put(key.fileId(), key.chunkId(), data);
+                        ChunkBatch.writeStatus(out, ChunkBatch.OK, res.crc32(), null, 0);
+                    } catch (IOException io) {
+                        ChunkBatch.writeStatus(out, ChunkBatch.ERROR, 0, null, 0);
+                    }
+                } else {
+                    try {
+                        byte[] data = store.get(key.fileId(), key.chunkId());
+                        ChunkBatch.writeStatus(out, ChunkBatch.OK, ChunkBatch.crc32(data, 0, data.length), data, data.length);
+                    } catch (NoSuchFileException e) {
+                        ChunkBatch.writeStatus(out, ChunkBatch.NOT_FOUND, 0, null, 0);
+                    } catch (IOException io) {
+                        ChunkBatch.writeStatus(out, ChunkBatch.ERROR, 0, null, 0);
+                    }
+                }
+            }
+        }
+        // a malformed record mid-stream escapes as IOException and cuts the response short,
+        // which the caller sees as a failed batch
     }
 
     private static int readIntEnv(String key, int fallback) {
@@ -0,0 +1,160 @@
+package uk.ac.ntu.cloudfs.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ntu.cloudfs.common.wire.ChunkBatch;
+import uk.ac.ntu.cloudfs.common.wire.NodeWire;
+import uk.ac.ntu.cloudfs.node.store.ChunkStore;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the {@link NodeWire} protocol. Each connection has a reader thread that parses frames
+ * and hands them to a shared worker pool, so a slow request does not hold up the ones behind it;
+ * responses are written whole under the connection's lock. Chunk reads go from the file to the
+ * socket with {@link FileChannel#transferTo}, never through the heap.
+ */
+final class WireServer implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(WireServer.class);
+
+    private final ServerSocketChannel server;
+    private final ChunkStore store;
+    private final AtomicInteger inFlight;
+    private final long putDelayMs;
+    private final ExecutorService workers;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    WireServer(int port, ChunkStore store, AtomicInteger inFlight, int threads, long putDelayMs) throws IOException {
+        this.server = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        this.store = store;
+        this.inFlight = inFlight;
+        this.putDelayMs = putDelayMs;
+        AtomicInteger n = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "wire-worker-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void run() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel ch = server.accept();
+                Thread t = new Thread(() -> serve(ch), "wire-conn-" + connections.incrementAndGet());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (server.isOpen()) log.warn("Wire accept failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void serve(SocketChannel ch) {
+        try (ch) {
+            ch.socket().setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(ch.socket().getInputStream(), 64 * 1024));
+            byte[] magic = new byte[NodeWire.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, NodeWire.MAGIC)) return;
+
+            while (true) {
+                int id = in.readInt();
+                int op = in.readUnsignedByte();
+                ChunkBatch.Key key = ChunkBatch.readKey(in);
+                byte[] body = new byte[NodeWire.checkLength(in.readInt())];
+                in.readFully(body);
+                workers.execute(() -> handle(ch, id, op, key, body));
+            }
+        } catch (EOFException ignored) {
+            // peer closed the connection
+        } catch (IOException e) {
+            log.debug("Wire connection dropped: {}", e.getMessage());
+        }
+    }
+
+    private void handle(SocketChannel ch, int id, int op, ChunkBatch.Key key, byte[] body) {
+        inFlight.incrementAndGet();
+        try {
+            switch (op) {
+                case NodeWire.GET -> get(ch, id, key);
+                case NodeWire.PUT -> {
+                    if (putDelayMs > 0) {
+                        try { Thread.sleep(putDelayMs); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+                    }
+                    ChunkStore.PutResult res;
+                    try {
+                        res = store.put(key.fileId(), key.chunkId(), body);
+                    } catch (IOException io) {
+                        send(ch, NodeWire.response(id, NodeWire.ERROR, 0, 0));
+                        return;
+                    }
+                    send(ch, NodeWire.response(id, NodeWire.OK, res.crc32(), 0));
+                }
+                case NodeWire.DELETE -> {
+                    int status;
+                    try {
+                        status = store.delete(key.fileId(), key.chunkId()) ? NodeWire.OK : NodeWire.ABSENT;
+                    } catch (IOException io) {
+                        status = NodeWire.ERROR;
+                    }
+                    send(ch, NodeWire.response(id, status, 0, 0));
+                }
+                default -> send(ch, NodeWire.response(id, NodeWire.ERROR, 0, 0));
+            }
+        } catch (IOException e) {
+            // a response failed half way: the stream is unusable, the client fails what is pending
+            try { ch.close(); } catch (IOException ignored) {}
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void get(SocketChannel ch, int id, ChunkBatch.Key key) throws IOException {
+        FileChannel file;
+        try {
+            file = store.open(key.fileId(), key.chunkId());
+        } catch (NoSuchFileException e) {
+            send(ch, NodeWire.response(id, NodeWire.NOT_FOUND, 0, 0));
+            return;
+        } catch (IOException e) {
+            send(ch, NodeWire.response(id, NodeWire.ERROR, 0, 0));
+            return;
+        }
+        try (file) {
+            long size = file.size();
+            synchronized (ch) {
+                writeFully(ch, NodeWire.response(id, NodeWire.OK, 0, (int) size));
+                for (long pos = 0; pos < size; ) {
+                    long n = file.transferTo(pos, size - pos, ch);
+                    if (n <= 0 && file.size() < size) throw new EOFException("chunk shrank while being sent");
+                    pos += n;
+                }
+            }
+        }
+    }
+
+    private static void send(SocketChannel ch, ByteBuffer frame) throws IOException {
+        synchronized (ch) {
+            writeFully(ch, frame);
+        }
+    }
+
+    private static void writeFully(SocketChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+}
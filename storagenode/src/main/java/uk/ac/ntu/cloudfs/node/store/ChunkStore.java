@@ -1,15 +1,23 @@
 package uk.ac.ntu.cloudfs.node.store;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32;
 
 public final class ChunkStore {
     private final Path baseDir;
+    private final AtomicLong storedBytes = new AtomicLong();
 
     public ChunkStore(Path baseDir) throws IOException {
         this.baseDir = baseDir;
         Files.createDirectories(baseDir);
+        try (var s = Files.walk(baseDir)) {
+            storedBytes.set(s.filter(Files::isRegularFile).mapToLong(ChunkStore::sizeOf).sum());
+        }
     }
 
     public PutResult put(String fileId, String chunkId, byte[] data) throws IOException {
@@ -17,7 +25,9 @@ public final class ChunkStore {
         Files.createDirectories(dir);
 
         Path p = dir.resolve(safe(chunkId) + ".bin");
+        long previous = sizeOf(p);
         Files.write(p, data, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        storedBytes.addAndGet(data.length - previous);
 
         long crc = crc32(data);
         return new PutResult(data.length, crc);
@@ -28,17 +38,63 @@ public final class ChunkStore {
         return Files.readAllBytes(p);
     }
 
+    public long size(String fileId, String chunkId) throws IOException {
+        return Files.size(baseDir.resolve(safe(fileId)).resolve(safe(chunkId) + ".bin"));
+    }
+
+    /** {@code length} bytes from {@code offset}, read in place rather than loading the whole chunk. */
+    public byte[] read(String fileId, String chunkId, long offset, int length) throws IOException {
+        Path p = baseDir.resolve(safe(fileId)).resolve(safe(chunkId) + ".bin");
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) throw new EOFException("chunk shorter than " + (offset + length));
+            }
+        }
+        return buf.array();
+    }
+
+    /** The chunk opened for reading, e.g. to transfer straight to a socket; the caller closes it. */
+    public FileChannel open(String fileId, String chunkId) throws IOException {
+        return FileChannel.open(baseDir.resolve(safe(fileId)).resolve(safe(chunkId) + ".bin"), StandardOpenOption.READ);
+    }
+
+    public boolean delete(String fileId, String chunkId) throws IOException {
+        Path p = baseDir.resolve(safe(fileId)).resolve(safe(chunkId) + ".bin");
+        long size = sizeOf(p);
+        if (!Files.deleteIfExists(p)) return false;
+        storedBytes.addAndGet(-size);
+        return true;
+    }
+
     public void deleteFile(String fileId) throws IOException {
         Path dir = baseDir.resolve(safe(fileId));
         if (!Files.exists(dir)) return;
         try (var s = Files.list(dir)) {
             s.forEach(path -> {
-                try { Files.deleteIfExists(path); } catch (IOException ignored) {}
+                long size = sizeOf(path);
+                try {
+                    if (Files.deleteIfExists(path)) storedBytes.addAndGet(-size);
+                } catch (IOException ignored) {}
             });
         }
         Files.deleteIfExists(dir);
     }
 
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+
+    public long freeBytes() {
+        try { return Files.getFileStore(baseDir).getUsableSpace(); }
+        catch (IOException e) { return -1; }
+    }
+
+    private static long sizeOf(Path p) {
+        try { return Files.exists(p) ? Files.size(p) : 0L; }
+        catch (IOException e) { return 0L; }
+    }
+
     private static String safe(String s) {
         // simple sanitiser: keep alphanum, dash, underscore
         return s.replaceAll("[^a-zA-Z0-9_-]", "_");
@@ -51,4 +107,4 @@ public final class ChunkStore {
     }
 
     public record PutResult(int bytes, long crc32) {}
-}
\ No newline at end of file
+}